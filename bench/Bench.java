@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small benchmark runner for the benchmark module
+ *
+ * Works like a stripped down JMH: every benchmark is run for a few warmup iterations so
+ * the JIT can compile it, then for a few measured iterations, and the average throughput
+ * is reported. The results are written as JSON in the same shape as JMH's "-rf json"
+ * output, so they can be kept and compared over time.
+ */
+public class Bench {
+
+    /**
+     * One run of a benchmark
+     */
+    public interface Task {
+        /**
+         * @return the number of operations that were done, used to work out operations per second
+         * @throws Exception if the benchmark fails
+         */
+        long run() throws Exception;
+    }
+
+    // Number of warmup and measured iterations for each benchmark
+    private final int warmups;
+    private final int iterations;
+    // Results so far, written out by writeJson()
+    private final List<String> results = new ArrayList<>();
+    // Where results are printed, benchmarks may point System.out somewhere else while they run
+    private final PrintStream console = System.out;
+    // Results of the benchmarks are added here so the JIT can't throw the work away
+    static volatile long sink;
+
+    /**
+     * @param warmups number of iterations that aren't measured
+     * @param iterations number of iterations that are measured
+     */
+    public Bench(int warmups, int iterations) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs and measures one benchmark
+     *
+     * @param name name of the benchmark
+     * @param params the parameters it was run with, in the order they should be shown
+     * @param task the work to measure
+     * @throws Exception if the benchmark fails
+     */
+    public void measure(String name, Map<String, String> params, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long operations = task.run();
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            scores[i] = operations * 1e9 / elapsed;
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+        console.printf("%-28s %-40s %,16.1f ops/s  +- %,.1f%n", name, params, mean, error);
+        results.add(toJson(name, params, mean, error, scores, Map.of(), Map.of()));
+    }
+
+    /**
+     * Adds a result that was measured without measure(), for benchmarks that run for a set time
+     *
+     * @param name name of the benchmark
+     * @param params the parameters it was run with, in the order they should be shown
+     * @param score operations per second
+     * @param latencies latency percentiles in milliseconds by name, in the order they should be shown
+     */
+    public void report(String name, Map<String, String> params, double score, Map<String, Double> latencies) {
+        report(name, params, score, latencies, Map.of());
+    }
+
+    /**
+     * Adds a result that was measured without measure(), with memory sizes as well
+     *
+     * @param name name of the benchmark
+     * @param params the parameters it was run with, in the order they should be shown
+     * @param score operations per second
+     * @param latencies latency percentiles in milliseconds by name, in the order they should be shown
+     * @param sizes memory sizes in megabytes by name, in the order they should be shown
+     */
+    public void report(String name, Map<String, String> params, double score, Map<String, Double> latencies,
+                       Map<String, Double> sizes) {
+        StringBuilder shown = new StringBuilder();
+        for (Map.Entry<String, Double> latency : latencies.entrySet()) {
+            shown.append(String.format("  %s %.3f ms", latency.getKey(), latency.getValue()));
+        }
+        for (Map.Entry<String, Double> size : sizes.entrySet()) {
+            shown.append(String.format("  %s %.1f MB", size.getKey(), size.getValue()));
+        }
+        console.printf("%-28s %-40s %,16.1f ops/s%s%n", name, params, score, shown);
+        results.add(toJson(name, params, score, 0, new double[]{score}, latencies, sizes));
+    }
+
+    /**
+     * Writes all results measured so far to a JSON file
+     *
+     * @param file the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeJson(Path file) throws IOException {
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        Files.writeString(file, "[\n" + String.join(",\n", results) + "\n]\n");
+        console.println("Results written to " + file);
+    }
+
+    /**
+     * Reads "--name value" pairs from the command line
+     *
+     * @param args the command line
+     * @param defaults the value of each option that isn't given
+     * @return every option with its value
+     */
+    public static Map<String, String> options(String[] args, Map<String, String> defaults) {
+        Map<String, String> options = new LinkedHashMap<>(defaults);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !defaults.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", options are " + defaults.keySet());
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private String toJson(String name, Map<String, String> params, double score, double error, double[] scores,
+                          Map<String, Double> latencies, Map<String, Double> sizes) {
+        StringBuilder json = new StringBuilder();
+        json.append("  {\n    \"benchmark\": \"").append(name).append("\",\n");
+        json.append("    \"mode\": \"thrpt\",\n");
+        json.append("    \"warmupIterations\": ").append(warmups).append(",\n");
+        json.append("    \"measurementIterations\": ").append(iterations).append(",\n");
+        json.append("    \"params\": {");
+        String separator = "";
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            json.append(separator).append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("    \"primaryMetric\": {\n");
+        json.append("      \"score\": ").append(score).append(",\n");
+        json.append("      \"scoreError\": ").append(error).append(",\n");
+        json.append("      \"scoreUnit\": \"ops/s\",\n");
+        json.append("      \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(scores[i]);
+        }
+        json.append("]]\n    }");
+        if (!latencies.isEmpty() || !sizes.isEmpty()) {
+            json.append(",\n    \"secondaryMetrics\": {");
+            separator = "";
+            for (Map.Entry<String, Double> latency : latencies.entrySet()) {
+                json.append(separator).append("\n      \"").append(latency.getKey()).append("\": {\"score\": ")
+                        .append(latency.getValue()).append(", \"scoreUnit\": \"ms/op\"}");
+                separator = ",";
+            }
+            for (Map.Entry<String, Double> size : sizes.entrySet()) {
+                json.append(separator).append("\n      \"").append(size.getKey()).append("\": {\"score\": ")
+                        .append(size.getValue()).append(", \"scoreUnit\": \"MB\"}");
+                separator = ",";
+            }
+            json.append("\n    }");
+        }
+        json.append("\n  }");
+        return json.toString();
+    }
+}
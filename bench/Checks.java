@@ -0,0 +1,116 @@
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the program still gives the right answers, kept apart from the benchmarks
+ * so those only measure
+ *
+ * Each check runs on its own and prints "ok" or what went wrong, and the runner exits with
+ * 1 if any of them failed. Run with for example
+ *   bench/run.sh Checks
+ *   bench/run.sh Checks csv.quotes
+ * where the names pick the checks to run (all of them if none are given).
+ */
+public class Checks {
+
+    /**
+     * One check
+     */
+    public interface Check {
+        /**
+         * @param dir an empty folder the check can write files to
+         * @throws Exception if the check fails
+         */
+        void run(Path dir) throws Exception;
+    }
+
+    // Number of checks that failed so far
+    private static int failed;
+
+    public static void main(String[] args) throws Exception {
+        List<String> only = List.of(args);
+        Path dir = Files.createTempDirectory(Paths.get(System.getProperty("java.io.tmpdir")), "filelist-checks");
+
+        check(only, dir, "csv.quotes", Checks::csvQuotes);
+        check(only, dir, "csv.roundTrip", folder -> roundTrip(folder, "items.csv"));
+        check(only, dir, "jsonl.roundTrip", folder -> roundTrip(folder, "items.jsonl"));
+
+        Files.deleteIfExists(dir);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs a check if it was picked and prints how it went
+     */
+    private static void check(List<String> only, Path dir, String name, Check check) throws Exception {
+        if (!only.isEmpty() && !only.contains(name)) {
+            return;
+        }
+        Path folder = Files.createDirectory(dir.resolve(name));
+        try {
+            check.run(folder);
+            System.out.printf("%-24s ok%n", name);
+        } catch (Exception | AssertionError e) {
+            failed++;
+            System.out.printf("%-24s FAILED: %s%n", name, e);
+        } finally {
+            try (var files = Files.list(folder)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(folder);
+        }
+    }
+
+    /**
+     * Throws if something that should be true isn't
+     */
+    private static void expect(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    /**
+     * Quotes in the middle of unquoted fields and line breaks in quoted ones: the import has to cut
+     * the file into pieces where CsvCursor sees the records end, or the items come out wrong
+     * The file is several pieces (ListPipeline.CHUNK_SIZE) long so the cuts are checked too.
+     */
+    private static void csvQuotes(Path dir) throws Exception {
+        Path quotes = dir.resolve("quotes.csv");
+        int records = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(quotes)) {
+            while (Files.size(quotes) < 3L * ListPipeline.CHUNK_SIZE) {
+                for (int i = 0; i < 10_000; i++, records++) {
+                    out.write(records + "\" ruler,\"two\nlines \"\"" + records + "\"\"\"\n");
+                }
+                out.flush();
+            }
+        }
+        List<String> imported = new ArrayList<>();
+        ListPipeline.parse("--format csv").importInto(quotes, imported);
+        expect(imported.size() == records, imported.size() + " items from " + records + " records");
+        for (int i = 0; i < records; i++) {
+            expect(imported.get(i).equals(i + "\" ruler"), "item " + i + " is " + imported.get(i));
+        }
+    }
+
+    /**
+     * Items with the characters CSV and JSON have to escape come back the same after an export and an import
+     * (empty items aren't imported, see ListPipeline)
+     */
+    private static void roundTrip(Path dir, String name) throws Exception {
+        List<String> items = List.of("plain", "a, comma", "\"quoted\"", "half \"quote", " spaces ", "back\\slash",
+                "tab\there", "ünïcödé ✓", ",", "\"");
+        Path exported = dir.resolve(name);
+        new ListPipeline().export(items, exported);
+        List<String> imported = new ArrayList<>();
+        new ListPipeline().importInto(exported, imported);
+        expect(imported.equals(items), "exported " + items + " but imported " + imported);
+    }
+}
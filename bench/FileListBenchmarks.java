@@ -0,0 +1,392 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for opening, saving, editing, viewing, sorting and finding in lists, for the
+ * list file formats, for importing and exporting and for SafeInput
+ *
+ * Run with for example
+ *   java -cp out/production/Lab_13_FileListMaker:out/production/Lab_13_FileListMaker_bench FileListBenchmarks --lines 1000,1000000 --out results.json
+ * or use bench/run.sh. Every benchmark is run for each combination of
+ *   --lines    number of lines in the list (1K up to 100M)
+ *   --length   number of characters in each line
+ *   --charset  "ascii" for plain text or "utf8" for lines with multi-byte characters
+ */
+public class FileListBenchmarks {
+
+    // Number of edits or renders measured in one iteration
+    private static final int OPERATIONS = 1000;
+    // Lists bigger than this are only benchmarked with the mapped storage, they don't fit in the heap as Strings
+    private static final int HEAP_LIST_LIMIT = 10_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("lines", "1000,100000,1000000");
+        defaults.put("length", "16,128");
+        defaults.put("charset", "ascii,utf8");
+        defaults.put("warmup", "3");
+        defaults.put("iterations", "5");
+        defaults.put("dir", System.getProperty("java.io.tmpdir"));
+        defaults.put("out", "bench-results/file-list.json");
+        defaults.put("only", "");
+        Map<String, String> options = Bench.options(args, defaults);
+
+        Bench bench = new Bench(Integer.parseInt(options.get("warmup")), Integer.parseInt(options.get("iterations")));
+        Path dir = Files.createTempDirectory(Paths.get(options.get("dir")), "filelist-bench");
+        String only = options.get("only");
+
+        for (String lines : options.get("lines").split(",")) {
+            for (String length : options.get("length").split(",")) {
+                for (String charset : options.get("charset").split(",")) {
+                    Map<String, String> params = new LinkedHashMap<>();
+                    params.put("lines", lines);
+                    params.put("length", length);
+                    params.put("charset", charset);
+                    run(bench, only, dir, params, Integer.parseInt(lines), Integer.parseInt(length), charset.equals("utf8"));
+                }
+            }
+        }
+        validation(bench, only);
+        Files.deleteIfExists(dir);
+
+        bench.writeJson(Paths.get(options.get("out")));
+    }
+
+    /**
+     * Runs every list benchmark for one shape of data
+     */
+    private static void run(Bench bench, String only, Path dir, Map<String, String> params,
+                            int lines, int length, boolean multiByte) throws Exception {
+        Path file = dir.resolve("list-" + lines + "-" + length + (multiByte ? "-utf8" : "-ascii") + ".txt");
+        writeData(file, lines, length, multiByte);
+        Path saved = dir.resolve("saved.txt");
+
+        if (only.isEmpty() || only.startsWith("open")) {
+            bench.measure("open.mapped", params, () -> {
+                List<String> list = MappedLineList.open(file);
+                Bench.sink += list.size();
+                return lines;
+            });
+            bench.measure("open.mappedDecodeAll", params, () -> {
+                List<String> list = MappedLineList.open(file);
+                long total = 0;
+                for (String line : list) {
+                    total += line.length();
+                }
+                Bench.sink += total;
+                return lines;
+            });
+            if (lines <= HEAP_LIST_LIMIT) {
+                bench.measure("open.legacyReader", params, () -> {
+                    // The way openFile read a list before it was memory-mapped
+                    ArrayList<String> list = new ArrayList<>();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            new BufferedInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8));
+                    while (reader.ready()) {
+                        list.add(reader.readLine());
+                    }
+                    reader.close();
+                    Bench.sink += list.size();
+                    return lines;
+                });
+            }
+        }
+
+        List<String> mapped = MappedLineList.open(file);
+        if (only.isEmpty() || only.startsWith("save")) {
+            bench.measure("save.writeFile.mapped", params, () -> {
+                NIOFileEditing.writeFile(mapped, saved);
+                return lines;
+            });
+        }
+
+        if (only.isEmpty() || only.startsWith("edit")) {
+            List<List<String>> lists = new ArrayList<>();
+            lists.add(mapped);
+            if (lines <= HEAP_LIST_LIMIT) {
+                lists.add(new ArrayList<>(mapped));
+                GapBufferList<String> gap = new GapBufferList<>();
+                gap.addAll(mapped);
+                lists.add(gap);
+            }
+            for (List<String> list : lists) {
+                for (String where : new String[]{"front", "middle", "tail", "random"}) {
+                    Random random = new Random(42);
+                    bench.measure("edit." + where + "." + list.getClass().getSimpleName(), params, () -> {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            int size = list.size();
+                            int at = where.equals("front") ? 0
+                                    : where.equals("middle") ? size / 2
+                                    : where.equals("tail") ? size - 1
+                                    : random.nextInt(size);
+                            // Delete an item and add it back so the list keeps its size
+                            String item = list.remove(at);
+                            list.add(at, item);
+                        }
+                        return OPERATIONS;
+                    });
+                }
+            }
+        }
+
+        if (only.isEmpty() || only.startsWith("view")) {
+            Main.myArrList = mapped;
+            Main.out = new BufferedWriter(Writer.nullWriter(), 1 << 16);
+            for (boolean numbered : new boolean[]{false, true}) {
+                bench.measure(numbered ? "view.numbered" : "view.plain", params, () -> {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        Main.page = i;
+                        Main.view(numbered);
+                    }
+                    return OPERATIONS;
+                });
+            }
+        }
+
+        if (only.isEmpty() || only.startsWith("sort")) {
+            for (ListSorter.Order order : ListSorter.Order.values()) {
+                bench.measure("sort." + order.name().toLowerCase(), params, () -> {
+                    Bench.sink += ListSorter.sort(mapped, order, true).size();
+                    return lines;
+                });
+            }
+        }
+
+        if (only.isEmpty() || only.startsWith("find")) {
+            bench.measure("find.buildIndex", params, () -> {
+                Bench.sink += new SearchIndex(mapped).find("1", true, 1).length;
+                return lines;
+            });
+            SearchIndex index = new SearchIndex(mapped);
+            for (boolean atStart : new boolean[]{true, false}) {
+                Random random = new Random(42);
+                bench.measure(atStart ? "find.index.prefix" : "find.index.substring", params, () -> {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        // Every line starts with its number, so this finds one line (and any line containing it)
+                        Bench.sink += index.find(random.nextInt(lines) + " ", atStart, 21).length;
+                    }
+                    return OPERATIONS;
+                });
+            }
+            Random random = new Random(42);
+            bench.measure("find.scan.substring", params, () -> {
+                // What finding costs without the index, every line has to be decoded and looked at
+                String text = random.nextInt(lines) + " ";
+                int found = 0;
+                for (int i = 0; i < mapped.size() && found < 21; i++) {
+                    if (SearchIndex.matches(mapped.get(i), text, false)) {
+                        found++;
+                    }
+                }
+                Bench.sink += found;
+                return 1;
+            });
+        }
+
+        if (only.isEmpty() || only.startsWith("format")) {
+            for (ListFormat format : ListFormat.values()) {
+                String name = format.name().toLowerCase();
+                Path converted = dir.resolve("list." + name);
+                NIOFileEditing.writeFile(mapped, converted, format);
+                // The size of the file goes in with the results, it is what the compressed format is for
+                Map<String, String> withSize = new LinkedHashMap<>(params);
+                withSize.put("bytes", String.valueOf(Files.size(converted)));
+                bench.measure("format.save." + name, withSize, () -> {
+                    NIOFileEditing.writeFile(mapped, saved, format);
+                    Files.delete(saved);
+                    return lines;
+                });
+                bench.measure("format.open." + name, withSize, () -> {
+                    Bench.sink += NIOFileEditing.readLines(converted).size();
+                    return lines;
+                });
+                List<String> opened = NIOFileEditing.readLines(converted);
+                Random random = new Random(42);
+                bench.measure("format.get." + name, withSize, () -> {
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        Bench.sink += opened.get(random.nextInt(lines)).length();
+                    }
+                    return OPERATIONS;
+                });
+                // Reading one item without opening the list, a text file has to be read up to the item
+                int reads = format == ListFormat.TEXT ? 10 : OPERATIONS;
+                bench.measure("format.readItem." + name, withSize, () -> {
+                    for (int i = 0; i < reads; i++) {
+                        Bench.sink += ListFormat.readItem(converted, random.nextInt(lines)).length();
+                    }
+                    return reads;
+                });
+                Files.delete(converted);
+            }
+        }
+
+        if (only.isEmpty() || only.startsWith("pipeline")) {
+            // The list as CSV and JSON lines files, then imported back with the threads in ListPipeline
+            Path csv = dir.resolve("list.csv");
+            Path jsonl = dir.resolve("list.jsonl");
+            ListPipeline.parse("--header").exportFile(file, csv);
+            new ListPipeline().exportFile(file, jsonl);
+            long items = lines;
+            for (Path source : List.of(csv, jsonl, file)) {
+                String name = source == file ? "lines" : source == csv ? "csv" : "jsonl";
+                Map<String, String> withSize = new LinkedHashMap<>(params);
+                withSize.put("bytes", String.valueOf(Files.size(source)));
+                bench.measure("pipeline.import." + name, withSize, () -> {
+                    ListPipeline.parse(source == csv ? "--header" : "").importFile(source, saved);
+                    Files.delete(saved);
+                    return items;
+                });
+                bench.measure("pipeline.import." + name + ".stages", withSize, () -> {
+                    ListPipeline.parse((source == csv ? "--header " : "") + "--trim --match 1 --upper --unique")
+                            .importFile(source, saved);
+                    Files.delete(saved);
+                    return items;
+                });
+            }
+            // Quotes in the middle of unquoted fields and line breaks in quoted ones, the import has to cut the
+            // file into pieces where CsvCursor sees the records end (the "csv.quotes" check makes sure it does)
+            Path quotes = dir.resolve("quotes.csv");
+            try (BufferedWriter out = Files.newBufferedWriter(quotes)) {
+                for (int i = 0; i < lines; i++) {
+                    out.write(i + "\" ruler,\"two\nlines \"\"" + i + "\"\"\"\n");
+                }
+            }
+            Map<String, String> withQuotes = new LinkedHashMap<>(params);
+            withQuotes.put("bytes", String.valueOf(Files.size(quotes)));
+            bench.measure("pipeline.import.csv.quotes", withQuotes, () -> {
+                List<String> imported = new ArrayList<>();
+                ListPipeline.parse("--format csv").importInto(quotes, imported);
+                Bench.sink += imported.size();
+                return items;
+            });
+            Files.delete(quotes);
+
+            Path exported = dir.resolve("exported.csv");
+            bench.measure("pipeline.export.csv", params, () -> {
+                new ListPipeline().exportFile(file, exported);
+                Files.delete(exported);
+                return items;
+            });
+            Files.delete(csv);
+            Files.delete(jsonl);
+        }
+
+        Files.deleteIfExists(saved);
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Benchmarks SafeInput on a long stream of scripted input
+     */
+    private static void validation(Bench bench, String only) throws Exception {
+        if (!only.isEmpty() && !only.startsWith("validation")) {
+            return;
+        }
+        // Every prompt is printed, so send them nowhere while measuring
+        PrintStream console = System.out;
+        StringBuilder menuPicks = new StringBuilder();
+        StringBuilder numbers = new StringBuilder();
+        String picks = "AaDdVvNnPpJjQqOoSsCc";
+        for (int i = 0; i < 100_000; i++) {
+            // Every tenth answer is wrong and has to be asked again
+            menuPicks.append(i % 10 == 0 ? "x\n" : "").append(picks.charAt(i % picks.length())).append('\n');
+            numbers.append(i % 10 == 0 ? "abc\n" : "").append(i % 1000).append('\n');
+        }
+        String menuInput = menuPicks.toString();
+        String numberInput = numbers.toString();
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("inputs", "100000");
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            bench.measure("validation.getRegExString", params, () -> {
+                Scanner in = new Scanner(menuInput);
+                for (int i = 0; i < 100_000; i++) {
+                    Bench.sink += SafeInput.getRegExString(in, "Menu", "[AaDdVvNnPpJjQqOoSsCc]").length();
+                }
+                return 100_000;
+            });
+            bench.measure("validation.getRegExString.pattern", params, () -> {
+                Scanner in = new Scanner(menuInput);
+                for (int i = 0; i < 100_000; i++) {
+                    Bench.sink += SafeInput.getRegExString(in, "Menu", Main.MENU_PICKS).length();
+                }
+                return 100_000;
+            });
+            bench.measure("validation.getRangedInt", params, () -> {
+                Scanner in = new Scanner(numberInput);
+                for (int i = 0; i < 100_000; i++) {
+                    Bench.sink += SafeInput.getRangedInt(in, "Number", 0, 999);
+                }
+                return 100_000;
+            });
+
+            // How SafeInput validated before patterns were cached and numbers were parsed without exceptions
+            bench.measure("validation.legacy.patternMatches", params, () -> {
+                Scanner in = new Scanner(menuInput);
+                int valid = 0;
+                while (valid < 100_000) {
+                    System.out.print("\n" + "Menu" + ": ");
+                    String input = in.nextLine().trim();
+                    if (Pattern.matches("[AaDdVvNnPpJjQqOoSsCc]", input)) {
+                        valid++;
+                    } else {
+                        System.out.println("Invalid input. Please enter a string matching the pattern: [AaDdVvNnPpJjQqOoSsCc]");
+                    }
+                }
+                return 100_000;
+            });
+            bench.measure("validation.legacy.parseIntException", params, () -> {
+                Scanner in = new Scanner(numberInput);
+                int valid = 0;
+                while (valid < 100_000) {
+                    System.out.print("\n" + "Number" + ": ");
+                    try {
+                        int value = Integer.parseInt(in.nextLine());
+                        if (value >= 0 && value <= 999) {
+                            valid++;
+                        }
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid input. Please enter an integer.");
+                    }
+                }
+                return 100_000;
+            });
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Writes a list file with a given number and shape of lines
+     */
+    private static void writeData(Path file, int lines, int length, boolean multiByte) throws Exception {
+        String letters = multiByte ? "aé中bü€cñ" : "abcdefghij";
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                line.setLength(0);
+                line.append(i).append(' ');
+                while (line.length() < length) {
+                    line.append(letters.charAt(line.length() % letters.length()));
+                }
+                writer.append(line).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Load test for ListServer over loopback
+ *
+ * Starts a server on a temp list file (or uses one that is already running with --port)
+ * and drives it from one selector thread with many connections. Each connection sends its
+ * next command as soon as the reply to its last one is in, so the server always has one
+ * command from every connection to work on. Throughput and latency percentiles are
+ * reported for each number of connections.
+ *
+ *   --connections  numbers of connections to try (1 up to 1000)
+ *   --seconds      measured seconds for each number of connections, after --warmup seconds
+ *   --reads        percent of the commands that are GETs, the rest are ADDs
+ *   --items        items in the list the server starts with
+ *   --range        items asked for by each GET
+ *   --threads      socket threads of the server started here
+ *   --port         port of a running server, 0 to start one here
+ */
+public class ListServerLoadTest {
+
+    /**
+     * One client connection and the command it is waiting on
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(1 << 16);
+        ByteBuffer output;
+        long sent;
+        // Lines of the reply still to come, -1 while waiting for the first one
+        int linesLeft = -1;
+        boolean isGet;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("connections", "1,10,100,1000");
+        defaults.put("seconds", "5");
+        defaults.put("warmup", "2");
+        defaults.put("reads", "90");
+        defaults.put("items", "100000");
+        defaults.put("range", "20");
+        defaults.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        defaults.put("port", "0");
+        defaults.put("out", "bench-results/list-server.json");
+        Map<String, String> options = Bench.options(args, defaults);
+
+        int port = Integer.parseInt(options.get("port"));
+        ListServer server = null;
+        Path dir = null;
+        Path file = null;
+        if (port == 0) {
+            dir = Files.createTempDirectory("list-server-bench");
+            file = dir.resolve("list.txt");
+            List<String> items = new ArrayList<>();
+            for (int i = 0; i < Integer.parseInt(options.get("items")); i++) {
+                items.add(i + " item of the load test");
+            }
+            NIOFileEditing.writeFile(items, file);
+            server = new ListServer(file, 0, Integer.parseInt(options.get("threads")));
+            server.start();
+            port = server.port();
+        }
+
+        Bench bench = new Bench(0, 1);
+        for (String connections : options.get("connections").split(",")) {
+            Map<String, String> params = new LinkedHashMap<>();
+            params.put("connections", connections);
+            params.put("reads", options.get("reads") + "%");
+            params.put("range", options.get("range"));
+            run(bench, params, port, Integer.parseInt(connections), Integer.parseInt(options.get("reads")),
+                    Integer.parseInt(options.get("range")), Integer.parseInt(options.get("items")),
+                    Double.parseDouble(options.get("warmup")), Double.parseDouble(options.get("seconds")));
+        }
+
+        if (server != null) {
+            server.stop();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".journal"));
+            Files.deleteIfExists(dir);
+        }
+        bench.writeJson(Paths.get(options.get("out")));
+    }
+
+    /**
+     * Runs the load with one number of connections and reports it
+     */
+    private static void run(Bench bench, Map<String, String> params, int port, int connections, int reads,
+                            int range, int items, double warmupSeconds, double seconds) throws IOException {
+        Random random = new Random(42);
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        long errors = 0;
+        try (Selector selector = Selector.open()) {
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+            for (Client client : clients) {
+                send(client, random, reads, range, items);
+            }
+
+            long start = System.nanoTime();
+            long measureFrom = start + (long) (warmupSeconds * 1e9);
+            long measureTo = measureFrom + (long) (seconds * 1e9);
+            long now = start;
+            while (now < measureTo) {
+                selector.select(100);
+                now = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Client client = (Client) key.attachment();
+                    if (key.isWritable()) {
+                        client.channel.write(client.output);
+                        key.interestOps(client.output.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                : SelectionKey.OP_READ);
+                    }
+                    if (!key.isReadable()) {
+                        continue;
+                    }
+                    if (client.channel.read(client.input) < 0) {
+                        throw new IOException("Server closed a connection");
+                    }
+                    // Count the lines of the reply that have come in
+                    ByteBuffer input = client.input.flip();
+                    byte[] bytes = input.array();
+                    int start0 = input.position();
+                    boolean done = false;
+                    for (int i = start0; i < input.limit() && !done; i++) {
+                        if (bytes[i] != '\n') {
+                            continue;
+                        }
+                        if (client.linesLeft < 0) {
+                            String header = new String(bytes, start0, i - start0, StandardCharsets.UTF_8);
+                            if (!header.startsWith("OK")) {
+                                errors++;
+                                client.linesLeft = 0;
+                            } else {
+                                client.linesLeft = client.isGet ? Integer.parseInt(header.substring(3)) : 0;
+                            }
+                        } else {
+                            client.linesLeft--;
+                        }
+                        start0 = i + 1;
+                        done = client.linesLeft == 0;
+                    }
+                    input.position(start0);
+                    input.compact();
+                    if (done) {
+                        if (client.sent >= measureFrom) {
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = now - client.sent;
+                        }
+                        client.linesLeft = -1;
+                        send(client, random, reads, range, items);
+                        if (client.output.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (Client client : clients) {
+                client.channel.close();
+            }
+        }
+
+        Arrays.sort(latencies, 0, count);
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        percentiles.put("p50", percentile(latencies, count, 0.50));
+        percentiles.put("p99", percentile(latencies, count, 0.99));
+        percentiles.put("p99.9", percentile(latencies, count, 0.999));
+        percentiles.put("max", count > 0 ? latencies[count - 1] / 1e6 : 0);
+        if (errors > 0) {
+            params.put("errors", String.valueOf(errors));
+        }
+        bench.report("server.mixed", params, count / seconds, percentiles);
+    }
+
+    /**
+     * Sends the next command of a connection, a GET of a random range or an ADD
+     */
+    private static void send(Client client, Random random, int reads, int range, int items) throws IOException {
+        client.isGet = random.nextInt(100) < reads;
+        String command = client.isGet
+                ? "GET " + (1 + random.nextInt(items)) + " " + range + "\n"
+                : "ADD load test item " + random.nextInt() + "\n";
+        client.output = ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8));
+        client.sent = System.nanoTime();
+        client.channel.write(client.output);
+    }
+
+    private static double percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(count - 1, Math.ceil(fraction * count) - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long the program takes to start, for each way of launching it
+ *
+ * Every launch is a new process started in an empty folder. The time is taken from
+ * starting the process until the menu is printed, which is when a user can type, and
+ * the resident memory of the process is read from /proc at that point. Then the program
+ * is told to quit. Run ./build.sh first, it makes the jar, the class data sharing archive
+ * and the native executable that the launch modes use; modes whose files weren't built
+ * are skipped.
+ *
+ *   default       java -cp filelist.jar Main
+ *   appcds        the same with the class data sharing archive
+ *   appcds-tuned  the archive, the serial collector and only the C1 compiler
+ *   native        the native executable
+ *
+ *   --dir     folder build.sh put its files in
+ *   --modes   launch modes to measure
+ *   --runs    measured launches of each mode, after --warmup launches
+ */
+public class StartupBenchmark {
+
+    // What the menu ends with, the program is waiting for input once this is printed
+    private static final String PROMPT = "Quit (Q)";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("dir", "out/dist");
+        defaults.put("modes", "default,appcds,appcds-tuned,native");
+        defaults.put("runs", "20");
+        defaults.put("warmup", "3");
+        defaults.put("out", "bench-results/startup.json");
+        Map<String, String> options = Bench.options(args, defaults);
+
+        Path dir = Paths.get(options.get("dir")).toAbsolutePath();
+        if (!Files.exists(dir.resolve("filelist.jar"))) {
+            System.err.println("There is no " + dir.resolve("filelist.jar") + ", run ./build.sh first");
+            System.exit(2);
+        }
+        int runs = Integer.parseInt(options.get("runs"));
+        int warmups = Integer.parseInt(options.get("warmup"));
+
+        Bench bench = new Bench(warmups, runs);
+        Path work = Files.createTempDirectory("startup-bench");
+        for (String mode : options.get("modes").split(",")) {
+            List<String> command = command(mode, dir);
+            if (command == null) {
+                System.out.println("Skipping " + mode + ", it wasn't built");
+                continue;
+            }
+            for (int i = 0; i < warmups; i++) {
+                launch(command, work);
+            }
+            long[] times = new long[runs];
+            long[] memory = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                long[] launch = launch(command, work);
+                times[i] = launch[0];
+                memory[i] = launch[1];
+            }
+            Arrays.sort(times);
+            Arrays.sort(memory);
+
+            Map<String, String> params = new LinkedHashMap<>();
+            params.put("mode", mode);
+            Map<String, Double> percentiles = new LinkedHashMap<>();
+            percentiles.put("p50", percentile(times, 0.50));
+            percentiles.put("p90", percentile(times, 0.90));
+            percentiles.put("max", times[runs - 1] / 1e6);
+            Map<String, Double> sizes = new LinkedHashMap<>();
+            sizes.put("rss.p50", memory[runs / 2] / 1024.0 / 1024);
+            sizes.put("rss.max", memory[runs - 1] / 1024.0 / 1024);
+            // The score is launches per second at the median time to the first prompt
+            bench.report("startup.firstPrompt", params, 1e3 / percentiles.get("p50"), percentiles, sizes);
+        }
+
+        try (var files = Files.list(work)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(work);
+        bench.writeJson(Paths.get(options.get("out")));
+    }
+
+    /**
+     * Works out the command line of a launch mode
+     *
+     * @return the command, or null if the mode wasn't built or isn't known
+     */
+    private static List<String> command(String mode, Path dir) {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String jar = dir.resolve("filelist.jar").toString();
+        String archive = "-XX:SharedArchiveFile=" + dir.resolve("filelist.jsa");
+        // The menu is used without a window so the file chooser doesn't count
+        String text = "-Dfilelist.chooser=text";
+        switch (mode) {
+            case "default":
+                return List.of(java, text, "-cp", jar, "Main");
+            case "appcds":
+                return Files.exists(dir.resolve("filelist.jsa"))
+                        ? List.of(java, archive, "-Xshare:on", text, "-cp", jar, "Main") : null;
+            case "appcds-tuned":
+                return Files.exists(dir.resolve("filelist.jsa"))
+                        ? List.of(java, archive, "-Xshare:on", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1", text,
+                        "-cp", jar, "Main") : null;
+            case "native":
+                return Files.isExecutable(dir.resolve("filelist"))
+                        ? List.of(dir.resolve("filelist").toString(), text) : null;
+            default:
+                System.err.println("Unknown launch mode " + mode);
+                return null;
+        }
+    }
+
+    /**
+     * Starts the program, waits for the menu and quits it
+     *
+     * @return the nanoseconds until the menu was printed and the resident bytes at that point
+     */
+    private static long[] launch(List<String> command, Path work) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).directory(work.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        StringBuilder output = new StringBuilder();
+        byte[] buffer = new byte[8192];
+        InputStream in = process.getInputStream();
+        int read;
+        while (output.indexOf(PROMPT) < 0 && (read = in.read(buffer)) > 0) {
+            output.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        }
+        long elapsed = System.nanoTime() - start;
+        if (output.indexOf(PROMPT) < 0) {
+            throw new IOException("The program stopped before showing the menu: " + command);
+        }
+        long resident = residentBytes(process.pid());
+
+        try (OutputStream out = process.getOutputStream()) {
+            out.write("Q\ny\n".getBytes(StandardCharsets.UTF_8));
+        }
+        in.transferTo(OutputStream.nullOutputStream());
+        process.waitFor();
+        return new long[]{elapsed, resident};
+    }
+
+    /**
+     * Reads the resident memory of a process, which is only known on Linux
+     *
+     * @return the resident bytes, 0 if they can't be read
+     */
+    private static long residentBytes(long pid) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return 0;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,16 @@
+#!/bin/sh
+# Compiles the program and the benchmark module and runs the benchmarks
+# Usage: bench/run.sh [BenchmarkClass] [--lines 1000,1000000] [--out results.json] ...
+#        bench/run.sh Checks [check names]   runs the checks instead, see bench/Checks.java
+cd "$(dirname "$0")/.." || exit 1
+
+main=FileListBenchmarks
+case "$1" in
+    --*|"") ;;
+    *) main=$1; shift ;;
+esac
+
+classes=out/bench-run
+mkdir -p "$classes"
+javac -encoding UTF-8 -d "$classes" src/*.java bench/*.java || exit 1
+exec java -Xmx8g -cp "$classes" "$main" "$@"
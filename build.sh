@@ -0,0 +1,61 @@
+#!/bin/sh
+# Builds the program for a fast start
+#
+# Makes out/dist/filelist.jar, a class data sharing archive for it (out/dist/filelist.jsa)
+# and, if GraalVM's native-image is on the PATH, a native executable (out/dist/filelist).
+# out/dist/filelist.sh starts the fastest of them that was built.
+#
+# The archive holds the JDK and program classes that a few training runs loaded, already
+# parsed and verified, so the JVM maps them in instead of loading them again at every start.
+# It only works with the JDK that made it, run build.sh again after changing JDKs.
+#
+# Usage: ./build.sh [--no-native]
+cd "$(dirname "$0")" || exit 1
+
+native=yes
+[ "$1" = "--no-native" ] && native=no
+
+dist=out/dist
+rm -rf "$dist"
+mkdir -p "$dist/classes"
+javac -encoding UTF-8 -d "$dist/classes" src/*.java || exit 1
+jar --create --file "$dist/filelist.jar" --main-class Main -C "$dist/classes" . || exit 1
+rm -rf "$dist/classes"
+
+jar=$(pwd)/$dist/filelist.jar
+classlist=$(pwd)/$dist/filelist.classlist
+
+# Training runs, in a folder of their own since the program writes its files where it runs.
+# The menu is used without a window, the chooser would load Swing into the archive.
+training=$(mktemp -d) || exit 1
+(
+    cd "$training" || exit 1
+    printf 'A\nmilk\nA\neggs\nF\nmilk\nR\nT\nn\nS\ntraining\nT\nQ\ny\n' \
+        | java -XX:DumpLoadedClassList=menu.classlist -Dfilelist.chooser=text -cp "$jar" Main > menu.out
+    printf 'milk\neggs\nbread\n' > list.txt
+    printf 'A butter\nD 1\nS\n' | java -XX:DumpLoadedClassList=batch.classlist -cp "$jar" Main --batch list.txt > batch.out
+    printf 'a,b\n"tea, green",1\ncoffee,2\n' > items.csv
+    java -XX:DumpLoadedClassList=import.classlist -cp "$jar" Main --import --header --field a items.csv list.txt > import.out
+    cat menu.classlist batch.classlist import.classlist > "$classlist"
+) || { rm -rf "$training"; exit 1; }
+rm -rf "$training"
+
+java -Xshare:dump -XX:SharedClassListFile="$classlist" -XX:SharedArchiveFile="$dist/filelist.jsa" \
+    -cp "$jar" > "$dist/filelist.jsa.log" 2>&1 || { cat "$dist/filelist.jsa.log"; exit 1; }
+
+# JFR is kept in the native image so -XX:StartFlightRecording still records the operations
+if [ "$native" = yes ] && command -v native-image > /dev/null; then
+    native-image --no-fallback --enable-monitoring=jfr -jar "$dist/filelist.jar" -o "$dist/filelist" || exit 1
+fi
+
+# The serial collector starts faster and uses less memory than G1, which is only worth it for big heaps
+cat > "$dist/filelist.sh" <<'EOF'
+#!/bin/sh
+dist=$(dirname "$0")
+if [ -x "$dist/filelist" ]; then
+    exec "$dist/filelist" "$@"
+fi
+exec java -XX:SharedArchiveFile="$dist/filelist.jsa" -XX:+UseSerialGC -cp "$dist/filelist.jar" Main "$@"
+EOF
+chmod +x "$dist/filelist.sh"
+echo "Built $dist"
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the list on a background thread a little while after it was edited
+ *
+ * Every edit (re)starts a timer, and the save only runs once no edit has been made for the
+ * whole delay, so a burst of edits is saved with one write. Edits that keep coming could
+ * push the save back forever, so it never waits longer than a maximum from the first edit
+ * that hasn't been saved. The save itself runs on its own thread, so the menu never waits
+ * for it.
+ *
+ * Turn it on with -Dfilelist.autosaveMillis=2000 (the delay in milliseconds). The longest
+ * wait is -Dfilelist.autosaveMaxMillis, five times the delay if it isn't given.
+ */
+public class AutoSaver {
+
+    /**
+     * The work done by one autosave
+     */
+    public interface SaveTask {
+        /**
+         * @return the number of bytes that were written, or -1 if there was nothing to save
+         * @throws IOException if the list couldn't be saved
+         */
+        long save() throws IOException;
+    }
+
+    private final SaveTask task;
+    private final long delayMillis;
+    private final long maxWaitMillis;
+    private final ScheduledExecutorService executor;
+    // The save waiting for its delay to run out, if there is one
+    private ScheduledFuture<?> pending;
+    // When the first edit that the pending save is waiting for was made (System.nanoTime())
+    private long firstEditNanos;
+
+    // Metrics
+    private long saves;
+    private long skipped;
+    private long coalesced;
+    private long failures;
+    private long bytesWritten;
+    private long totalNanos;
+    private long maxNanos;
+    private long lastNanos;
+
+    /**
+     * @param task what to do to save the list
+     * @param delayMillis how long the list has to go without edits before it is saved
+     * @param maxWaitMillis the longest a save waits after the first edit it saves, however many edits follow
+     */
+    public AutoSaver(SaveTask task, long delayMillis, long maxWaitMillis) {
+        this.task = task;
+        this.delayMillis = delayMillis;
+        this.maxWaitMillis = Math.max(delayMillis, maxWaitMillis);
+        // A daemon thread, so a save that hasn't started yet doesn't keep the program running
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates an autosaver if one was asked for with -Dfilelist.autosaveMillis
+     * (and -Dfilelist.autosaveMaxMillis)
+     *
+     * @param task what to do to save the list
+     * @return the autosaver, or null if autosave is off
+     */
+    public static AutoSaver fromProperty(SaveTask task) {
+        long delay = Long.getLong("filelist.autosaveMillis", 0);
+        if (delay <= 0) {
+            return null;
+        }
+        return new AutoSaver(task, delay, Long.getLong("filelist.autosaveMaxMillis", delay * 5));
+    }
+
+    /**
+     * Called after every edit, pushes the next save back to a full delay from now,
+     * but not past the longest wait from the first edit it will save
+     */
+    public synchronized void edited() {
+        long now = System.nanoTime();
+        if (pending != null && pending.cancel(false)) {
+            coalesced++; // this edit will be saved by the same write as the one before it
+        } else {
+            firstEditNanos = now; // nothing is waiting to be saved, so this edit starts the wait
+        }
+        long untilMax = maxWaitMillis - TimeUnit.NANOSECONDS.toMillis(now - firstEditNanos);
+        pending = executor.schedule(this::run, Math.max(0, Math.min(delayMillis, untilMax)), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the save that is waiting to run, if there is one
+     */
+    public synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        try {
+            long bytes = task.save();
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                if (bytes < 0) {
+                    skipped++;
+                } else {
+                    saves++;
+                    bytesWritten += bytes;
+                    totalNanos += elapsed;
+                    maxNanos = Math.max(maxNanos, elapsed);
+                    lastNanos = elapsed;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                failures++;
+            }
+        }
+    }
+
+    public synchronized long getSaves() {
+        return saves;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getLastLatencyNanos() {
+        return lastNanos;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long getAverageLatencyNanos() {
+        return saves == 0 ? 0 : totalNanos / saves;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Autosave: %d saves, %d bytes written, %d edits coalesced, %d skipped, %d failed,"
+                        + " latency avg %.2f ms / max %.2f ms / last %.2f ms",
+                saves, bytesWritten, coalesced, skipped, failures,
+                getAverageLatencyNanos() / 1e6, maxNanos / 1e6, lastNanos / 1e6);
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Runs the list operations without the menu, so the program can be used from scripts
+ *
+ * Usage:
+ *   java Main --batch list.txt              read operations from stdin
+ *   java Main --batch list.txt ops.txt      read operations from a file ("-" is stdin)
+ *   java Main --batch list.txt -- "A milk" "D 1"   take operations from the arguments
+ *
+ * One operation per line:
+ *   A item   add an item to the end of the list
+ *   D n      delete item number n (counting from 1)
+ *   C        clear the list
+ *   S        save the list to the list file
+ *   Q        stop, without saving the edits made since the last S
+ * Blank lines and lines starting with # are skipped. When the operations run out the
+ * list is saved if it was changed.
+ *
+ * Nothing is printed while the operations run and the file is opened by path, so the
+ * Swing file chooser is never loaded.
+ */
+public class BatchRunner {
+
+    // Size of the buffer used to read the operations
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Runs a batch from the command line arguments
+     *
+     * @param args the arguments after "--batch"
+     * @return the exit status, 0 if every operation worked
+     */
+    public static int run(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: java Main --batch <list file> [<operations file> | - | -- <operation>...]");
+            return 2;
+        }
+        Path file = Paths.get(args[0]);
+
+        try (BufferedReader operations = new BufferedReader(operations(args), READ_BUFFER_SIZE)) {
+            // Saved edits that are still in a journal are folded in first, so the operations see them
+            ListJournal.foldInto(file);
+            List<String> list = Files.exists(file) ? NIOFileEditing.readLines(file) : new GapBufferList<>();
+            boolean needsToBeSaved = false;
+            long count = 0;
+            long lineNumber = 0;
+            String line;
+            while ((line = operations.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                char op = Character.toUpperCase(line.charAt(0));
+                String argument = line.length() > 1 ? line.substring(line.charAt(1) == ' ' ? 2 : 1) : "";
+                switch (op) {
+                    case 'A':
+                        if (argument.isEmpty()) {
+                            return error(lineNumber, "item can't be empty");
+                        }
+                        list.add(argument);
+                        needsToBeSaved = true;
+                        break;
+                    case 'D':
+                        int number = SafeInput.parseNumber(argument);
+                        if (number < 1 || number > list.size()) {
+                            return error(lineNumber, "no item number \"" + argument + "\" in a list of " + list.size());
+                        }
+                        list.remove(number - 1);
+                        needsToBeSaved = true;
+                        break;
+                    case 'C':
+                        list = new GapBufferList<>();
+                        needsToBeSaved = true;
+                        break;
+                    case 'S':
+                        NIOFileEditing.writeFile(list, file);
+                        needsToBeSaved = false;
+                        break;
+                    case 'Q':
+                        needsToBeSaved = false;
+                        System.out.println(count + " operations, " + list.size() + " items, stopped without saving");
+                        return 0;
+                    default:
+                        return error(lineNumber, "unknown operation \"" + line + "\"");
+                }
+                count++;
+            }
+            if (needsToBeSaved) {
+                NIOFileEditing.writeFile(list, file);
+            }
+            System.out.println(count + " operations, " + list.size() + " items in " + file);
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * Works out where the operations come from
+     *
+     * @param args the arguments after "--batch"
+     * @return a reader of the operations
+     * @throws IOException if the operations file can't be opened
+     */
+    private static Reader operations(String[] args) throws IOException {
+        if (args.length == 1 || args[1].equals("-")) {
+            return new InputStreamReader(System.in, StandardCharsets.UTF_8);
+        }
+        if (args[1].equals("--")) {
+            StringBuilder operations = new StringBuilder();
+            for (int i = 2; i < args.length; i++) {
+                operations.append(args[i]).append('\n');
+            }
+            return new StringReader(operations.toString());
+        }
+        return Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8);
+    }
+
+    private static int error(long lineNumber, String message) {
+        System.err.println("Operation " + lineNumber + ": " + message + ", nothing more was saved");
+        return 1;
+    }
+}
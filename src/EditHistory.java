@@ -0,0 +1,246 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * The edits made to a list, so they can be undone and redone
+ *
+ * Instead of copying the list for every step, each step remembers only what is needed to
+ * do the edit the other way around: an add or a delete keeps the position and the item,
+ * so it costs the same few bytes however long the list is. Clearing or sorting the list
+ * doesn't change the old list, it replaces it with a new one, so that step keeps the old
+ * list itself (and its search index) and undoing it just swaps the two lists back. That
+ * makes undoing a clear of millions of items instant, the items were never thrown away.
+ *
+ * There is no limit on the number of steps. Making a new edit drops the steps that were
+ * undone, like in any editor, and the history of a list goes away when the list is closed.
+ *
+ * The history also marks where the list was last saved, so the saved list can be worked
+ * out from the list with unsaved edits by undoing (or redoing) the steps made since on a
+ * copy. That is what gets written when the saved edits in the journal can't be folded
+ * into the list file any more, without the unsaved edits the user didn't want to keep.
+ * Undone steps that lead to the saved list are kept when a new edit drops them.
+ */
+public class EditHistory {
+
+    /**
+     * What kind of edit a step was
+     */
+    public enum Kind {
+        ADD,
+        DELETE,
+        REPLACE
+    }
+
+    /**
+     * One edit that can be undone, or redone after it was undone
+     */
+    public static class Step {
+        final Kind kind;
+        // Position and item of an add or a delete
+        final int index;
+        final String item;
+        // For a replace, the list (and its search index) that is swapped in when the step is undone or redone
+        List<String> list;
+        SearchIndex searchIndex;
+
+        Step(Kind kind, int index, String item, List<String> list, SearchIndex searchIndex) {
+            this.kind = kind;
+            this.index = index;
+            this.item = item;
+            this.list = list;
+            this.searchIndex = searchIndex;
+        }
+
+        /**
+         * Keeps the list that is being swapped out by a replace, so undo and redo can swap it back
+         *
+         * @param list the list that was current
+         * @param searchIndex its search index, or null
+         */
+        void swapped(List<String> list, SearchIndex searchIndex) {
+            this.list = list;
+            this.searchIndex = searchIndex;
+        }
+    }
+
+    private final ArrayDeque<Step> undo = new ArrayDeque<>();
+    private final ArrayDeque<Step> redo = new ArrayDeque<>();
+    // Where the list was last saved: after the first savedAt steps that can be undone and then the steps
+    // in savedBranch, -1 if the saved list can't be got back
+    private int savedAt = 0;
+    // Undone steps leading to the saved list that a new edit dropped, in the order they were made
+    private final ArrayDeque<Step> savedBranch = new ArrayDeque<>();
+
+    /**
+     * Records that an item was added
+     *
+     * @param index position of the new item
+     * @param item the new item
+     */
+    public void added(int index, String item) {
+        push(new Step(Kind.ADD, index, item, null, null));
+    }
+
+    /**
+     * Records that an item was deleted
+     *
+     * @param index position the item was at
+     * @param item the deleted item
+     */
+    public void deleted(int index, String item) {
+        push(new Step(Kind.DELETE, index, item, null, null));
+    }
+
+    /**
+     * Records that the list was replaced by another one, by a clear or a sort
+     *
+     * @param before the list before it was replaced, it must not be changed after this
+     * @param searchIndex the search index of that list, or null
+     */
+    public void replaced(List<String> before, SearchIndex searchIndex) {
+        push(new Step(Kind.REPLACE, 0, null, before, searchIndex));
+    }
+
+    /**
+     * Takes the last edit to undo it, it can be redone after that
+     *
+     * @return the step to undo, or null if there is nothing to undo
+     */
+    public Step undo() {
+        Step step = undo.pollLast();
+        if (step != null) {
+            redo.addLast(step);
+        }
+        return step;
+    }
+
+    /**
+     * Takes the last undone edit to do it again
+     *
+     * @return the step to redo, or null if there is nothing to redo
+     */
+    public Step redo() {
+        Step step = redo.pollLast();
+        if (step != null) {
+            undo.addLast(step);
+        }
+        return step;
+    }
+
+    /**
+     * Marks the list as it is now as the saved one
+     */
+    public void saved() {
+        savedAt = undo.size();
+        savedBranch.clear();
+    }
+
+    /**
+     * Forgets where the list was saved, used when the saved list isn't one the steps lead to
+     */
+    public void unsaved() {
+        savedAt = -1;
+        savedBranch.clear();
+    }
+
+    /**
+     * Works out the list as it was when it was last saved
+     *
+     * @param list the list as it is now, it isn't changed
+     * @param copy makes a copy of a list that can be changed without changing the list
+     * @return a copy of the saved list, or null if it can't be worked out
+     */
+    public List<String> savedList(List<String> list, UnaryOperator<List<String>> copy) {
+        if (savedAt < 0) {
+            return null;
+        }
+        // Undo the steps made since the save, or redo the ones that were undone since, then do the dropped ones
+        List<Step> path = toSaved();
+        int undone = Math.max(0, undo.size() - savedAt);
+        path.addAll(savedBranch);
+        List<String> saved = list;
+        boolean copied = false;
+        for (int i = 0; i < path.size(); i++) {
+            Step step = path.get(i);
+            if (step.kind == Kind.REPLACE) {
+                saved = step.list; // the list that undoing or redoing it swaps in
+                copied = false;
+                continue;
+            }
+            if (!copied) {
+                saved = copy.apply(saved);
+                copied = true;
+            }
+            if ((step.kind == Kind.ADD) == (i < undone)) {
+                saved.remove(step.index);
+            } else {
+                saved.add(step.index, step.item);
+            }
+        }
+        return copied ? saved : copy.apply(saved);
+    }
+
+    /**
+     * @return the steps to undo or redo to get back to where the list was saved, or to where savedBranch starts
+     */
+    private List<Step> toSaved() {
+        List<Step> steps = new ArrayList<>();
+        boolean back = savedAt <= undo.size();
+        Iterator<Step> from = back ? undo.descendingIterator() : redo.descendingIterator();
+        for (int n = Math.abs(undo.size() - savedAt); n > 0; n--) {
+            steps.add(from.next());
+        }
+        return steps;
+    }
+
+    /**
+     * @return number of steps that can be undone
+     */
+    public int undoCount() {
+        return undo.size();
+    }
+
+    /**
+     * @return number of steps that can be redone
+     */
+    public int redoCount() {
+        return redo.size();
+    }
+
+    /**
+     * @return about how many bytes the steps keep in memory, including the lists kept by replaces
+     */
+    public long memorySize() {
+        return memorySize(undo) + memorySize(redo) + memorySize(savedBranch);
+    }
+
+    private static long memorySize(ArrayDeque<Step> steps) {
+        long bytes = 0;
+        for (Step step : steps) {
+            bytes += 40;
+            if (step.item != null) {
+                bytes += 56 + 2L * step.item.length();
+            }
+            if (step.list != null) {
+                bytes += Workspace.memorySize(step.list) + (step.searchIndex != null ? step.searchIndex.memorySize() : 0);
+            }
+        }
+        return bytes;
+    }
+
+    private void push(Step step) {
+        if (savedAt > undo.size()) {
+            // The saved list is reached by redoing steps that are about to be dropped, so they are kept
+            List<Step> branch = toSaved();
+            branch.addAll(savedBranch);
+            savedBranch.clear();
+            savedBranch.addAll(branch);
+            savedAt = undo.size();
+        }
+        undo.addLast(step);
+        redo.clear();
+    }
+}
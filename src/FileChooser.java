@@ -0,0 +1,37 @@
+import javax.swing.JFileChooser;
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * The Swing file chooser used to pick a list file
+ *
+ * It is in a class of its own so Swing and AWT are only loaded when a window is actually
+ * shown: they are a few hundred classes, which is most of what starting the program would
+ * load otherwise. NIOFileEditing.chooseFile(Scanner) asks for a typed path instead when
+ * there is no screen, or with -Dfilelist.chooser=text.
+ */
+public class FileChooser {
+
+    /**
+     * Lets the user pick a file in a window
+     * @return the file that was picked, or null if the chooser was closed without picking one
+     */
+    public static Path choose() {
+
+        JFileChooser chooser = new JFileChooser();
+
+        // use the toolkit to get the current working directory of the IDE
+        // Not sure if the toolkit is thread safe...
+        File workingDirectory = new File(System.getProperty("user.dir"));
+
+        // Typically, we want the user to pick the file, so we use a file chooser
+        // kind of ugly code to make the chooser work with NIO.
+        // Because the chooser is part of Swing it should be thread safe.
+        chooser.setCurrentDirectory(workingDirectory);
+
+        if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+            return chooser.getSelectedFile().toPath();
+        }
+        return null; // User closed the chooser without selecting a file
+    }
+}
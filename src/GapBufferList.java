@@ -0,0 +1,98 @@
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list kept in an array with a gap of free slots at the last place it was edited
+ *
+ * An ArrayList has all of its free space at the end, so adding or removing near the front
+ * moves every item after it. Here the free space (the gap) moves to wherever the list is
+ * edited, and further edits at that spot are O(1). Moving the gap only copies the items
+ * between the old and new spot, so deleting item after item near the front of a long list
+ * only pays to move the gap there once.
+ *
+ * The array is used as a ring, so the front of the list and the end of the list are both
+ * next to the gap when it is at either one. Adding to the end and deleting from the front
+ * in turn (like a queue) doesn't have to move the gap across the whole list, and the gap
+ * is always moved whichever way round the ring is shorter. The ring is kept by GapRing,
+ * which MappedLineList keeps its items in too.
+ *
+ * @param <E> the type of the items
+ */
+public class GapBufferList<E> extends AbstractList<E> implements RandomAccess {
+
+    // The ring of items, with a gap of free slots in it
+    private GapRing ring;
+
+    /**
+     * Creates an empty list
+     */
+    public GapBufferList() {
+        ring = new GapRing(new Object[10], 0);
+    }
+
+    /**
+     * Makes a copy of the list that later edits don't change
+     * Only the array is copied, the items themselves are shared
+     *
+     * @return the copy
+     */
+    public GapBufferList<E> snapshot() {
+        GapBufferList<E> copy = new GapBufferList<>();
+        copy.ring = ring.copy();
+        return copy;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        GapRing.checkIndex(index, size());
+        return (E) items()[ring.physical(index)];
+    }
+
+    @Override
+    public int size() {
+        return ring.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        GapRing.checkIndex(index, size());
+        Object[] items = items();
+        int at = ring.physical(index);
+        E old = (E) items[at];
+        items[at] = element;
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        int at = ring.insert(index);
+        items()[at] = element;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        int at = ring.remove(index);
+        Object[] items = items();
+        E old = (E) items[at];
+        items[at] = null; // let the item be garbage collected
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        ring = new GapRing(new Object[10], 0);
+        modCount++;
+    }
+
+    /**
+     * @return the array of the ring, read again after an add since the ring may have grown
+     */
+    private Object[] items() {
+        return (Object[]) ring.array;
+    }
+}
@@ -0,0 +1,226 @@
+import java.util.Arrays;
+
+/**
+ * The ring with a gap that GapBufferList and MappedLineList keep their items in
+ *
+ * The free slots (the gap) are moved to wherever the list is edited, so further edits at
+ * that spot are O(1) and moving the gap only copies the items between the old and new
+ * spot. The array is used as a ring, so the front and the end of the list are both next to
+ * the gap when it is at either one, and the gap is always moved whichever way round the
+ * ring is shorter.
+ *
+ * The ring only works out where each item is and moves the items around, the list reads
+ * and writes them itself: GapBufferList keeps its items in an Object[] and MappedLineList
+ * keeps its slots in an int[]. move() copies either kind of array.
+ */
+class GapRing {
+
+    // The ring of items, an Object[] or an int[], with a gap of free slots in it
+    Object array;
+    // Length of the array
+    private int capacity;
+    // Where item 0 is (or would be) in the array
+    private int base;
+    // Number of items before the gap
+    private int gap;
+    // Number of free slots in the gap
+    private int gapLength;
+
+    /**
+     * @param array the array to keep the items in, an Object[] or an int[]
+     * @param size number of items already at the start of the array
+     */
+    GapRing(Object array, int size) {
+        this.array = array;
+        this.capacity = array instanceof int[] ? ((int[]) array).length : ((Object[]) array).length;
+        this.gap = size;
+        this.gapLength = capacity - size;
+    }
+
+    /**
+     * Makes a copy of the ring that later edits don't change
+     *
+     * @return the copy, with a copy of the array
+     */
+    GapRing copy() {
+        GapRing copy = new GapRing(array instanceof int[] ? ((int[]) array).clone() : ((Object[]) array).clone(), 0);
+        copy.base = base;
+        copy.gap = gap;
+        copy.gapLength = gapLength;
+        return copy;
+    }
+
+    int size() {
+        return capacity - gapLength;
+    }
+
+    /**
+     * Finds where an item is stored in the array
+     *
+     * @param index position of the item in the list
+     * @return position of the item in the array
+     */
+    int physical(int index) {
+        return wrap(base + index + (index < gap ? 0 : gapLength));
+    }
+
+    /**
+     * Makes room for a new item, the list then stores it at the position that is returned
+     * The array may be replaced by a bigger one, so it has to be read again afterwards.
+     *
+     * @param index position of the new item in the list
+     * @return position of the new item in the array
+     */
+    int insert(int index) {
+        checkIndex(index, size() + 1);
+        if (gapLength == 0) {
+            grow();
+        }
+        moveGap(index);
+        int at = wrap(base + gap);
+        gap++;
+        gapLength--;
+        return at;
+    }
+
+    /**
+     * Takes an item out of the ring, its slot is part of the gap afterwards but still holds it
+     *
+     * @param index position of the item in the list
+     * @return position in the array the item was in
+     */
+    int remove(int index) {
+        checkIndex(index, size());
+        moveGap(index);
+        int at = wrap(base + gap + gapLength);
+        gapLength++;
+        return at;
+    }
+
+    /**
+     * Turns a position that may have gone around the ring into a position in the array
+     */
+    private int wrap(int position) {
+        if (position < 0) {
+            return position + capacity;
+        }
+        return position >= capacity ? position - capacity : position;
+    }
+
+    /**
+     * Moves the gap so it is right before a position in the list
+     *
+     * @param index the position the gap should be before
+     */
+    private void moveGap(int index) {
+        if (gapLength == 0) {
+            gap = index; // there is nothing to move, every item is in the same place wherever the gap is
+            return;
+        }
+        int size = size();
+        int distance = index - gap;
+        if (distance > 0) {
+            if (distance <= size - distance) {
+                shiftRight(distance);
+            } else {
+                // Shorter to go the other way round: back to the front, which is also the end
+                shiftLeft(gap);
+                base = wrap(base + gapLength);
+                gap = size;
+                shiftLeft(size - index);
+            }
+        } else if (distance < 0) {
+            if (-distance <= size + distance) {
+                shiftLeft(-distance);
+            } else {
+                // Shorter to go on to the end, which is also the front
+                shiftRight(size - gap);
+                base = wrap(base - gapLength);
+                gap = 0;
+                shiftRight(index);
+            }
+        }
+    }
+
+    /**
+     * Moves the gap towards the end of the list by moving the items after it to before it
+     * The items are copied in runs that don't go around the end of the array
+     */
+    private void shiftRight(int count) {
+        while (count > 0) {
+            int from = wrap(base + gap + gapLength);
+            int to = wrap(base + gap);
+            int run = Math.min(count, Math.min(capacity - from, capacity - to));
+            move(from, to, run);
+            gap += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Moves the gap towards the front of the list by moving the items before it to after it
+     * The items are copied in runs that don't go around the start of the array
+     */
+    private void shiftLeft(int count) {
+        while (count > 0) {
+            int fromEnd = wrap(base + gap - 1) + 1;
+            int toEnd = wrap(base + gap - 1 + gapLength) + 1;
+            int run = Math.min(count, Math.min(fromEnd, toEnd));
+            move(fromEnd - run, toEnd - run, run);
+            gap -= run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Moves a run of items within the array
+     * The array is cast first so the copy is compiled for the kind of array it is.
+     */
+    private void move(int from, int to, int run) {
+        if (array instanceof int[]) {
+            int[] slots = (int[]) array;
+            System.arraycopy(slots, from, slots, to, run);
+            return;
+        }
+        Object[] items = (Object[]) array;
+        System.arraycopy(items, from, items, to, run);
+        clearMoved(items, from, to, run);
+    }
+
+    /**
+     * Clears the slots that items were moved out of and that weren't filled again, so they can be garbage collected
+     */
+    private static void clearMoved(Object[] items, int from, int to, int run) {
+        if (to < from && to + run > from) {
+            Arrays.fill(items, to + run, from + run, null);
+        } else if (to > from && from + run > to) {
+            Arrays.fill(items, from, to, null);
+        } else {
+            Arrays.fill(items, from, from + run, null);
+        }
+    }
+
+    /**
+     * Makes the array bigger when the ring is full, the items are copied in order to the start of the new array
+     */
+    private void grow() {
+        int size = size();
+        int length = Math.max(10, size + (size >> 1));
+        Object bigger = array instanceof int[] ? new int[length] : new Object[length];
+        // With no gap the items go round the ring from base, which is at most two runs
+        int first = Math.min(size, capacity - base);
+        System.arraycopy(array, base, bigger, 0, first);
+        System.arraycopy(array, 0, bigger, first, size - first);
+        array = bigger;
+        capacity = length;
+        base = 0;
+        gap = size;
+        gapLength = length - size;
+    }
+
+    static void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + bound);
+        }
+    }
+}
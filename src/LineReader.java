@@ -0,0 +1,224 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads the items of a list file one at a time through a FileChannel
+ *
+ * Unlike MappedLineList nothing is kept about the items that were already read, so a file
+ * of any size can be streamed through with only the buffer in memory. Every ListFormat can
+ * be read: text lines are decoded as UTF-8 and a "\r" before the "\n" is dropped, the same
+ * way MappedLineList reads them, binary items are read by their length and compressed
+ * blocks are unpacked one at a time.
+ */
+public class LineReader implements Closeable, Iterable<String> {
+
+    // Size of the buffer the file is read into, it grows if a line doesn't fit
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ListFormat format;
+    // Where the items end, the table of a binary or compressed file isn't read as items
+    private final long end;
+    // Where the next read from the file starts
+    private long position;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).limit(0);
+    private boolean endOfFile;
+    // The compressed block being read, and where its next line starts
+    private byte[] block = new byte[0];
+    private int blockPosition;
+
+    /**
+     * @param file the file to read
+     * @throws IOException if the file can't be opened
+     */
+    public LineReader(Path file) throws IOException {
+        channel = FileChannel.open(file, READ);
+        try {
+            format = ListFormat.detect(channel);
+            if (format == ListFormat.TEXT) {
+                end = channel.size();
+            } else {
+                end = ListFormat.trailer(channel).getLong(0);
+                position = ListFormat.HEADER_SIZE;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads only part of a text file, like the lines another program added to its end
+     *
+     * @param file the text file to read
+     * @param start where the first line starts
+     * @param end where the last line ends
+     * @throws IOException if the file can't be opened
+     */
+    LineReader(Path file, long start, long end) throws IOException {
+        channel = FileChannel.open(file, READ);
+        format = ListFormat.TEXT;
+        position = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the next line, or null at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    public String readLine() throws IOException {
+        switch (format) {
+            case BINARY:
+                return readItem();
+            case DEFLATE:
+                return readBlockLine();
+            default:
+                return readTextLine();
+        }
+    }
+
+    /**
+     * Reads the rest of the file as an Iterable, for writing it out somewhere else
+     * An error reading the file is thrown as an UncheckedIOException.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private String next = read();
+
+            private String read() {
+                try {
+                    return readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String item = next;
+                next = read();
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private String readTextLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            for (int i = start + scanned; i < buffer.limit(); i++) {
+                if (bytes[i] == '\n') {
+                    buffer.position(i + 1);
+                    return decode(bytes, start, i);
+                }
+            }
+            if (endOfFile) {
+                if (!buffer.hasRemaining()) {
+                    return null;
+                }
+                buffer.position(buffer.limit());
+                return decode(bytes, start, buffer.limit()); // the last line has no "\n"
+            }
+            scanned = buffer.remaining();
+            fill(scanned + 1);
+        }
+    }
+
+    private String readItem() throws IOException {
+        if (!fill(4)) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (!fill(length)) {
+            throw new IOException("List file ends in the middle of an item");
+        }
+        String item = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return item;
+    }
+
+    private String readBlockLine() throws IOException {
+        if (blockPosition == block.length) {
+            if (!fill(ListFormat.BLOCK_HEADER_SIZE)) {
+                return null;
+            }
+            int rawLength = buffer.getInt();
+            int compressedLength = buffer.getInt();
+            buffer.getInt(); // number of items, only needed to find an item without unpacking
+            if (!fill(compressedLength)) {
+                throw new IOException("List file ends in the middle of a block");
+            }
+            block = ListFormat.inflate(buffer.array(), buffer.position(), compressedLength, rawLength);
+            buffer.position(buffer.position() + compressedLength);
+            blockPosition = 0;
+        }
+        int start = blockPosition;
+        int i = start;
+        while (block[i] != '\n') {
+            i++;
+        }
+        blockPosition = i + 1;
+        return new String(block, start, i - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads from the file until the buffer holds at least some bytes, or the items end
+     *
+     * @param needed the number of bytes needed
+     * @return false if the items end before that many bytes
+     */
+    private boolean fill(int needed) throws IOException {
+        while (buffer.remaining() < needed && !endOfFile) {
+            if (needed > buffer.capacity()) {
+                // An item longer than the buffer, make room for all of it
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.compact();
+            }
+            // Don't read past the items into the table
+            int room = (int) Math.min(buffer.remaining(), end - position);
+            int n = room == 0 ? -1 : channel.read(buffer.limit(buffer.position() + room), position);
+            buffer.limit(buffer.capacity());
+            if (n < 0) {
+                endOfFile = true;
+            } else {
+                position += n;
+            }
+            buffer.flip();
+        }
+        return buffer.remaining() >= needed;
+    }
+
+    private static String decode(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
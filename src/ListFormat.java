@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The ways a list can be stored in a file
+ *
+ * TEXT is one item per line, what the program has always written. The other formats start
+ * with a 4 byte header (a 0 byte and "FLB" or "FLZ", a text list never starts with a 0
+ * byte) and end with a 16 byte trailer: the offset of a table, the number of entries in
+ * it and the header again.
+ *
+ * BINARY stores every item as its length (4 bytes) and its UTF-8 bytes, followed by a
+ * table with the offset of every item. Opening it reads the table instead of scanning for
+ * line breaks, and any item can be read straight from the file in O(1).
+ *
+ * DEFLATE stores the items as lines in blocks of about 64 KB that are compressed with
+ * Deflate one by one, followed by a table with the offset and first item number of every
+ * block. It is for lists that are kept rather than edited: opening one unpacks it into a
+ * temp file, but one item can be read by unpacking only its block.
+ *
+ * The format of a file is found from its header, and a list is always saved back in the
+ * format its file already has. New files are written as -Dfilelist.format=text|binary|deflate
+ * (text if it isn't given). A file can be converted with
+ *   java Main --convert <format> <from> <to>
+ */
+public enum ListFormat {
+    TEXT,
+    BINARY,
+    DEFLATE;
+
+    // Headers, also written at the very end of the file
+    static final int BINARY_MAGIC = 0x00464C42;
+    static final int DEFLATE_MAGIC = 0x00464C5A;
+    static final int HEADER_SIZE = 4;
+    // Table offset, number of table entries and the header again
+    static final int TRAILER_SIZE = 8 + 4 + 4;
+    // Uncompressed size a block is filled up to
+    static final int BLOCK_SIZE = 1 << 16;
+    // Raw length, compressed length and number of items at the start of every block
+    static final int BLOCK_HEADER_SIZE = 4 + 4 + 4;
+    // Block offset and first item number in the block table
+    static final int BLOCK_ENTRY_SIZE = 8 + 4;
+    // Size of the buffer items are written through
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * @return the format new list files are written in, from -Dfilelist.format
+     */
+    public static ListFormat fromProperty() {
+        return valueOf(System.getProperty("filelist.format", "text").toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Finds the format of a list file from its header
+     *
+     * @param file the list file
+     * @return the format, TEXT if the file has no header of another format
+     * @throws IOException if the file can't be read
+     */
+    public static ListFormat detect(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            return detect(channel);
+        }
+    }
+
+    static ListFormat detect(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE) {
+            return TEXT;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        int magic = header.getInt(0);
+        if (magic != BINARY_MAGIC && magic != DEFLATE_MAGIC) {
+            return TEXT;
+        }
+        // A file that was cut short has no trailer, better to show it as text than to read garbage
+        if (trailer(channel).getInt(12) != magic) {
+            throw new IOException("List file is missing the end of its table, it may have been cut short");
+        }
+        return magic == BINARY_MAGIC ? BINARY : DEFLATE;
+    }
+
+    /**
+     * Reads the trailer at the end of a BINARY or DEFLATE file
+     *
+     * @return a buffer holding the table offset at 0, the number of entries at 8 and the header at 12
+     */
+    static ByteBuffer trailer(FileChannel channel) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, channel.size() - TRAILER_SIZE);
+        return trailer;
+    }
+
+    /**
+     * Opens a list file of any format
+     *
+     * @param file the list file
+     * @return the items of the file
+     * @throws IOException if the file can't be read
+     */
+    public static MappedLineList read(Path file) throws IOException {
+        switch (detect(file)) {
+            case BINARY:
+                return MappedLineList.openBinary(file);
+            case DEFLATE:
+                // Unpack into a text file that can be mapped, so a big archive doesn't have to fit in the heap,
+                // the file is deleted once it is mapped so it isn't left on disk while the list is open
+                Path unpacked = Files.createTempFile("unpacked", ".txt");
+                try (LineReader reader = new LineReader(file);
+                     FileChannel out = FileChannel.open(unpacked, WRITE)) {
+                    NIOFileEditing.writeLines(reader, out);
+                } catch (UncheckedIOException e) {
+                    Files.deleteIfExists(unpacked);
+                    throw e.getCause();
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(unpacked);
+                    throw e;
+                }
+                return MappedLineList.openTemp(unpacked);
+            default:
+                return MappedLineList.open(file);
+        }
+    }
+
+    /**
+     * Writes items to a channel in this format, without forcing them to disk
+     *
+     * @param items the items to write
+     * @param channel an empty file to write them to
+     * @throws IOException if the channel can't be written
+     */
+    public void write(Iterable<String> items, FileChannel channel) throws IOException {
+        switch (this) {
+            case BINARY:
+                writeBinary(items, channel);
+                break;
+            case DEFLATE:
+                writeDeflate(items, channel);
+                break;
+            default:
+                NIOFileEditing.writeLines(items, channel);
+                break;
+        }
+    }
+
+    /**
+     * Reads one item straight from a list file without opening the whole list
+     * O(1) for BINARY, one block is unpacked for DEFLATE and TEXT has to be read up to the item
+     *
+     * @param file the list file
+     * @param index the number of the item, counting from 0
+     * @return the item
+     * @throws IOException if the file can't be read
+     * @throws IndexOutOfBoundsException if the list has no such item
+     */
+    public static String readItem(Path file, int index) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            ListFormat format = detect(channel);
+            if (format == TEXT) {
+                try (LineReader reader = new LineReader(file)) {
+                    for (int i = 0; i < index; i++) {
+                        if (reader.readLine() == null) {
+                            break;
+                        }
+                    }
+                    String item = reader.readLine();
+                    if (item == null || index < 0) {
+                        throw new IndexOutOfBoundsException("Index: " + index);
+                    }
+                    return item;
+                }
+            }
+
+            ByteBuffer trailer = trailer(channel);
+            long tableOffset = trailer.getLong(0);
+            int count = trailer.getInt(8);
+            if (format == BINARY) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                }
+                ByteBuffer entry = ByteBuffer.allocate(8);
+                readFully(channel, entry, tableOffset + 8L * index);
+                long offset = entry.getLong(0);
+                ByteBuffer length = ByteBuffer.allocate(4);
+                readFully(channel, length, offset);
+                ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+                readFully(channel, bytes, offset + 4);
+                return new String(bytes.array(), StandardCharsets.UTF_8);
+            }
+
+            // Find the last block starting at or before the item, with positional reads of the table
+            ByteBuffer entry = ByteBuffer.allocate(BLOCK_ENTRY_SIZE);
+            int low = 0;
+            int high = count - 1;
+            long blockOffset = -1;
+            int firstItem = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                readFully(channel, entry.clear(), tableOffset + (long) BLOCK_ENTRY_SIZE * middle);
+                if (entry.getInt(8) <= index) {
+                    blockOffset = entry.getLong(0);
+                    firstItem = entry.getInt(8);
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (blockOffset < 0 || index < 0) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            readFully(channel, header, blockOffset);
+            int rawLength = header.getInt(0);
+            int itemCount = header.getInt(8);
+            if (index - firstItem >= itemCount) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            ByteBuffer compressed = ByteBuffer.allocate(header.getInt(4));
+            readFully(channel, compressed, blockOffset + BLOCK_HEADER_SIZE);
+            byte[] raw = inflate(compressed.array(), 0, compressed.capacity(), rawLength);
+            int start = 0;
+            for (int i = firstItem; i < index; i++) {
+                while (raw[start] != '\n') {
+                    start++;
+                }
+                start++;
+            }
+            int end = start;
+            while (raw[end] != '\n') {
+                end++;
+            }
+            return new String(raw, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Converts a list file from the command line
+     *
+     * @param args the arguments after "--convert": the format, the file to read and the file to write
+     * @return the exit status, 0 if the file was converted
+     */
+    public static int run(String[] args) {
+        ListFormat format = null;
+        if (args.length == 3) {
+            try {
+                format = valueOf(args[0].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // not a format, the usage is printed below
+            }
+        }
+        if (format == null) {
+            System.err.println("Usage: java Main --convert <text | binary | deflate> <from> <to>");
+            return 2;
+        }
+        Path from = Paths.get(args[1]);
+        Path to = Paths.get(args[2]);
+        try {
+            long start = System.nanoTime();
+            // Saved edits that are still in a journal are folded in first, so they are converted too and not written over
+            ListJournal.foldInto(from);
+            ListJournal.foldInto(to);
+            long fromSize = Files.size(from);
+            // Streamed from one file to the other, and the new file is swapped in when it is complete
+            try (LineReader reader = new LineReader(from)) {
+                NIOFileEditing.writeFile(reader, to, format);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            System.out.printf("%s (%,d bytes) converted to %s %s (%,d bytes) in %.1f s%n", from, fromSize,
+                    format.name().toLowerCase(Locale.ROOT), to, Files.size(to), (System.nanoTime() - start) / 1e9);
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    private static void writeBinary(Iterable<String> items, FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        long[] offsets = new long[1024];
+        int count = 0;
+        long position = HEADER_SIZE;
+        buffer.putInt(BINARY_MAGIC);
+        for (String item : items) {
+            byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            if (buffer.remaining() < 4 + bytes.length) {
+                flush(channel, buffer);
+            }
+            if (buffer.remaining() < 4 + bytes.length) {
+                // Bigger than the whole buffer, write it on its own
+                buffer.putInt(bytes.length);
+                flush(channel, buffer);
+                writeFully(channel, ByteBuffer.wrap(bytes));
+            } else {
+                buffer.putInt(bytes.length).put(bytes);
+            }
+            position += 4 + bytes.length;
+        }
+
+        long tableOffset = position;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer);
+            }
+            buffer.putLong(offsets[i]);
+        }
+        if (buffer.remaining() < TRAILER_SIZE) {
+            flush(channel, buffer);
+        }
+        buffer.putLong(tableOffset).putInt(count).putInt(BINARY_MAGIC);
+        flush(channel, buffer);
+    }
+
+    private static void writeDeflate(Iterable<String> items, FileChannel channel) throws IOException {
+        Deflater deflater = new Deflater();
+        try {
+            byte[] raw = new byte[BLOCK_SIZE];
+            byte[] compressed = new byte[BLOCK_SIZE];
+            int rawLength = 0;
+            int itemsInBlock = 0;
+            int item = 0;
+            // Offset and first item of every block
+            ByteBuffer table = ByteBuffer.allocate(BLOCK_ENTRY_SIZE * 64);
+            long position = HEADER_SIZE;
+            writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(0, DEFLATE_MAGIC));
+
+            for (String text : items) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                if (rawLength + bytes.length + 1 > raw.length) {
+                    if (itemsInBlock > 0) {
+                        position += writeBlock(channel, deflater, raw, rawLength, itemsInBlock, compressed);
+                        rawLength = 0;
+                        itemsInBlock = 0;
+                    }
+                    if (bytes.length + 1 > raw.length) {
+                        raw = new byte[bytes.length + 1]; // an item bigger than a block gets a block of its own
+                    }
+                }
+                if (itemsInBlock == 0) {
+                    if (table.remaining() < BLOCK_ENTRY_SIZE) {
+                        table = ByteBuffer.allocate(table.capacity() * 2).put(table.flip());
+                    }
+                    table.putLong(position).putInt(item);
+                }
+                System.arraycopy(bytes, 0, raw, rawLength, bytes.length);
+                rawLength += bytes.length;
+                raw[rawLength++] = '\n';
+                itemsInBlock++;
+                item++;
+            }
+            if (itemsInBlock > 0) {
+                position += writeBlock(channel, deflater, raw, rawLength, itemsInBlock, compressed);
+            }
+
+            int blocks = table.position() / BLOCK_ENTRY_SIZE;
+            writeFully(channel, table.flip());
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(position).putInt(blocks).putInt(DEFLATE_MAGIC);
+            writeFully(channel, trailer.flip());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses and writes one block
+     *
+     * @return the number of bytes written
+     */
+    private static long writeBlock(FileChannel channel, Deflater deflater, byte[] raw, int rawLength, int items,
+                                   byte[] compressed) throws IOException {
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        ByteBuffer out = ByteBuffer.allocate(BLOCK_HEADER_SIZE + rawLength + rawLength / 8 + 64);
+        out.position(BLOCK_HEADER_SIZE);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(compressed);
+            if (out.remaining() < n) {
+                out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
+            }
+            out.put(compressed, 0, n);
+        }
+        int length = out.position() - BLOCK_HEADER_SIZE;
+        out.putInt(0, rawLength).putInt(4, length).putInt(8, items);
+        writeFully(channel, out.flip());
+        return BLOCK_HEADER_SIZE + length;
+    }
+
+    /**
+     * Unpacks one block
+     *
+     * @param compressed the compressed bytes
+     * @param offset where they start in the array
+     * @param length number of compressed bytes
+     * @param rawLength size of the block when unpacked
+     * @return the unpacked block
+     * @throws IOException if the block is damaged
+     */
+    static byte[] inflate(byte[] compressed, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            byte[] raw = new byte[rawLength];
+            int done = 0;
+            while (done < rawLength) {
+                int n = inflater.inflate(raw, done, rawLength - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed block is damaged");
+                }
+                done += n;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed block is damaged", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("List file ends too soon");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+}
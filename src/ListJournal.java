@@ -0,0 +1,744 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only journal of the edits made to a list file
+ *
+ * Instead of rewriting the whole list on every save, each add, delete and clear is written
+ * to a small binary record in a ".journal" file next to the list. A save only adds a
+ * commit record and forces the journal to disk, so it costs about as much as the edits
+ * that were made. When the journal gets big it is folded back into the list file on a
+ * background thread, and when the list is closed what's left of it is folded in too.
+ *
+ * Records after the last commit are edits that were never saved. They are thrown away
+ * when the user decides not to save, but if the program crashes they are still in the
+ * journal and are put back the next time the list is opened.
+ *
+ * The journal starts with a header holding the size and modified time of the list file it
+ * belongs to. If the list file was changed by something else the records don't fit it any
+ * more, but they may be all that is left of edits the user saved: so they are never thrown
+ * away, the journal is moved aside to a ".rejected" file next to it and a new one is started.
+ * Records are also checked against the list before any of them is applied, so a journal
+ * that doesn't fit can't change the wrong items.
+ *
+ * The journal file is locked while it is open, so other programs (and the command line
+ * modes that rewrite list files, see foldInto()) can tell that the list is being edited.
+ */
+public class ListJournal {
+
+    // "FLJ1" at the start of every journal
+    private static final int MAGIC = 0x464C4A31;
+    // Magic number, list file size and list file modified time
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+
+    // Record types
+    private static final byte ADD = 'A';
+    private static final byte DELETE = 'D';
+    private static final byte CLEAR = 'C';
+    private static final byte COMMIT = 'S';
+
+    // What applyRecord() returns when there are no more complete records, and when a record doesn't fit the list
+    private static final int END = -1;
+    private static final int MISFIT = -2;
+
+    // Number of records written before the journal is forced to disk
+    static final int SYNC_EVERY = 64;
+    // Journal size (in bytes) after which it is folded back into the list file
+    static final long COMPACT_SIZE = 1L << 20;
+
+    private final Path baseFile;
+    private final Path journalFile;
+    private FileChannel channel;
+    // Reused buffer for building records
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    // End of the journal
+    private long end;
+    // End of the last commit record, everything after it hasn't been saved
+    private long committed;
+    // Records written since the journal was last forced to disk
+    private int unsynced;
+    // Set when the journal couldn't be written, the list has to be saved in full after that
+    private boolean failed;
+    // Thread folding the journal back into the list file, if one is running
+    private Thread compactor;
+    // Set when folding the journal into the list file failed, it isn't tried again in the background after that
+    private boolean compactFailed;
+    // Told what was written each time the journal is folded into the list file
+    private Consumer<List<String>> compactionListener;
+
+    private ListJournal(Path baseFile) {
+        this.baseFile = baseFile;
+        this.journalFile = baseFile.resolveSibling(baseFile.getFileName() + ".journal");
+    }
+
+    /**
+     * Opens (or creates) the journal that belongs to a list file
+     * Call replay() or reset() before writing to it
+     *
+     * @param baseFile the list file
+     * @return the journal, or null if it couldn't be opened or another program has it open
+     */
+    public static ListJournal open(Path baseFile) {
+        ListJournal journal = new ListJournal(baseFile);
+        try {
+            if (!journal.openChannel()) {
+                System.out.println(baseFile + " is open in another program, its edits aren't journaled here");
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return journal;
+    }
+
+    /**
+     * Folds the saved edits in the journal of a list file into the file, used by the command
+     * line modes before they read or rewrite a list file so they don't miss or lose those edits
+     * Unsaved edits from a crash are left in the journal.
+     *
+     * @param baseFile the list file
+     * @throws IOException if the list is open in another program, or its saved edits couldn't be folded in
+     */
+    public static void foldInto(Path baseFile) throws IOException {
+        ListJournal journal = new ListJournal(baseFile);
+        if (!Files.exists(journal.journalFile) || !Files.exists(baseFile)) {
+            return;
+        }
+        if (!journal.openChannel()) {
+            throw new IOException(baseFile + " is open in another program, close it there first");
+        }
+        synchronized (journal) {
+            try {
+                journal.replay(NIOFileEditing.readLines(baseFile));
+                journal.compact();
+                if (journal.failed || journal.committed > HEADER_SIZE) {
+                    throw new IOException("The saved edits in " + journal.journalFile + " couldn't be folded into "
+                            + baseFile + ", open it in the list maker to save it in full");
+                }
+            } finally {
+                journal.channel.close();
+            }
+            if (journal.end == HEADER_SIZE) {
+                Files.deleteIfExists(journal.journalFile);
+            }
+        }
+    }
+
+    /**
+     * Opens the journal file and locks it
+     *
+     * @return false if another program has it locked
+     */
+    private boolean openChannel() throws IOException {
+        channel = FileChannel.open(journalFile, READ, WRITE, CREATE);
+        try {
+            if (channel.tryLock() == null) {
+                channel.close();
+                return false;
+            }
+        } catch (OverlappingFileLockException e) {
+            // this program has the list open already
+            channel.close();
+            return false;
+        } catch (IOException e) {
+            // the file system can't lock files, the journal works without the lock
+        }
+        return true;
+    }
+
+    /**
+     * Applies the records in the journal to a list that was just loaded from the list file
+     * If the journal doesn't belong to the current list file, or its records don't fit the
+     * list, it is moved aside to a ".rejected" file and an empty one is started instead
+     *
+     * @param list the list loaded from the list file
+     * @return the number of unsaved edits that were recovered from a crash
+     */
+    public synchronized int replay(List<String> list) {
+        int recovered = 0;
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            BasicFileAttributes attributes = Files.readAttributes(baseFile, BasicFileAttributes.class);
+            if (size < HEADER_SIZE || header.getInt() != MAGIC) {
+                reset(); // new, or not a journal at all
+                return 0;
+            }
+            if (header.getLong() != attributes.size() || header.getLong() != attributes.lastModifiedTime().toMillis()) {
+                if (size > HEADER_SIZE) {
+                    reject(baseFile + " was changed by another program after the edits in its journal were made");
+                } else {
+                    reset();
+                }
+                return 0;
+            }
+
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE);
+            // Check every record before changing the list, so a journal that doesn't fit changes nothing
+            int items = list.size();
+            int next;
+            while ((next = applyRecord(records, null, items)) >= 0) {
+                items = next;
+            }
+            if (next == MISFIT) {
+                reject("The edits in the journal of " + baseFile + " don't fit the list in it");
+                return 0;
+            }
+            records.rewind();
+
+            committed = HEADER_SIZE;
+            int position = 0;
+            while (applyRecord(records, list, list.size()) >= 0) {
+                if (records.get(position) == COMMIT) {
+                    committed = HEADER_SIZE + records.position();
+                    recovered = 0;
+                } else {
+                    recovered++;
+                }
+                position = records.position();
+            }
+            // Cut off a record that was only half written when the program stopped
+            end = HEADER_SIZE + position;
+            channel.truncate(end);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return recovered;
+    }
+
+    /**
+     * Empties the journal, used after the whole list was written to the list file
+     */
+    public synchronized void reset() {
+        try {
+            channel.truncate(0);
+            channel.write(header(), 0);
+            channel.force(false);
+            end = HEADER_SIZE;
+            committed = HEADER_SIZE;
+            unsynced = 0;
+            compactFailed = false; // the list file was just written, so it can be replaced
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Moves the journal aside to a ".rejected" file next to it and starts an empty one
+     * Used when its records can't be applied to the list file, so they aren't lost.
+     *
+     * @param why what is printed to say why the edits in the journal weren't applied
+     */
+    private void reject(String why) throws IOException {
+        Path kept = journalFile.resolveSibling(journalFile.getFileName() + ".rejected");
+        for (int i = 2; Files.exists(kept); i++) {
+            kept = journalFile.resolveSibling(journalFile.getFileName() + "." + i + ".rejected");
+        }
+        channel.close();
+        Files.move(journalFile, kept);
+        System.out.println(why + ", so they weren't applied and were kept in " + kept);
+        openChannel();
+        reset();
+    }
+
+    /**
+     * Records that an item was added
+     *
+     * @param index position of the new item
+     * @param item the new item
+     */
+    public synchronized void add(int index, String item) {
+        byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = buffer(1 + 4 + 4 + bytes.length);
+        buf.put(ADD).putInt(index).putInt(bytes.length).put(bytes);
+        append(buf);
+    }
+
+    /**
+     * Records that an item was deleted
+     *
+     * @param index position of the deleted item
+     */
+    public synchronized void delete(int index) {
+        append(buffer(1 + 4).put(DELETE).putInt(index));
+    }
+
+    /**
+     * Records that the list was cleared
+     */
+    public synchronized void clear() {
+        append(buffer(1).put(CLEAR));
+    }
+
+    /**
+     * Saves the edits recorded so far by adding a commit record and forcing the journal to disk
+     * Starts folding the journal into the list file if it has grown too big
+     *
+     * @return the number of bytes of records that were saved
+     */
+    public long commit() {
+        long saved = markCommitted();
+        force(saved);
+        return saved;
+    }
+
+    /**
+     * The quick half of commit(): adds the commit record, but doesn't wait for the disk
+     * A caller that holds a lock of its own calls this under it and force() after letting go.
+     *
+     * @return the number of bytes of records the commit covers
+     */
+    public synchronized long markCommitted() {
+        append(buffer(1).put(COMMIT));
+        long saved = end - committed;
+        committed = end;
+        return saved;
+    }
+
+    /**
+     * The slow half of commit(): forces the journal to disk, without holding the journal's
+     * lock so edits can still be recorded meanwhile
+     * Starts folding the journal into the list file if it has grown too big
+     *
+     * @param saved the bytes of records the commit covers, from markCommitted()
+     */
+    public void force(long saved) {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.COMMIT);
+        FileChannel forced;
+        synchronized (this) {
+            forced = failed ? null : channel;
+            unsynced = 0;
+        }
+        if (forced != null) {
+            try {
+                forced.force(false);
+            } catch (ClosedChannelException e) {
+                // The journal was folded into the list file or closed meanwhile, which forced it already
+            } catch (IOException e) {
+                synchronized (this) {
+                    fail(e);
+                }
+            }
+        }
+        synchronized (this) {
+            if (failed) {
+                timer.failed();
+            } else {
+                timer.stop(saved, 1);
+            }
+            if (end > COMPACT_SIZE && compactor == null && !failed && !compactFailed) {
+                compactor = new Thread(this::compactInBackground, "journal-compactor");
+                compactor.setDaemon(true);
+                compactor.start();
+            }
+        }
+    }
+
+    /**
+     * Throws away the edits recorded since the last commit
+     */
+    public synchronized void rollback() {
+        try {
+            channel.truncate(committed);
+            end = committed;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops recording edits, used when the list was changed in a way the journal can't describe
+     * (like putting back a list that was cleared). The edits since the last commit are dropped,
+     * so a crash brings back the last save, and the next save has to write the whole list:
+     * hasFailed() is true from now on.
+     */
+    public synchronized void suspend() {
+        rollback();
+        failed = true;
+    }
+
+    /**
+     * Moves the journal over to a list file that something else wrote again with the same items
+     * (or only touched), so the records still apply to it and only the header has to change
+     */
+    public synchronized void rebase() {
+        if (failed) {
+            return;
+        }
+        try {
+            channel.write(header(), 0);
+            channel.force(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Sets what to call after the journal was folded into the list file, it is given the items
+     * that were written. It is called on the thread doing the folding, without holding the journal.
+     *
+     * @param listener what to call, or null
+     */
+    public synchronized void setCompactionListener(Consumer<List<String>> listener) {
+        compactionListener = listener;
+    }
+
+    /**
+     * @return true if there are no records in the journal, so the list is the same as the list file
+     */
+    public synchronized boolean isEmpty() {
+        return end == HEADER_SIZE;
+    }
+
+    /**
+     * @return true if the journal holds saved edits that aren't in the list file yet
+     */
+    public synchronized boolean hasSavedEdits() {
+        return committed > HEADER_SIZE;
+    }
+
+    /**
+     * @return true if the list file is still the one the journal was started for, so nothing else changed it
+     */
+    public synchronized boolean isBaseUnchanged() {
+        try {
+            ByteBuffer onDisk = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(onDisk, 0);
+            return onDisk.flip().equals(header());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the journal couldn't be written (or was suspended) and the list has to be saved in full
+     */
+    public synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Closes the journal when the list is closed
+     * Unsaved edits are thrown away, saved ones are folded into the list file and the journal is deleted.
+     *
+     * If the saved edits can't be folded in (something else changed the list file, or it couldn't
+     * be written) they are never just dropped: the saved list is written in full instead, and if
+     * there is no saved list to write, or writing it fails too, the journal is kept. It is kept as
+     * it is if it still fits the list file, so opening the list again puts the edits back, and
+     * otherwise it is moved aside to a ".rejected" file.
+     *
+     * @param saved the list as it was last saved, or null if it has edits that weren't saved
+     */
+    public void close(List<String> saved) {
+        waitForCompaction();
+        synchronized (this) {
+            if (!failed) {
+                rollback();
+                compact();
+            }
+            try {
+                boolean folded = committed <= HEADER_SIZE;
+                if (!folded && saved != null) {
+                    try {
+                        NIOFileEditing.writeFile(saved, baseFile);
+                        folded = true;
+                    } catch (IOException e) {
+                        System.out.println("Error, " + baseFile + " couldn't be saved: " + e.getMessage());
+                    }
+                }
+                if (!folded && !isBaseUnchanged()) {
+                    reject("The saved edits in the journal of " + baseFile + " couldn't be folded into it");
+                    folded = end == HEADER_SIZE; // the new journal that was started is empty
+                }
+                channel.close();
+                if (folded) {
+                    Files.deleteIfExists(journalFile);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the journal and deletes it, used right after the whole list was written to the
+     * list file, which then holds everything the journal did
+     */
+    public void discard() {
+        waitForCompaction();
+        synchronized (this) {
+            try {
+                channel.close();
+                Files.deleteIfExists(journalFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the journal without folding it into the list file or dropping any of its records,
+     * used when the list can't be read any more. Opening the list again sets the journal aside
+     * if it doesn't fit what is left of the list file, see replay().
+     */
+    public void abandon() {
+        waitForCompaction();
+        synchronized (this) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Folds the saved records into the list file now, so something that reads the file gets them
+     * foldInto() does this for a list that isn't open, it can't lock the journal of a list open here.
+     *
+     * @throws IOException if the saved records couldn't be folded in, the list has to be saved in full first
+     */
+    public void fold() throws IOException {
+        waitForCompaction();
+        compact();
+        synchronized (this) {
+            if (failed || committed > HEADER_SIZE) {
+                throw new IOException("The saved edits of " + baseFile + " couldn't be folded into it, save it first");
+            }
+        }
+    }
+
+    /**
+     * Waits until the journal is done folding itself into the list file, if it is doing that
+     */
+    void waitForCompaction() {
+        Thread running;
+        synchronized (this) {
+            running = compactor;
+        }
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        compact();
+        synchronized (this) {
+            compactor = null;
+        }
+    }
+
+    /**
+     * Folds the saved records back into the list file
+     * The list file is rebuilt from disk and the journal, so it doesn't matter what the user
+     * has changed in memory since. Only the short steps at the start and end hold the lock,
+     * so edits can keep being recorded while the list file is written.
+     */
+    private void compact() {
+        long upTo;
+        ByteBuffer records;
+        Consumer<List<String>> listener;
+        synchronized (this) {
+            upTo = committed;
+            if (failed || upTo <= HEADER_SIZE) {
+                return;
+            }
+            if (!isBaseUnchanged()) {
+                // Something else wrote the list file, the records don't fit it any more
+                System.out.println(baseFile + " was changed by another program, the list has to be saved in full");
+                failed = true;
+                return;
+            }
+            try {
+                records = ByteBuffer.allocate((int) (upTo - HEADER_SIZE));
+                channel.read(records, HEADER_SIZE);
+                records.flip();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        }
+
+        List<String> list;
+        try {
+            list = NIOFileEditing.readLines(baseFile);
+            int applied;
+            while ((applied = applyRecord(records, list, list.size())) >= 0) {
+                // keep going until every saved record is applied
+            }
+            if (applied == MISFIT) {
+                throw new IOException("The journal of " + baseFile + " doesn't fit the list in it");
+            }
+            NIOFileEditing.writeFile(list, baseFile);
+        } catch (IOException e) {
+            // The list file wasn't replaced, so the journal is still good as it is. Rewriting the whole list
+            // on every save while it keeps failing (like a mapped list file on Windows) would only slow saves
+            // down, so it is tried again when the list is closed or folded in on purpose
+            e.printStackTrace();
+            synchronized (this) {
+                compactFailed = true;
+            }
+            return;
+        }
+
+        // Start a new journal for the new list file holding only the records written meanwhile
+        synchronized (this) {
+            try {
+                ByteBuffer tail = ByteBuffer.allocate((int) (end - upTo));
+                channel.read(tail, upTo);
+                tail.flip();
+                Path temp = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+                try (FileChannel out = FileChannel.open(temp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                    out.write(new ByteBuffer[]{header(), tail});
+                    out.force(false);
+                }
+                channel.close();
+                Files.move(temp, journalFile, REPLACE_EXISTING);
+                openChannel();
+                committed = HEADER_SIZE + (committed - upTo);
+                end = HEADER_SIZE + (end - upTo);
+            } catch (IOException e) {
+                fail(e);
+            }
+            listener = compactionListener;
+        }
+        if (listener != null) {
+            listener.accept(list);
+        }
+    }
+
+    /**
+     * Applies one record to a list, or only checks that it fits the list
+     *
+     * @param records buffer positioned at the start of a record
+     * @param list the list to change, or null to only check the record
+     * @param size number of items in the list before the record
+     * @return number of items in the list after the record, END if there are no more complete
+     * records or MISFIT if the record is for an item the list doesn't have (the buffer is then
+     * left at the start of the record)
+     */
+    private static int applyRecord(ByteBuffer records, List<String> list, int size) {
+        int start = records.position();
+        if (!records.hasRemaining()) {
+            return END;
+        }
+        byte type = records.get();
+        switch (type) {
+            case ADD:
+                if (records.remaining() >= 8) {
+                    int index = records.getInt();
+                    int length = records.getInt();
+                    if (length >= 0 && records.remaining() >= length) {
+                        if (index < 0 || index > size) {
+                            records.position(start);
+                            return MISFIT;
+                        }
+                        if (list == null) {
+                            records.position(records.position() + length);
+                        } else {
+                            byte[] bytes = new byte[length];
+                            records.get(bytes);
+                            list.add(index, new String(bytes, StandardCharsets.UTF_8));
+                        }
+                        return size + 1;
+                    }
+                }
+                break;
+            case DELETE:
+                if (records.remaining() >= 4) {
+                    int index = records.getInt();
+                    if (index < 0 || index >= size) {
+                        records.position(start);
+                        return MISFIT;
+                    }
+                    if (list != null) {
+                        list.remove(index);
+                    }
+                    return size - 1;
+                }
+                break;
+            case CLEAR:
+                if (list != null) {
+                    list.clear();
+                }
+                return 0;
+            case COMMIT:
+                return size;
+            default:
+                break;
+        }
+        records.position(start);
+        return END;
+    }
+
+    private ByteBuffer header() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(baseFile, BasicFileAttributes.class);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(attributes.size()).putLong(attributes.lastModifiedTime().toMillis());
+        return header.flip();
+    }
+
+    private ByteBuffer buffer(int size) {
+        if (record.capacity() < size) {
+            record = ByteBuffer.allocate(Math.max(size, record.capacity() * 2));
+        }
+        return record.clear();
+    }
+
+    /**
+     * Writes a record to the end of the journal, forcing it to disk every SYNC_EVERY records
+     */
+    private void append(ByteBuffer buf) {
+        if (failed) {
+            return;
+        }
+        try {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                end += channel.write(buf, end);
+            }
+            if (++unsynced >= SYNC_EVERY) {
+                sync();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void sync() {
+        try {
+            channel.force(false);
+            unsynced = 0;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        e.printStackTrace();
+        failed = true;
+    }
+}
@@ -0,0 +1,1576 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Imports items into a list from CSV, JSON lines or text files, and exports lists to them
+ *
+ * Nothing is read into memory as a whole. One thread reads the source through a FileChannel
+ * in CHUNK_SIZE pieces, each cut where the last whole record in it ends, and a worker for
+ * each core (or --threads) turns the pieces into items: it parses the records, takes out
+ * the fields, runs the stages and works out the hashes used to drop duplicates. The pieces
+ * come out in the order they were read, so the items keep the order of the source, and the
+ * queues between the threads are bounded, so a fast reader waits for the workers instead
+ * of filling the heap. An export runs the same way with the list as the source and CSV or
+ * JSON records coming out, and they are written like NIOFileEditing.writeFile does it.
+ *
+ * The stages run on each item in the order they are given:
+ *   --trim                  strips spaces from both ends
+ *   --match <regex>         keeps only the items with a match in them
+ *   --skip <regex>          drops the items with a match in them
+ *   --replace <regex> <to>  replaces every match, $1 is the first group
+ *   --upper, --lower        changes the case
+ * and then --unique keeps only the first of the items that are the same, an import also
+ * drops the items that are already in the list. Empty items are always dropped, and line
+ * breaks in a field become spaces, an item is one line of the list file.
+ *
+ * The format comes from the file extension (.csv, .tsv, .jsonl, .ndjson or .json, anything
+ * else is one item per line) or --format csv|jsonl|lines. --field picks what an item is
+ * made of: CSV column numbers, or names from the header row with --header, and JSON keys
+ * with dots for keys inside objects ("address.city"). Several fields are joined with
+ * --join, a space if it isn't given. Without --field an item is the first CSV column or the
+ * "item" key. On an export --field names the column or the key the items go in.
+ *
+ * From the command line:
+ *   java Main --import [options] <source> <list file>
+ * adds the items to the end of the list file, and
+ *   java Main --export [options] <list file> <destination>
+ * writes the items of the list file to the destination.
+ */
+public class ListPipeline {
+
+    /**
+     * The formats items are imported from and exported to
+     */
+    public enum Format {
+        // Comma separated values with a record on each line, fields with a quote, comma or line break are quoted
+        CSV,
+        // One JSON object on each line
+        JSONL,
+        // One item on each line, like a text list file
+        LINES;
+
+        /**
+         * @param file a file
+         * @return the format its extension stands for, LINES if it isn't one of them
+         */
+        static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv") || name.endsWith(".tsv")) {
+                return CSV;
+            }
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) {
+                return JSONL;
+            }
+            return LINES;
+        }
+    }
+
+    // Size of the pieces the source is read in, a piece grows if one record doesn't fit
+    static final int CHUNK_SIZE = 1 << 22;
+    // Items in each piece of an export
+    private static final int BATCH_ITEMS = 8192;
+    // Column or key used when --field isn't given
+    static final String DEFAULT_FIELD = "item";
+    // Options described in the usage
+    private static final String OPTIONS = "  [--format csv|jsonl|lines] [--field <fields>] [--join <text>] [--delimiter <c>] [--header]\n"
+            + "  [--trim] [--match <regex>] [--skip <regex>] [--replace <regex> <to>] [--upper] [--lower] [--unique] [--threads <n>]";
+    private static final Pattern LINE_BREAKS = Pattern.compile("\r\n|[\r\n]");
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    // Byte patterns used to look for quotes and line breaks 8 bytes at a time
+    private static final long QUOTES = 0x2222222222222222L;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_7_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    // Format of the file, null to go by its extension
+    private Format format;
+    // What an item is made of, or the column or key on an export
+    private final List<String> fields = new ArrayList<>();
+    private String join = " ";
+    // CSV field delimiter, 0 for a tab in a .tsv file and a comma in anything else
+    private char delimiter;
+    // Whether the first CSV record is the names of the columns
+    private boolean header;
+    private final List<UnaryOperator<String>> stages = new ArrayList<>();
+    private boolean unique;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // The last import or export, for toString
+    private Run last;
+    private boolean exported;
+
+    /**
+     * Reads the options of an import or an export
+     *
+     * @param args the options, each followed by its values
+     * @return the pipeline the options describe
+     * @throws IllegalArgumentException if an option isn't known or one of its values is missing or wrong
+     */
+    public static ListPipeline parse(List<String> args) {
+        ListPipeline pipeline = new ListPipeline();
+        for (int i = 0; i < args.size(); i++) {
+            String option = args.get(i);
+            switch (option) {
+                case "--format":
+                    String name = value(args, ++i, option);
+                    try {
+                        pipeline.format = Format.valueOf(name.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown format " + name + ", it has to be csv, jsonl or lines");
+                    }
+                    break;
+                case "--field":
+                    for (String field : value(args, ++i, option).split(",")) {
+                        if (!field.isBlank()) {
+                            pipeline.fields.add(field.trim());
+                        }
+                    }
+                    break;
+                case "--join":
+                    pipeline.join = value(args, ++i, option);
+                    break;
+                case "--delimiter":
+                    String delimiter = value(args, ++i, option);
+                    if (delimiter.equals("\\t") || delimiter.equalsIgnoreCase("tab")) {
+                        delimiter = "\t";
+                    }
+                    if (delimiter.length() != 1 || delimiter.equals("\"") || delimiter.equals("\n")) {
+                        throw new IllegalArgumentException("The delimiter has to be one character, not " + delimiter);
+                    }
+                    pipeline.delimiter = delimiter.charAt(0);
+                    break;
+                case "--header":
+                    pipeline.header = true;
+                    break;
+                case "--threads":
+                    String threads = value(args, ++i, option);
+                    try {
+                        pipeline.threads = Integer.parseInt(threads);
+                    } catch (NumberFormatException e) {
+                        pipeline.threads = 0;
+                    }
+                    if (pipeline.threads < 1) {
+                        throw new IllegalArgumentException("--threads has to be a number above 0, not " + threads);
+                    }
+                    break;
+                case "--trim":
+                    pipeline.stages.add(String::strip);
+                    break;
+                case "--match":
+                    Pattern match = Pattern.compile(value(args, ++i, option));
+                    pipeline.stages.add(item -> match.matcher(item).find() ? item : null);
+                    break;
+                case "--skip":
+                    Pattern skip = Pattern.compile(value(args, ++i, option));
+                    pipeline.stages.add(item -> skip.matcher(item).find() ? null : item);
+                    break;
+                case "--replace":
+                    Pattern replace = Pattern.compile(value(args, ++i, option));
+                    String to = value(args, ++i, option);
+                    pipeline.stages.add(item -> replace.matcher(item).replaceAll(to));
+                    break;
+                case "--upper":
+                    pipeline.stages.add(item -> item.toUpperCase(Locale.ROOT));
+                    break;
+                case "--lower":
+                    pipeline.stages.add(item -> item.toLowerCase(Locale.ROOT));
+                    break;
+                case "--unique":
+                    pipeline.unique = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        return pipeline;
+    }
+
+    /**
+     * Reads the options of an import or an export typed on one line
+     * A value with spaces in it can be put in double quotes.
+     *
+     * @param options the options
+     * @return the pipeline the options describe
+     * @throws IllegalArgumentException if an option isn't known or one of its values is missing or wrong
+     */
+    public static ListPipeline parse(String options) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean quoted = false;
+        boolean started = false;
+        for (int i = 0; i < options.length(); i++) {
+            char c = options.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                started = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (started) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    started = false;
+                }
+            } else {
+                arg.append(c);
+                started = true;
+            }
+        }
+        if (started) {
+            args.add(arg.toString());
+        }
+        return parse(args);
+    }
+
+    private static String value(List<String> args, int i, String option) {
+        if (i >= args.size()) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args.get(i);
+    }
+
+    /**
+     * Imports or exports from the command line
+     *
+     * @param args the arguments after "--import" or "--export": the options, the file to read and the file to write
+     * @param export true for an export
+     * @return the exit status, 0 if everything was imported or exported
+     */
+    public static int run(String[] args, boolean export) {
+        String usage = export ? "Usage: java Main --export [options] <list file> <destination>\n" + OPTIONS
+                : "Usage: java Main --import [options] <source> <list file>\n" + OPTIONS;
+        if (args.length < 2) {
+            System.err.println(usage);
+            return 2;
+        }
+        ListPipeline pipeline;
+        try {
+            pipeline = parse(Arrays.asList(args).subList(0, args.length - 2));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage);
+            return 2;
+        }
+        Path from = Paths.get(args[args.length - 2]);
+        Path to = Paths.get(args[args.length - 1]);
+        try {
+            long start = System.nanoTime();
+            if (export) {
+                pipeline.exportFile(from, to);
+            } else {
+                pipeline.importFile(from, to);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long bytes = Files.size(from);
+            System.out.printf("%s in %.1f s, %,d bytes read at %.0f MB/s%n", pipeline, seconds, bytes, bytes / seconds / 1e6);
+            return 0;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * Imports a file to the end of a list
+     * The items that are kept are all that is held in memory, the file is streamed through.
+     *
+     * @param source the file to import
+     * @param list the list to add the items to
+     * @return the number of items added
+     * @throws IOException if the file can't be read, the items read before that are still added
+     * @throws IllegalArgumentException if a field isn't in the file
+     */
+    public long importInto(Path source, List<String> list) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.IMPORT);
+        try (Run run = importing(source, list)) {
+            while (run.hasNext()) {
+                list.add(run.next());
+            }
+            timer.stop(Files.size(source), run.items);
+            return run.items;
+        } catch (UncheckedIOException e) {
+            timer.failed();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            timer.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Imports a file to the end of a list file without reading either of them into memory
+     * A text list file is added to where it ends. A binary or compressed one has its table at
+     * the end, so it is written again with the items added and swapped in when it is complete.
+     * A list file that isn't there yet is written like NIOFileEditing.writeFile writes one.
+     * Saved edits still in the journal of the list file are folded into it first, so they
+     * aren't lost when the file changes under the journal.
+     *
+     * @param source the file to import
+     * @param listFile the list file to add the items to
+     * @return the number of items added
+     * @throws IOException if a file can't be read or written, or the list is open in another
+     * program, the list file is left as it was
+     * @throws IllegalArgumentException if a field isn't in the file
+     */
+    public long importFile(Path source, Path listFile) throws IOException {
+        ListJournal.foldInto(listFile);
+        boolean exists = Files.exists(listFile);
+        ListFormat listFormat = exists ? ListFormat.detect(listFile) : ListFormat.fromProperty();
+        Metrics.Timer timer = Metrics.start(Metrics.Op.IMPORT);
+        try (LineReader listed = unique && exists ? new LineReader(listFile) : null;
+             Run run = importing(source, listed != null ? listed : List.of())) {
+            if (!exists) {
+                NIOFileEditing.writeFile(() -> run, listFile, listFormat);
+            } else if (listFormat == ListFormat.TEXT) {
+                append(run, listFile);
+            } else {
+                try (LineReader old = new LineReader(listFile)) {
+                    NIOFileEditing.writeFile(() -> concat(old.iterator(), run), listFile, listFormat);
+                }
+            }
+            timer.stop(Files.size(source), run.items);
+            return run.items;
+        } catch (UncheckedIOException e) {
+            timer.failed();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            timer.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Exports a list to a file, which is written to a temp file and swapped in when it is complete
+     *
+     * @param list the items to export, they are read on another thread and must not be changed until this returns
+     * @param destination the file to write
+     * @return the number of items exported
+     * @throws IOException if the file can't be written, an old file is left as it was
+     * @throws IllegalArgumentException if more than one field is given
+     */
+    public long export(Iterable<String> list, Path destination) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.EXPORT);
+        Format format = this.format != null ? this.format : Format.of(destination);
+        char delimiter = delimiter(destination);
+        if (fields.size() > 1) {
+            throw new IllegalArgumentException("An export has one --field, the column or key the items go in");
+        }
+        String field = fields.isEmpty() ? DEFAULT_FIELD : fields.get(0);
+        String key = format == Format.JSONL ? jsonString(field, new StringBuilder()).append(':').toString() : null;
+        Iterator<String> items = list.iterator();
+        Source source = () -> {
+            if (!items.hasNext()) {
+                return null;
+            }
+            String[] batch = new String[BATCH_ITEMS];
+            int count = 0;
+            while (count < batch.length && items.hasNext()) {
+                batch[count++] = items.next();
+            }
+            return new Batch(batch, count);
+        };
+        try (Run run = new Run(source, batch -> format(batch, format, delimiter, key), List.of())) {
+            last = run;
+            exported = true;
+            Iterable<String> records = () -> run;
+            if (header && format == Format.CSV) {
+                String names = csvField(field, delimiter, new StringBuilder()).toString();
+                records = () -> concat(List.of(names).iterator(), run);
+            }
+            NIOFileEditing.writeFile(records, destination, ListFormat.TEXT);
+            timer.stop(Files.size(destination), run.items);
+            return run.items;
+        } catch (UncheckedIOException e) {
+            timer.failed();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            timer.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Exports a list file of any ListFormat without reading it into memory
+     * Saved edits still in the journal of the list file are folded into it first, so they are exported too.
+     *
+     * @param listFile the list file to export
+     * @param destination the file to write
+     * @return the number of items exported
+     * @throws IOException if a file can't be read or written, or the list is open in another
+     * program, an old destination is left as it was
+     */
+    public long exportFile(Path listFile, Path destination) throws IOException {
+        ListJournal.foldInto(listFile);
+        try (LineReader reader = new LineReader(listFile)) {
+            return export(reader, destination);
+        }
+    }
+
+    /**
+     * @return what the last import or export did
+     */
+    @Override
+    public String toString() {
+        if (last == null) {
+            return "Nothing imported or exported";
+        }
+        StringBuilder text = new StringBuilder();
+        if (exported) {
+            text.append(String.format("%,d of %,d items exported", last.items, last.records));
+        } else {
+            text.append(String.format("%,d items imported from %,d records", last.items, last.records));
+        }
+        if (last.duplicates > 0) {
+            text.append(String.format(", %,d duplicates dropped", last.duplicates));
+        }
+        if (last.bad > 0) {
+            text.append(String.format(", %,d records that couldn't be read skipped", last.bad));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Starts an import, working out the format and the fields first
+     *
+     * @param existing the items already in the list, to drop them with --unique
+     */
+    private Run importing(Path source, Iterable<String> existing) throws IOException {
+        Format format = this.format != null ? this.format : Format.of(source);
+        ChunkReader reader = new ChunkReader(source, format == Format.CSV, delimiter(source));
+        try {
+            Records records = new Records(format, delimiter(source), header ? reader.firstRecord() : null);
+            Run run = new Run(reader, records::parse, existing);
+            last = run;
+            exported = false;
+            return run;
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private char delimiter(Path file) {
+        if (delimiter != 0) {
+            return delimiter;
+        }
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : ',';
+    }
+
+    /**
+     * Adds items to the end of a text list file
+     * The file isn't swapped like a save does, the old items don't have to be written again for
+     * that. If the items can't all be read or written the file is cut back to where it ended.
+     */
+    private static void append(Iterator<String> items, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            long end = channel.size();
+            try {
+                channel.position(end);
+                // The last line of the file may not have a line break yet
+                ByteBuffer last = ByteBuffer.allocate(1);
+                if (end > 0 && channel.read(last, end - 1) == 1 && last.get(0) != '\n') {
+                    channel.write(ByteBuffer.wrap(LINE_SEPARATOR));
+                }
+                NIOFileEditing.writeLines(() -> items, channel);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                channel.truncate(end);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Goes through one iterator and then the other
+     */
+    private static Iterator<String> concat(Iterator<String> first, Iterator<String> then) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || then.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return first.hasNext() ? first.next() : then.next();
+            }
+        };
+    }
+
+    /**
+     * Runs the stages on one item
+     *
+     * @return the item, or null if a stage dropped it or it ended up empty
+     */
+    private String stages(String item) {
+        if (item.indexOf('\n') >= 0 || item.indexOf('\r') >= 0) {
+            item = LINE_BREAKS.matcher(item).replaceAll(" ");
+        }
+        for (UnaryOperator<String> stage : stages) {
+            item = stage.apply(item);
+            if (item == null) {
+                return null;
+            }
+        }
+        return item.isEmpty() ? null : item;
+    }
+
+    /**
+     * Joins the fields of one record into an item, leaving out the empty ones
+     */
+    private String join(String[] values, StringBuilder item) {
+        if (values.length == 1) {
+            return values[0] == null ? "" : values[0];
+        }
+        item.setLength(0);
+        for (String value : values) {
+            if (value != null && !value.isEmpty()) {
+                if (item.length() > 0) {
+                    item.append(join);
+                }
+                item.append(value);
+            }
+        }
+        return item.toString();
+    }
+
+    /**
+     * Runs the stages on a batch of list items and turns the ones that are kept into records
+     *
+     * @param key the JSON key with its quotes and colon, for JSONL
+     */
+    private Result format(Batch batch, Format format, char delimiter, String key) {
+        Result result = new Result(batch.length, unique);
+        StringBuilder record = new StringBuilder();
+        for (int i = 0; i < batch.length; i++) {
+            result.records++;
+            String item = stages(batch.items[i]);
+            if (item == null) {
+                continue;
+            }
+            record.setLength(0);
+            if (format == Format.CSV) {
+                csvField(item, delimiter, record);
+            } else if (format == Format.JSONL) {
+                jsonString(item, record.append('{').append(key)).append('}');
+            } else {
+                record.append(item);
+            }
+            result.add(record.toString(), item);
+        }
+        return result;
+    }
+
+    /**
+     * Adds a CSV field, quoted if it has to be
+     */
+    static StringBuilder csvField(String value, char delimiter, StringBuilder out) {
+        boolean quote = value.indexOf('"') >= 0 || value.indexOf(delimiter) >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+        if (!quote) {
+            return out.append(value);
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        return out.append('"');
+    }
+
+    /**
+     * Adds a JSON string with its quotes
+     */
+    static StringBuilder jsonString(String value, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        return out.append('"');
+    }
+
+    /**
+     * Turns pieces of a source file into items, one piece at a time on any of the workers
+     */
+    private final class Records {
+        private final Format format;
+        private final char delimiter;
+        // CSV: the column of each field, and which columns are needed at all
+        private final int[] columns;
+        private final boolean[] wanted;
+        // JSONL: the field of each key path, and the paths of the objects they are in
+        private final Map<String, Integer> paths = new HashMap<>();
+        private final Set<String> parents = new HashSet<>();
+        private final int fieldCount;
+
+        /**
+         * @param header the first record of a CSV file with the names of the columns, null if there is none
+         * @throws IllegalArgumentException if a field can't be found
+         */
+        Records(Format format, char delimiter, String header) {
+            this.format = format;
+            this.delimiter = delimiter;
+            List<String> names = fields.isEmpty() ? List.of(format == Format.JSONL ? DEFAULT_FIELD : "1") : fields;
+            fieldCount = names.size();
+            if (format == Format.LINES && !fields.isEmpty()) {
+                throw new IllegalArgumentException("A file with one item on each line has no fields to pick");
+            }
+            if (format != Format.CSV) {
+                columns = new int[0];
+                wanted = new boolean[0];
+                for (int i = 0; i < names.size(); i++) {
+                    String path = names.get(i);
+                    paths.put(path, i);
+                    for (int dot = path.indexOf('.'); dot > 0; dot = path.indexOf('.', dot + 1)) {
+                        parents.add(path.substring(0, dot));
+                    }
+                }
+                return;
+            }
+
+            List<String> headerNames = new ArrayList<>();
+            if (header != null) {
+                CsvCursor cursor = new CsvCursor(header, delimiter);
+                do {
+                    headerNames.add(cursor.field(true).strip());
+                } while (cursor.nextField());
+            }
+            columns = new int[names.size()];
+            int maxColumn = 0;
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                int column = headerNames.indexOf(name);
+                if (column < 0) {
+                    try {
+                        column = Integer.parseInt(name) - 1;
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(header == null
+                                ? "CSV fields are column numbers, or names with --header: " + name
+                                : "There is no column " + name + " in " + headerNames);
+                    }
+                    if (column < 0) {
+                        throw new IllegalArgumentException("Column numbers start at 1: " + name);
+                    }
+                }
+                columns[i] = column;
+                maxColumn = Math.max(maxColumn, column);
+            }
+            wanted = new boolean[maxColumn + 1];
+            for (int column : columns) {
+                wanted[column] = true;
+            }
+        }
+
+        Result parse(Batch batch) {
+            String text = new String(batch.bytes, 0, batch.length, StandardCharsets.UTF_8);
+            Result result = new Result(Math.max(16, batch.length / 64), unique);
+            if (format == Format.CSV) {
+                csv(text, result);
+            } else {
+                lines(text, result);
+            }
+            return result;
+        }
+
+        private void csv(String text, Result result) {
+            CsvCursor cursor = new CsvCursor(text, delimiter);
+            String[] byColumn = new String[wanted.length];
+            String[] values = new String[fieldCount];
+            StringBuilder joined = new StringBuilder();
+            while (!cursor.atEnd()) {
+                if (cursor.atBlankLine()) {
+                    continue;
+                }
+                Arrays.fill(byColumn, null);
+                int column = 0;
+                do {
+                    boolean keep = column < wanted.length && wanted[column];
+                    String value = cursor.field(keep);
+                    if (keep) {
+                        byColumn[column] = value;
+                    }
+                    column++;
+                } while (cursor.nextField());
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = byColumn[columns[i]];
+                }
+                result.records++;
+                String item = stages(join(values, joined));
+                if (item != null) {
+                    result.add(item, item);
+                }
+            }
+        }
+
+        private void lines(String text, Result result) {
+            String[] values = new String[fieldCount];
+            StringBuilder joined = new StringBuilder();
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                int next = end < 0 ? text.length() : end + 1;
+                end = end < 0 ? text.length() : end;
+                if (end > start && text.charAt(end - 1) == '\r') {
+                    end--;
+                }
+                String item;
+                if (format == Format.JSONL) {
+                    JsonReader json = new JsonReader(text, start, end);
+                    if (json.blank()) {
+                        start = next;
+                        continue;
+                    }
+                    result.records++;
+                    Arrays.fill(values, null);
+                    try {
+                        json.object("", paths, parents, values);
+                    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                        result.bad++;
+                        start = next;
+                        continue;
+                    }
+                    item = join(values, joined);
+                } else {
+                    result.records++;
+                    item = text.substring(start, end);
+                }
+                item = stages(item);
+                if (item != null) {
+                    result.add(item, item);
+                }
+                start = next;
+            }
+        }
+    }
+
+    /**
+     * Where the batches of an import or an export come from, on the reader thread
+     */
+    private interface Source extends Closeable {
+        /**
+         * @return the next batch, or null at the end
+         */
+        Batch next() throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * A piece of the source: whole records read from a file, or items of a list
+     */
+    private static final class Batch {
+        final byte[] bytes;
+        final String[] items;
+        // Bytes or items in the batch
+        final int length;
+        // Completed by the worker that turns the batch into a result
+        final CompletableFuture<Result> done = new CompletableFuture<>();
+
+        Batch(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.items = null;
+            this.length = length;
+        }
+
+        Batch(String[] items, int length) {
+            this.bytes = null;
+            this.items = items;
+            this.length = length;
+        }
+    }
+
+    // Put in the queues after the last batch
+    private static final Batch END = new Batch(new String[0], 0);
+
+    /**
+     * What a worker made of a batch
+     */
+    private static final class Result {
+        String[] values;
+        // Hashes of the items, to drop the duplicates, null without --unique
+        long[] hashes;
+        int count;
+        int records;
+        int bad;
+
+        Result(int capacity, boolean hashed) {
+            values = new String[capacity];
+            hashes = hashed ? new long[capacity] : null;
+        }
+
+        /**
+         * @param value what comes out of the pipeline
+         * @param item the item it was made from, which tells if it is a duplicate
+         */
+        void add(String value, String item) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+                if (hashes != null) {
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+            }
+            if (hashes != null) {
+                hashes[count] = LiveReload.hash(item);
+            }
+            values[count++] = value;
+        }
+    }
+
+    /**
+     * One import or export going through the threads, read by looping over what comes out
+     * Closing it stops the threads, whether everything came out or not.
+     */
+    private final class Run implements Iterator<String>, Closeable {
+        // Batches waiting for a worker
+        private final BlockingQueue<Batch> work = new ArrayBlockingQueue<>(threads * 2);
+        // Every batch in the order it was read, waiting to be taken out
+        private final BlockingQueue<Batch> ordered = new ArrayBlockingQueue<>(threads * 2);
+        private final List<Thread> running = new ArrayList<>();
+        // Hashes of the items kept so far, null without --unique
+        private final LongSet seen;
+        private Result current;
+        private int next;
+        private boolean finished;
+        long records;
+        long items;
+        long duplicates;
+        long bad;
+
+        /**
+         * @param source where the batches come from, it is closed at the end
+         * @param process what a worker does with a batch
+         * @param existing items to drop as duplicates with --unique
+         */
+        Run(Source source, Function<Batch, Result> process, Iterable<String> existing) {
+            seen = unique ? new LongSet() : null;
+            if (seen != null) {
+                for (String item : existing) {
+                    seen.add(LiveReload.hash(item));
+                }
+            }
+            running.add(new Thread(() -> read(source), "pipeline-reader"));
+            for (int i = 0; i < threads; i++) {
+                running.add(new Thread(() -> work(process), "pipeline-" + i));
+            }
+            for (Thread thread : running) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void read(Source source) {
+            try (source) {
+                try {
+                    for (Batch batch = source.next(); batch != null; batch = source.next()) {
+                        // In the ordered queue first, so it is waited for before anything read after it
+                        ordered.put(batch);
+                        work.put(batch);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Batch failed = new Batch(new String[0], 0);
+                    failed.done.completeExceptionally(e);
+                    ordered.put(failed);
+                }
+                ordered.put(END);
+                for (int i = 0; i < threads; i++) {
+                    work.put(END);
+                }
+            } catch (InterruptedException | IOException e) {
+                // closed before the end, or the source couldn't be closed after it was read
+            }
+        }
+
+        private void work(Function<Batch, Result> process) {
+            try {
+                for (Batch batch = work.take(); batch != END; batch = work.take()) {
+                    try {
+                        batch.done.complete(process.apply(batch));
+                    } catch (RuntimeException | Error e) {
+                        batch.done.completeExceptionally(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed before the end
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || next == current.count) {
+                if (finished) {
+                    return false;
+                }
+                Batch batch;
+                try {
+                    batch = ordered.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedIOException(new InterruptedIOException("Import or export interrupted"));
+                }
+                if (batch == END) {
+                    finished = true;
+                    return false;
+                }
+                try {
+                    current = batch.done.join();
+                } catch (CompletionException e) {
+                    throw unchecked(e.getCause());
+                }
+                next = 0;
+                records += current.records;
+                bad += current.bad;
+                if (seen != null) {
+                    dropDuplicates(current);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            items++;
+            return current.values[next++];
+        }
+
+        private void dropDuplicates(Result result) {
+            int kept = 0;
+            for (int i = 0; i < result.count; i++) {
+                if (seen.add(result.hashes[i])) {
+                    result.values[kept++] = result.values[i];
+                } else {
+                    duplicates++;
+                }
+            }
+            result.count = kept;
+        }
+
+        @Override
+        public void close() {
+            for (Thread thread : running) {
+                thread.interrupt();
+            }
+            for (Thread thread : running) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable e) {
+        if (e instanceof IOException) {
+            return new UncheckedIOException((IOException) e);
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return (RuntimeException) e;
+    }
+
+    /**
+     * Reads a file in pieces that end where a record ends, so each one can be parsed by itself
+     */
+    private static final class ChunkReader implements Source {
+        // Where the scan of CSV records in recordsEnd() is
+        private static final int FIELD_START = 0;
+        private static final int UNQUOTED = 1;
+        private static final int IN_QUOTES = 2;
+        private static final int QUOTE_SEEN = 3;
+
+        private final FileChannel channel;
+        // CSV records can have line breaks inside quotes
+        private final boolean quoted;
+        // The CSV field delimiter as UTF-8
+        private final byte[] delimiter;
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        private int length;
+        private boolean endOfFile;
+        private boolean started;
+
+        ChunkReader(Path file, boolean quoted, char delimiter) throws IOException {
+            channel = FileChannel.open(file, READ);
+            this.quoted = quoted;
+            this.delimiter = String.valueOf(delimiter).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Takes the first record out of the file, like the header row of a CSV file
+         *
+         * @return the record, or null if the file is empty
+         */
+        String firstRecord() throws IOException {
+            while (true) {
+                fill();
+                int end = recordsEnd(true);
+                if (end == 0 && !endOfFile) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                end = end == 0 ? length : end;
+                if (end == 0) {
+                    return null;
+                }
+                String record = new String(buffer, 0, end, StandardCharsets.UTF_8);
+                System.arraycopy(buffer, end, buffer, 0, length - end);
+                length -= end;
+                return record;
+            }
+        }
+
+        @Override
+        public Batch next() throws IOException {
+            while (true) {
+                fill();
+                if (length == 0) {
+                    return null;
+                }
+                int end = endOfFile ? length : recordsEnd(false);
+                if (end == 0) {
+                    // One record is longer than the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                // The batch keeps the buffer, what is left after its last record starts the next one
+                Batch batch = new Batch(buffer, end);
+                byte[] rest = new byte[Math.max(CHUNK_SIZE, length - end)];
+                System.arraycopy(buffer, end, rest, 0, length - end);
+                buffer = rest;
+                length -= end;
+                return batch;
+            }
+        }
+
+        private void fill() throws IOException {
+            while (length < buffer.length && !endOfFile) {
+                int n = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+                if (n < 0) {
+                    endOfFile = true;
+                } else {
+                    length += n;
+                }
+            }
+            // Skip the byte order mark some programs start UTF-8 files with
+            if (!started && length >= 3 && buffer[0] == (byte) 0xEF && buffer[1] == (byte) 0xBB && buffer[2] == (byte) 0xBF) {
+                System.arraycopy(buffer, 3, buffer, 0, length - 3);
+                length -= 3;
+            }
+            started = true;
+        }
+
+        /**
+         * Finds where the last whole record in the buffer ends, or the first one
+         * A line break inside a quoted CSV field is part of the field, so the fields are followed
+         * the way CsvCursor reads them: only a quote at the start of a field opens quotes, one
+         * anywhere else is just a character, and inside quotes a doubled quote is a quote. The
+         * buffer always starts with a record. JSON lines and plain lines end at every line break.
+         *
+         * @return the position after its line break, 0 if there is no whole record
+         */
+        private int recordsEnd(boolean first) {
+            if (!quoted) {
+                if (first) {
+                    for (int i = 0; i < length; i++) {
+                        if (buffer[i] == '\n') {
+                            return i + 1;
+                        }
+                    }
+                    return 0;
+                }
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer[i] == '\n') {
+                        return i + 1;
+                    }
+                }
+                return 0;
+            }
+            ByteBuffer words = ByteBuffer.wrap(buffer);
+            int state = FIELD_START;
+            int end = 0;
+            // Where the bytes outside quotes that are being scanned start, their last line break is looked for
+            // when quotes open or the buffer ends, so the line breaks don't have to be tracked on the way
+            int outside = 0;
+            int i = 0;
+            while (i < length) {
+                // 8 bytes without a quote can't open or close quotes, so only their last byte matters
+                if (state != QUOTE_SEEN && i + 8 <= length && found(words.getLong(i) ^ QUOTES) == 0
+                        && !(first && state != IN_QUOTES && found(words.getLong(i) ^ NEWLINES) != 0)) {
+                    if (state != IN_QUOTES) {
+                        state = buffer[i + 7] == '\n' || endsDelimiter(i + 7) ? FIELD_START : UNQUOTED;
+                    }
+                    i += 8;
+                    continue;
+                }
+                byte b = buffer[i];
+                if (state == IN_QUOTES) {
+                    if (b == '"') {
+                        state = QUOTE_SEEN;
+                    }
+                    i++;
+                    continue;
+                }
+                if (state == QUOTE_SEEN) {
+                    if (b == '"') {
+                        state = IN_QUOTES; // a doubled quote
+                        i++;
+                        continue;
+                    }
+                    // The quotes are closed, the rest of the field is read like an unquoted one
+                    outside = i;
+                }
+                if (b == '\n') {
+                    if (first) {
+                        return i + 1;
+                    }
+                    state = FIELD_START;
+                } else if (endsDelimiter(i)) {
+                    state = FIELD_START;
+                } else if (b == '"' && state == FIELD_START) {
+                    end = lastBreak(outside, i, end);
+                    state = IN_QUOTES;
+                } else {
+                    state = UNQUOTED;
+                }
+                i++;
+            }
+            // Still inside quotes (or right after a quote that may be doubled) at the end, the record goes on
+            return state == IN_QUOTES || state == QUOTE_SEEN || first ? end : lastBreak(outside, length, end);
+        }
+
+        /**
+         * @return the position after the last line break between two positions of the buffer, or the given one if there is none
+         */
+        private int lastBreak(int from, int to, int none) {
+            for (int i = to - 1; i >= from; i--) {
+                if (buffer[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return none;
+        }
+
+        /**
+         * @return the high bit of each byte of a word that is 0, and only of those
+         */
+        private static long found(long word) {
+            return ~(((word & LOW_7_BITS) + LOW_7_BITS) | word | LOW_7_BITS);
+        }
+
+        /**
+         * @return true if the delimiter ends at a position of the buffer
+         */
+        private boolean endsDelimiter(int i) {
+            if (buffer[i] != delimiter[delimiter.length - 1]) {
+                return false;
+            }
+            int start = i - delimiter.length + 1;
+            return delimiter.length == 1 || start >= 0 && Arrays.equals(buffer, start, i, delimiter, 0, delimiter.length - 1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the fields of CSV records one after the other
+     */
+    private static final class CsvCursor {
+        private final String text;
+        private final char delimiter;
+        private final StringBuilder quoted = new StringBuilder();
+        private int at;
+
+        CsvCursor(String text, char delimiter) {
+            this.text = text;
+            this.delimiter = delimiter;
+        }
+
+        boolean atEnd() {
+            return at >= text.length();
+        }
+
+        /**
+         * Moves past an empty line
+         *
+         * @return true if the cursor was on one
+         */
+        boolean atBlankLine() {
+            int i = at;
+            if (i < text.length() && text.charAt(i) == '\r') {
+                i++;
+            }
+            if (i < text.length() && text.charAt(i) == '\n') {
+                at = i + 1;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads the field at the cursor and stops on the delimiter or line break after it
+         *
+         * @param keep false to only skip over the field
+         * @return the field, null if it isn't kept
+         */
+        String field(boolean keep) {
+            int n = text.length();
+            if (at < n && text.charAt(at) == '"') {
+                quoted.setLength(0);
+                at++;
+                while (true) {
+                    int close = text.indexOf('"', at);
+                    close = close < 0 ? n : close;
+                    if (keep) {
+                        quoted.append(text, at, close);
+                    }
+                    at = close + 1;
+                    if (at >= n || text.charAt(at) != '"') {
+                        break;
+                    }
+                    // A doubled quote is a quote in the field
+                    if (keep) {
+                        quoted.append('"');
+                    }
+                    at++;
+                }
+                // Anything between the closing quote and the delimiter isn't valid CSV and is left out
+                while (at < n && text.charAt(at) != delimiter && text.charAt(at) != '\n') {
+                    at++;
+                }
+                return keep ? quoted.toString() : null;
+            }
+            int start = at;
+            while (at < n && text.charAt(at) != delimiter && text.charAt(at) != '\n') {
+                at++;
+            }
+            if (!keep) {
+                return null;
+            }
+            int end = at;
+            if (end > start && text.charAt(end - 1) == '\r' && (at == n || text.charAt(at) == '\n')) {
+                end--;
+            }
+            return text.substring(start, end);
+        }
+
+        /**
+         * Moves past the delimiter or the line break after a field
+         *
+         * @return true if another field of the same record follows
+         */
+        boolean nextField() {
+            boolean more = at < text.length() && text.charAt(at) == delimiter;
+            at++;
+            return more;
+        }
+    }
+
+    /**
+     * Reads the values of some keys out of a JSON object on one line, the rest is only skipped over
+     * A line that isn't a JSON object throws an IllegalArgumentException or an IndexOutOfBoundsException.
+     */
+    private static final class JsonReader {
+        private final String text;
+        private final int end;
+        private int at;
+
+        JsonReader(String text, int start, int end) {
+            this.text = text;
+            this.at = start;
+            this.end = end;
+        }
+
+        boolean blank() {
+            for (int i = at; i < end; i++) {
+                if (!Character.isWhitespace(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads an object, keeping the values of the wanted paths
+         *
+         * @param path the path of the object, "" for the one the line is
+         * @param paths the field each wanted path goes in
+         * @param parents the paths of the objects the wanted paths are in
+         * @param values the fields
+         */
+        void object(String path, Map<String, Integer> paths, Set<String> parents, String[] values) {
+            expect('{');
+            if (peek() == '}') {
+                at++;
+                return;
+            }
+            do {
+                String key = string(true);
+                expect(':');
+                String keyPath = path.isEmpty() ? key : path + "." + key;
+                Integer field = paths.get(keyPath);
+                if (field != null) {
+                    values[field] = value(true);
+                } else if (peek() == '{' && parents.contains(keyPath)) {
+                    object(keyPath, paths, parents, values);
+                } else {
+                    value(false);
+                }
+            } while (separator('}'));
+        }
+
+        /**
+         * Reads a value: a string without its quotes, a number or true or false as it is
+         * written, "" for null and the JSON of an object or an array
+         *
+         * @param keep false to only skip over the value
+         * @return the value, null if it isn't kept
+         */
+        private String value(boolean keep) {
+            char c = peek();
+            if (c == '"') {
+                return string(keep);
+            }
+            int start = at;
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = charAt(at);
+                    if (c == '"') {
+                        string(false);
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    at++;
+                } while (depth > 0);
+                return keep ? text.substring(start, at) : null;
+            }
+            while (at < end && ",}] \t\r\n".indexOf(text.charAt(at)) < 0) {
+                at++;
+            }
+            if (at == start) {
+                throw new IllegalArgumentException("No JSON value at " + start);
+            }
+            if (!keep) {
+                return null;
+            }
+            String literal = text.substring(start, at);
+            return literal.equals("null") ? "" : literal;
+        }
+
+        private String string(boolean keep) {
+            expect('"');
+            int start = at;
+            while (charAt(at) != '"' && charAt(at) != '\\') {
+                at++;
+            }
+            if (charAt(at) == '"') {
+                at++;
+                return keep ? text.substring(start, at - 1) : null;
+            }
+            // Has escapes, only worth turning into characters if it is kept
+            StringBuilder value = new StringBuilder().append(text, start, at);
+            while (true) {
+                char c = charAt(at++);
+                if (c == '"') {
+                    return keep ? value.toString() : null;
+                }
+                if (c == '\\') {
+                    c = charAt(at++);
+                    switch (c) {
+                        case 'b':
+                            c = '\b';
+                            break;
+                        case 'f':
+                            c = '\f';
+                            break;
+                        case 'n':
+                            c = '\n';
+                            break;
+                        case 'r':
+                            c = '\r';
+                            break;
+                        case 't':
+                            c = '\t';
+                            break;
+                        case 'u':
+                            charAt(at + 3);
+                            c = (char) Integer.parseInt(text.substring(at, at + 4), 16);
+                            at += 4;
+                            break;
+                        default:
+                            break; // \" \\ and \/ are the character itself
+                    }
+                }
+                value.append(c);
+            }
+        }
+
+        /**
+         * @return the next character that isn't a space
+         */
+        private char peek() {
+            while (at < end && Character.isWhitespace(text.charAt(at))) {
+                at++;
+            }
+            if (at >= end) {
+                throw new IllegalArgumentException("The JSON ends too soon");
+            }
+            return text.charAt(at);
+        }
+
+        /**
+         * @return the character at i, which has to be on the line
+         */
+        private char charAt(int i) {
+            if (i >= end) {
+                throw new IllegalArgumentException("The JSON ends too soon");
+            }
+            return text.charAt(i);
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("Expected " + c + " at " + at);
+            }
+            at++;
+        }
+
+        /**
+         * @return true after a comma, false after the closing character
+         */
+        private boolean separator(char close) {
+            char c = peek();
+            at++;
+            if (c == ',') {
+                return true;
+            }
+            if (c == close) {
+                return false;
+            }
+            throw new IllegalArgumentException("Expected , or " + close + " at " + (at - 1));
+        }
+    }
+
+    /**
+     * Set of 64-bit hashes with open addressing, a lot smaller than a HashSet of Longs
+     */
+    private static final class LongSet {
+        private long[] slots = new long[1024];
+        private int shift = 64 - 10;
+        private int size;
+        // 0 marks a free slot, so it is kept apart
+        private boolean hasZero;
+
+        /**
+         * @return true if the hash wasn't in the set yet
+         */
+        boolean add(long hash) {
+            if (hash == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if (size * 2 >= slots.length) {
+                grow();
+            }
+            int mask = slots.length - 1;
+            for (int i = slot(hash); ; i = (i + 1) & mask) {
+                if (slots[i] == 0) {
+                    slots[i] = hash;
+                    size++;
+                    return true;
+                }
+                if (slots[i] == hash) {
+                    return false;
+                }
+            }
+        }
+
+        private int slot(long hash) {
+            return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            shift--;
+            int mask = slots.length - 1;
+            for (long hash : old) {
+                if (hash != 0) {
+                    int i = slot(hash);
+                    while (slots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    slots[i] = hash;
+                }
+            }
+        }
+    }
+}
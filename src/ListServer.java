@@ -0,0 +1,662 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves one list to several clients at once over a socket on this machine
+ *
+ *   java Main --serve list.txt [<port>]
+ *
+ * Clients send one command per line (UTF-8) and get one reply per command, in order:
+ *   ADD item        add an item to the end              OK <size>
+ *   DEL n           delete item number n (from 1)       OK <size>
+ *   CLEAR           clear the list                      OK 0
+ *   GET from count  items from, from+1, ... (at most    OK <k>, then the k items one per line
+ *                   1000 of them)
+ *   SIZE            number of items                     OK <size>
+ *   SAVE            save the edits made so far          OK <size>
+ *   QUIT            close the connection                OK bye
+ * A command that can't be done gets "ERR <why>" instead.
+ *
+ * The list is only changed by one writer thread. Edits from all clients are queued to it
+ * and it applies whatever has queued up in one go, writing them to the journal of the
+ * list like the menu does (so SAVE only commits the journal). After a batch it publishes
+ * a snapshot of the list, the copy the list storages make for saving in the background,
+ * through a volatile field. GET and SIZE are answered from the last snapshot on the
+ * threads that talk to the clients, so readers never wait for the writer or for each
+ * other, and the writer never waits for readers.
+ *
+ * Making a snapshot costs a copy of the list's index, so under a steady stream of edits
+ * the writer publishes at most once per PUBLISH_RATIO times the last copy took. A client
+ * always sees its own edits: a GET after its own ADD waits for the next snapshot instead
+ * of being answered from an older one.
+ *
+ * The sockets are handled by -Dfilelist.serverThreads selector threads (one per core if
+ * it isn't given), and -Dfilelist.autosaveMillis works here too. The server only listens
+ * on the loopback address, it is meant for services on the same machine.
+ */
+public class ListServer {
+
+    static final int DEFAULT_PORT = 7373;
+    // Longest command line a client can send
+    static final int MAX_LINE = 1 << 20;
+    // Most items one GET returns
+    static final int MAX_RANGE = 1000;
+    // Most edits applied before a snapshot is considered
+    private static final int MAX_BATCH = 4096;
+    // Publish at most once per this many times the last snapshot took to make
+    private static final int PUBLISH_RATIO = 10;
+    // Stop reading from a client that has this many reply bytes waiting to be sent
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    /**
+     * A copy of the list that is never changed again, and the edit it includes up to
+     */
+    private static final class Snapshot {
+        final List<String> items;
+        final long version;
+
+        Snapshot(List<String> items, long version) {
+            this.items = items;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A command handed to the writer thread
+     */
+    private static final class Request {
+        final Connection connection;
+        final String command;
+        final String argument;
+        // Filled in by the writer
+        String reply;
+        long version;
+        long bytesSaved = -1;
+        // Set for saves asked for by the autosaver, which has no connection to reply to
+        final CompletableFuture<Long> saved;
+
+        Request(Connection connection, String command, String argument) {
+            this.connection = connection;
+            this.command = command;
+            this.argument = argument;
+            this.saved = connection == null ? new CompletableFuture<>() : null;
+        }
+    }
+
+    /**
+     * One client
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        SelectionKey key;
+        // Bytes read but not handled yet, and reply bytes not sent yet (both ready to be written to)
+        ByteBuffer input = ByteBuffer.allocate(8192);
+        ByteBuffer output = ByteBuffer.allocate(8192);
+        // Set while a command is with the writer, later commands wait so replies stay in order
+        boolean waiting;
+        // The edit version of this client's last edit, its reads have to include it
+        long lastEdit;
+        boolean closing;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    private final Path file;
+    private final ServerSocketChannel server;
+    private final IoLoop[] loops;
+    private final Thread writer;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final AutoSaver autoSaver;
+    private volatile boolean running = true;
+    private boolean stopped;
+    private volatile Snapshot published;
+
+    // Only used by the writer thread
+    private List<String> list;
+    private ListJournal journal;
+    private long version;
+    private boolean needsToBeSaved;
+
+    /**
+     * Opens a list file (or starts a new one) and the socket to serve it on
+     * Call start() to start serving
+     *
+     * @param file the list file
+     * @param port the port to listen on, 0 for any free port
+     * @param threads number of threads handling the sockets
+     * @throws IOException if the list or the socket can't be opened
+     */
+    public ListServer(Path file, int port, int threads) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            list = NIOFileEditing.readLines(file);
+            journal = ListJournal.open(file);
+            if (journal != null) {
+                int recovered = journal.replay(list);
+                if (recovered > 0) {
+                    System.out.println("Recovered " + recovered + " unsaved edit(s) to " + file);
+                    needsToBeSaved = true;
+                }
+            }
+        } else {
+            list = new GapBufferList<>(); // the first save writes the file and starts the journal
+        }
+        published = new Snapshot(Main.snapshot(list), version);
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.configureBlocking(false);
+        loops = new IoLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+        }
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        writer = new Thread(this::write, "list-writer");
+        autoSaver = AutoSaver.fromProperty(this::autoSave);
+    }
+
+    /**
+     * Starts the writer and socket threads
+     */
+    public void start() {
+        writer.start();
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops serving and closes the list
+     * Edits that were saved are folded into the list file, unsaved ones are dropped
+     */
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        running = false;
+        if (autoSaver != null) {
+            autoSaver.cancel();
+        }
+        writer.interrupt();
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        try {
+            writer.join();
+            for (IoLoop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (journal != null) {
+            journal.close(needsToBeSaved ? null : list);
+        }
+    }
+
+    /**
+     * Serves a list from the command line until the program is stopped
+     *
+     * @param args the arguments after "--serve": the list file and optionally the port
+     * @return the exit status
+     */
+    public static int run(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java Main --serve <list file> [<port>]");
+            return 2;
+        }
+        try {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("filelist.port", DEFAULT_PORT);
+            int threads = Integer.getInteger("filelist.serverThreads", Runtime.getRuntime().availableProcessors());
+            ListServer listServer = new ListServer(Paths.get(args[0]), port, threads);
+            Runtime.getRuntime().addShutdownHook(new Thread(listServer::stop, "list-server-stop"));
+            listServer.start();
+            System.out.println("Serving " + args[0] + " (" + listServer.published.items.size()
+                    + " items) on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + listServer.port());
+            listServer.writer.join();
+            return 0;
+        } catch (NumberFormatException e) {
+            System.err.println("Not a port number: " + args[1]);
+            return 2;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        } catch (InterruptedException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The writer thread: applies queued edits in batches and publishes snapshots
+     */
+    private void write() {
+        List<Request> batch = new ArrayList<>();
+        long lastPublish = System.nanoTime();
+        long publishNanos = 0;
+        while (running) {
+            Request first;
+            try {
+                // With edits that nobody can see yet, don't wait long before showing them
+                first = published.version == version
+                        ? requests.take()
+                        : requests.poll(Math.max(1, PUBLISH_RATIO * publishNanos / 1_000_000), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            batch.clear();
+            if (first != null) {
+                batch.add(first);
+                requests.drainTo(batch, MAX_BATCH - 1);
+            }
+
+            boolean readsWaiting = false;
+            for (Request request : batch) {
+                if (request.command.equals("GET") || request.command.equals("SIZE")) {
+                    readsWaiting = true;
+                } else {
+                    apply(request);
+                }
+            }
+            long now = System.nanoTime();
+            if (published.version != version
+                    && (first == null || readsWaiting || now - lastPublish >= PUBLISH_RATIO * publishNanos)) {
+                published = new Snapshot(Main.snapshot(list), version);
+                lastPublish = System.nanoTime();
+                publishNanos = lastPublish - now;
+            }
+
+            for (Request request : batch) {
+                if (request.saved != null) {
+                    if (request.reply.startsWith("OK")) {
+                        request.saved.complete(request.bytesSaved);
+                    } else {
+                        request.saved.completeExceptionally(new IOException(request.reply));
+                    }
+                    continue;
+                }
+                if (request.reply == null) {
+                    request.reply = answer(published, request.command, request.argument);
+                }
+                request.connection.loop.replied(request);
+            }
+        }
+    }
+
+    /**
+     * Applies one edit or save on the writer thread
+     */
+    private void apply(Request request) {
+        switch (request.command) {
+            case "ADD":
+                if (request.argument.isEmpty()) {
+                    request.reply = "ERR item can't be empty";
+                    return;
+                }
+                list.add(request.argument);
+                if (journal != null) {
+                    journal.add(list.size() - 1, request.argument);
+                }
+                break;
+            case "DEL":
+                int number = SafeInput.parseNumber(request.argument);
+                if (number < 1 || number > list.size()) {
+                    request.reply = "ERR no item number \"" + request.argument + "\" in a list of " + list.size();
+                    return;
+                }
+                list.remove(number - 1);
+                if (journal != null) {
+                    journal.delete(number - 1);
+                }
+                break;
+            case "CLEAR":
+                list = new GapBufferList<>();
+                if (journal != null) {
+                    journal.clear();
+                }
+                break;
+            case "SAVE":
+                if (request.saved != null && !needsToBeSaved) {
+                    request.reply = "OK " + list.size(); // nothing for the autosaver to do
+                    return;
+                }
+                try {
+                    request.bytesSaved = save();
+                    request.reply = "OK " + list.size();
+                } catch (IOException e) {
+                    request.reply = "ERR " + e.getMessage();
+                }
+                request.version = version;
+                return;
+            default:
+                request.reply = "ERR unknown command " + request.command;
+                return;
+        }
+        request.version = ++version;
+        request.reply = "OK " + list.size();
+        needsToBeSaved = true;
+        if (autoSaver != null) {
+            autoSaver.edited();
+        }
+    }
+
+    /**
+     * Saves the list the same way the menu does: the first save writes the whole file,
+     * later ones only commit the journal
+     *
+     * @return the number of bytes written
+     */
+    private long save() throws IOException {
+        long bytes;
+        if (journal == null || journal.hasFailed()) {
+            if (journal != null) {
+                journal.waitForCompaction(); // so it doesn't write the file over this save
+            }
+            NIOFileEditing.writeFile(list, file);
+            bytes = Files.size(file);
+            if (journal != null) {
+                journal.discard(); // the file holds everything it did
+            }
+            journal = ListJournal.open(file);
+            if (journal != null) {
+                journal.reset();
+            }
+        } else {
+            bytes = journal.commit();
+        }
+        needsToBeSaved = false;
+        return bytes;
+    }
+
+    /**
+     * Runs on the autosave thread, hands the save to the writer and waits for it
+     */
+    private long autoSave() throws IOException {
+        Request request = new Request(null, "SAVE", "");
+        requests.add(request);
+        try {
+            return request.saved.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Answers GET or SIZE from a snapshot
+     */
+    private static String answer(Snapshot snapshot, String command, String argument) {
+        List<String> items = snapshot.items;
+        if (command.equals("SIZE")) {
+            return "OK " + items.size();
+        }
+        String[] range = argument.trim().split(" +");
+        int from = range.length == 2 ? SafeInput.parseNumber(range[0]) : -1;
+        int count = range.length == 2 ? SafeInput.parseNumber(range[1]) : -1;
+        if (from < 1 || count < 0) {
+            return "ERR GET needs the number of the first item and how many items";
+        }
+        int end = (int) Math.min(items.size(), Math.min((long) from - 1 + count, (long) from - 1 + MAX_RANGE));
+        StringBuilder reply = new StringBuilder("OK ").append(Math.max(0, end - (from - 1)));
+        for (int i = from - 1; i < end; i++) {
+            reply.append('\n').append(items.get(i));
+        }
+        return reply.toString();
+    }
+
+    /**
+     * One thread handling the sockets of some of the clients
+     */
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        // Clients accepted by loop 0 for this loop
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // Commands the writer has answered
+        final Queue<Request> replies = new ConcurrentLinkedQueue<>();
+        // Loop that gets the next accepted client, only used by loop 0
+        private int next;
+
+        IoLoop(int number) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "list-server-" + number);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Called by the writer when a command from one of this loop's clients is done
+         */
+        void replied(Request request) {
+            replies.add(request);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    Request request;
+                    while ((request = replies.poll()) != null) {
+                        Connection connection = request.connection;
+                        if (!connection.channel.isOpen()) {
+                            continue;
+                        }
+                        connection.waiting = false;
+                        connection.lastEdit = Math.max(connection.lastEdit, request.version);
+                        reply(connection, request.reply);
+                        try {
+                            handleInput(connection);
+                        } catch (IOException e) {
+                            close(connection);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                flush(connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                        } catch (IOException e) {
+                            close(connection); // the client went away
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        // closing anyway
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                if (loop == this) {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } else {
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            ByteBuffer input = connection.input;
+            if (!input.hasRemaining()) {
+                if (input.capacity() >= MAX_LINE) {
+                    reply(connection, "ERR line too long");
+                    connection.closing = true;
+                    flush(connection);
+                    return;
+                }
+                connection.input = input = ByteBuffer.allocate(input.capacity() * 2).put(input.flip());
+            }
+            if (connection.channel.read(input) < 0) {
+                close(connection);
+                return;
+            }
+            handleInput(connection);
+        }
+
+        /**
+         * Handles the complete command lines that were read, until one has to wait for the writer
+         */
+        private void handleInput(Connection connection) throws IOException {
+            ByteBuffer input = connection.input.flip();
+            byte[] bytes = input.array();
+            int start = input.position();
+            for (int i = start; i < input.limit() && !connection.waiting && !connection.closing; i++) {
+                if (bytes[i] == '\n') {
+                    int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                    handle(connection, new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            input.position(start);
+            input.compact();
+            flush(connection);
+        }
+
+        private void handle(Connection connection, String line) {
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+            String argument = space < 0 ? "" : line.substring(space + 1);
+            switch (command) {
+                case "GET":
+                case "SIZE":
+                    Snapshot snapshot = published;
+                    if (snapshot.version >= connection.lastEdit) {
+                        reply(connection, answer(snapshot, command, argument));
+                        return;
+                    }
+                    // The last snapshot is older than this client's own edit, the writer answers after the next one
+                    break;
+                case "QUIT":
+                    reply(connection, "OK bye");
+                    connection.closing = true;
+                    return;
+                case "":
+                    return;
+                default:
+                    break;
+            }
+            connection.waiting = true;
+            requests.add(new Request(connection, command, argument));
+        }
+
+        private void reply(Connection connection, String text) {
+            byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer output = connection.output;
+            if (output.remaining() < bytes.length) {
+                int size = output.capacity();
+                while (size - output.position() < bytes.length) {
+                    size *= 2;
+                }
+                connection.output = output = ByteBuffer.allocate(size).put(output.flip());
+            }
+            output.put(bytes);
+        }
+
+        private void flush(Connection connection) throws IOException {
+            ByteBuffer output = connection.output.flip();
+            if (output.hasRemaining()) {
+                connection.channel.write(output);
+            }
+            boolean done = !output.hasRemaining();
+            output.compact();
+            if (done && connection.closing) {
+                close(connection);
+                return;
+            }
+            if (!connection.key.isValid()) {
+                return;
+            }
+            // Wait for the socket to take more while replies are left, and stop reading if too many are
+            int ops = output.position() > MAX_PENDING_OUTPUT || connection.closing ? 0 : SelectionKey.OP_READ;
+            connection.key.interestOps(done ? ops : ops | SelectionKey.OP_WRITE);
+        }
+
+        private void close(Connection connection) {
+            connection.key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
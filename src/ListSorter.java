@@ -0,0 +1,557 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Sorts, removes duplicates from and merges lists and list files
+ *
+ * Items are sorted in chunks that fit in the memory budget. Each chunk is sorted with
+ * Arrays.parallelSort, which splits the work over every core with the common fork/join
+ * pool. When everything fits in one chunk that is the whole sort. Otherwise every sorted
+ * chunk is spilled to a temp file (a run) and the runs are merged by streaming through
+ * them with a LineReader each, so only the current item of every run is in memory. Files
+ * of any size are sorted with the heap the budget allows.
+ *
+ * The budget is a quarter of the heap, or -Dfilelist.sortMemory=<bytes>.
+ *
+ * From the command line:
+ *   java Main --sort [--ignore-case | --numeric] [--unique] [-o output] file...
+ * sorts the files together into the output, or into the first file if there is no -o.
+ */
+public class ListSorter {
+
+    /**
+     * The orders a list can be sorted in
+     */
+    public enum Order {
+        // Character by character, upper case before lower case like String.compareTo
+        TEXT(Comparator.naturalOrder()),
+        // Character by character ignoring case, "Milk" and "milk" count as the same item
+        IGNORE_CASE(String.CASE_INSENSITIVE_ORDER),
+        // By the number each item starts with (0 if it doesn't), items with the same number by their text
+        NUMBER(ListSorter::compareNumbers);
+
+        private final Comparator<String> comparator;
+
+        Order(Comparator<String> comparator) {
+            this.comparator = comparator;
+        }
+
+        public Comparator<String> comparator() {
+            return comparator;
+        }
+    }
+
+    // Most runs merged at once, more than this are merged into bigger runs first
+    static final int MAX_MERGE = 64;
+    // Rough heap cost of a String on top of its characters
+    private static final int STRING_OVERHEAD = 56;
+
+    /**
+     * Sorts a list and optionally removes its duplicates
+     * A list too big for the memory budget is sorted through temp files, and the sorted list
+     * is then mapped from a temp file that is deleted as soon as it is mapped.
+     *
+     * @param list the list to sort, it isn't changed
+     * @param order the order to sort in
+     * @param unique true to keep only the first of the items the order counts as the same
+     * @return the sorted list
+     * @throws IOException if a temp file can't be written or read
+     */
+    public static List<String> sort(List<String> list, Order order, boolean unique) throws IOException {
+        return merge(list, List.of(), order, unique);
+    }
+
+    /**
+     * Merges list files into a list and sorts it, optionally removing its duplicates
+     * The files are streamed in, so they don't have to fit in memory.
+     *
+     * @param list the list, it isn't changed
+     * @param files the list files to merge into it
+     * @param order the order to sort in
+     * @param unique true to keep only the first of the items the order counts as the same
+     * @return the sorted list holding the items of the list and the files
+     * @throws IOException if a file can't be read, or a temp file can't be written or read
+     */
+    public static List<String> merge(List<String> list, List<Path> files, Order order, boolean unique)
+            throws IOException {
+        List<Path> runs = new ArrayList<>();
+        List<LineReader> readers = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                readers.add(new LineReader(file));
+            }
+            String[] sorted = sortInRuns(concat(list.iterator(), readers), order, unique, runs);
+            if (runs.isEmpty()) {
+                GapBufferList<String> result = new GapBufferList<>();
+                result.addAll(Arrays.asList(sorted));
+                return result;
+            }
+            Path file = Files.createTempFile("sorted", ".txt");
+            try {
+                merge(runs, file, order, unique);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return MappedLineList.openTemp(file);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (LineReader reader : readers) {
+                reader.close();
+            }
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * Sorts list files together into one file, which merges them
+     *
+     * @param inputs the list files, the output can be one of them
+     * @param output the file to write the sorted items to
+     * @param order the order to sort in
+     * @param unique true to keep only the first of the items the order counts as the same
+     * @return the number of items written
+     * @throws IOException if a file can't be read or written
+     */
+    public static long sortFiles(List<Path> inputs, Path output, Order order, boolean unique) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        List<LineReader> readers = new ArrayList<>();
+        try {
+            for (Path input : inputs) {
+                readers.add(new LineReader(input));
+            }
+            Iterator<String> items = concat(Collections.emptyIterator(), readers);
+            String[] sorted = sortInRuns(items, order, unique, runs);
+            for (LineReader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+            if (runs.isEmpty()) {
+                NIOFileEditing.writeFile(Arrays.asList(sorted), output);
+                return sorted.length;
+            }
+            return merge(runs, output, order, unique);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (LineReader reader : readers) {
+                reader.close();
+            }
+            deleteAll(runs);
+        }
+    }
+
+    /**
+     * Runs a sort from the command line arguments
+     *
+     * @param args the arguments after "--sort"
+     * @return the exit status, 0 if the sort worked
+     */
+    public static int run(String[] args) {
+        Order order = Order.TEXT;
+        boolean unique = false;
+        Path output = null;
+        List<Path> inputs = new ArrayList<>();
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--ignore-case":
+                    order = Order.IGNORE_CASE;
+                    break;
+                case "--numeric":
+                    order = Order.NUMBER;
+                    break;
+                case "--unique":
+                    unique = true;
+                    break;
+                case "-o":
+                    if (i + 1 < args.length) {
+                        output = Paths.get(args[++i]);
+                    } else {
+                        usage = true;
+                    }
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        usage = true;
+                    } else {
+                        inputs.add(Paths.get(args[i]));
+                    }
+                    break;
+            }
+        }
+        if (usage || inputs.isEmpty()) {
+            System.err.println("Usage: java Main --sort [--ignore-case | --numeric] [--unique] [-o <output>] <list file>...");
+            return 2;
+        }
+
+        try {
+            long start = System.nanoTime();
+            Path target = output != null ? output : inputs.get(0);
+            // Saved edits that are still in a journal are folded in first, so they are sorted too and not written over
+            for (Path input : inputs) {
+                ListJournal.foldInto(input);
+            }
+            ListJournal.foldInto(target);
+            long count = sortFiles(inputs, target, order, unique);
+            System.out.printf("%d items sorted into %s in %.1f s%n", count, target, (System.nanoTime() - start) / 1e9);
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * Sorts items in chunks that fit in the memory budget
+     *
+     * @param items the items to sort
+     * @param runs where the temp file of each chunk is added when there is more than one chunk
+     * @return the sorted items if they all fit in one chunk, otherwise null and the chunks are in runs
+     */
+    private static String[] sortInRuns(Iterator<String> items, Order order, boolean unique, List<Path> runs)
+            throws IOException {
+        long budget = Long.getLong("filelist.sortMemory", Runtime.getRuntime().maxMemory() / 4);
+        String[] chunk = new String[1024];
+        while (true) {
+            int count = 0;
+            long used = 0;
+            while (used < budget && items.hasNext()) {
+                String item = items.next();
+                if (count == chunk.length) {
+                    chunk = Arrays.copyOf(chunk, count * 2);
+                }
+                chunk[count++] = item;
+                used += STRING_OVERHEAD + 2L * item.length() + 8;
+            }
+            // Split over the cores by the common fork/join pool, and stable so the first duplicate is kept
+            Arrays.parallelSort(chunk, 0, count, order.comparator());
+            int kept = unique ? removeDuplicates(chunk, count, order) : count;
+            if (runs.isEmpty() && !items.hasNext()) {
+                return Arrays.copyOf(chunk, kept);
+            }
+            Path run = Files.createTempFile("run", ".txt");
+            runs.add(run);
+            try (FileChannel channel = FileChannel.open(run, WRITE, TRUNCATE_EXISTING)) {
+                NIOFileEditing.writeLines(Arrays.asList(chunk).subList(0, kept), channel);
+            }
+            if (!items.hasNext()) {
+                return null;
+            }
+            Arrays.fill(chunk, null); // let the chunk be garbage collected while the next one is read
+        }
+    }
+
+    /**
+     * Merges sorted runs into one sorted file, a few at a time if there are many
+     *
+     * @return the number of items written
+     */
+    private static long merge(List<Path> runs, Path output, Order order, boolean unique) throws IOException {
+        List<Path> level = new ArrayList<>(runs);
+        while (level.size() > MAX_MERGE) {
+            List<Path> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += MAX_MERGE) {
+                Path run = Files.createTempFile("run", ".txt");
+                runs.add(run); // so it is deleted with the others if the merge fails
+                next.add(run);
+                List<Path> merged = level.subList(i, Math.min(i + MAX_MERGE, level.size()));
+                mergeInto(merged, run, order, unique, false);
+                // The merged runs aren't needed any more, so they don't use up the disk for the rest of the sort
+                deleteAll(merged);
+            }
+            level = next;
+        }
+        return mergeInto(level, output, order, unique, true);
+    }
+
+    private static long mergeInto(List<Path> runs, Path output, Order order, boolean unique, boolean keep)
+            throws IOException {
+        List<LineReader> readers = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                readers.add(new LineReader(run));
+            }
+            MergedItems merged = new MergedItems(readers, order.comparator(), unique);
+            if (keep) {
+                NIOFileEditing.writeFile(merged, output);
+            } else {
+                try (FileChannel channel = FileChannel.open(output, WRITE, TRUNCATE_EXISTING)) {
+                    NIOFileEditing.writeLines(merged, channel);
+                }
+            }
+            return merged.count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (LineReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * The items of several sorted runs in sorted order, read from the runs as they are needed
+     * Ties go to the earlier run, so the merge is stable like the sort of each run
+     */
+    private static class MergedItems implements Iterable<String>, Iterator<String> {
+
+        private final List<LineReader> readers;
+        private final Comparator<String> comparator;
+        private final boolean unique;
+        // The next item of every run that has items left, as {item, run number}
+        private final PriorityQueue<Object[]> heads;
+        private String last;
+        private long count;
+
+        MergedItems(List<LineReader> readers, Comparator<String> comparator, boolean unique) {
+            this.readers = readers;
+            this.comparator = comparator;
+            this.unique = unique;
+            this.heads = new PriorityQueue<>(Math.max(1, readers.size()), (a, b) -> {
+                int compared = comparator.compare((String) a[0], (String) b[0]);
+                return compared != 0 ? compared : Integer.compare((Integer) a[1], (Integer) b[1]);
+            });
+            for (int i = 0; i < readers.size(); i++) {
+                advance(new Object[]{null, i});
+            }
+            skipDuplicates();
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            Object[] head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            last = (String) head[0];
+            count++;
+            advance(head);
+            skipDuplicates();
+            return last;
+        }
+
+        /**
+         * Reads the next item of a run into its head, the run is dropped when it runs out
+         */
+        private void advance(Object[] head) {
+            try {
+                String item = readers.get((Integer) head[1]).readLine();
+                if (item != null) {
+                    head[0] = item;
+                    heads.add(head);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void skipDuplicates() {
+            while (unique && last != null && !heads.isEmpty()
+                    && comparator.compare((String) heads.peek()[0], last) == 0) {
+                advance(heads.poll());
+            }
+        }
+    }
+
+    /**
+     * Removes the items of a sorted array that are the same as the one before them
+     *
+     * @return the number of items left at the start of the array
+     */
+    private static int removeDuplicates(String[] items, int count, Order order) {
+        if (count == 0) {
+            return 0;
+        }
+        int kept = 1;
+        for (int i = 1; i < count; i++) {
+            if (order.comparator().compare(items[i], items[kept - 1]) != 0) {
+                items[kept++] = items[i];
+            }
+        }
+        Arrays.fill(items, kept, count, null);
+        return kept;
+    }
+
+    /**
+     * Compares two items by the number they start with, like "sort -n"
+     * The numbers are compared digit by digit, so they can be any length and are never rounded.
+     * Spaces before the number are skipped and an item that doesn't start with a number counts as 0.
+     */
+    static int compareNumbers(String a, String b) {
+        int i = skipSpaces(a, 0);
+        int j = skipSpaces(b, 0);
+        boolean negativeA = a.startsWith("-", i) && isNumber(a, i + 1);
+        boolean negativeB = b.startsWith("-", j) && isNumber(b, j + 1);
+        if (negativeA) {
+            i++;
+        }
+        if (negativeB) {
+            j++;
+        }
+        // -0 is the same as 0, so the sign only counts for numbers that aren't zero
+        int signA = isZero(a, i) ? 0 : negativeA ? -1 : 1;
+        int signB = isZero(b, j) ? 0 : negativeB ? -1 : 1;
+        if (signA != signB) {
+            return Integer.compare(signA, signB);
+        }
+        int compared = signA * compareMagnitudes(a, i, b, j);
+        return compared != 0 ? compared : a.compareTo(b);
+    }
+
+    /**
+     * Compares the numbers (without signs) starting at two positions
+     */
+    private static int compareMagnitudes(String a, int i, String b, int j) {
+        // Leading zeros don't change the number
+        while (i < a.length() && a.charAt(i) == '0') {
+            i++;
+        }
+        while (j < b.length() && b.charAt(j) == '0') {
+            j++;
+        }
+        int endA = digitsEnd(a, i);
+        int endB = digitsEnd(b, j);
+        // More digits before the point is a bigger number
+        if (endA - i != endB - j) {
+            return Integer.compare(endA - i, endB - j);
+        }
+        for (; i < endA; i++, j++) {
+            if (a.charAt(i) != b.charAt(j)) {
+                return Integer.compare(a.charAt(i), b.charAt(j));
+            }
+        }
+        // Same whole part, compare what's after the point digit by digit
+        i = endA < a.length() && a.charAt(endA) == '.' ? endA + 1 : a.length();
+        j = endB < b.length() && b.charAt(endB) == '.' ? endB + 1 : b.length();
+        while (true) {
+            int digitA = i < a.length() && isDigit(a.charAt(i)) ? a.charAt(i) : '0';
+            int digitB = j < b.length() && isDigit(b.charAt(j)) ? b.charAt(j) : '0';
+            boolean moreA = i < a.length() && isDigit(a.charAt(i));
+            boolean moreB = j < b.length() && isDigit(b.charAt(j));
+            if (!moreA && !moreB) {
+                return 0;
+            }
+            if (digitA != digitB) {
+                return Integer.compare(digitA, digitB);
+            }
+            i++;
+            j++;
+        }
+    }
+
+    private static boolean isZero(String s, int i) {
+        int end = digitsEnd(s, i);
+        if (end < s.length() && s.charAt(end) == '.') {
+            end = digitsEnd(s, end + 1);
+        }
+        for (; i < end; i++) {
+            if (s.charAt(i) >= '1' && s.charAt(i) <= '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String s, int i) {
+        return i < s.length() && (isDigit(s.charAt(i))
+                || s.charAt(i) == '.' && i + 1 < s.length() && isDigit(s.charAt(i + 1)));
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digitsEnd(String s, int i) {
+        while (i < s.length() && isDigit(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipSpaces(String s, int i) {
+        while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Some items followed by the lines of several files one after the other
+     */
+    private static Iterator<String> concat(Iterator<String> first, List<LineReader> readers) {
+        return new Iterator<>() {
+            private int current;
+            private String next = read();
+
+            private String read() {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                try {
+                    while (current < readers.size()) {
+                        String line = readers.get(current).readLine();
+                        if (line != null) {
+                            return line;
+                        }
+                        current++;
+                    }
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String line = next;
+                next = read();
+                return line;
+            }
+        };
+    }
+
+    private static void deleteAll(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
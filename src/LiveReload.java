@@ -0,0 +1,809 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Keeps an open list up to date while other programs change its file
+ *
+ * A WatchService thread waits for the folder of the list file to say the file changed, and
+ * then asks the listener to merge the change into the list. Only what changed is read and
+ * put into the list, the list isn't read again:
+ *
+ *  - When lines were only added to the end of a text file (like a log that another job
+ *    keeps appending to), only the new end of the file is read, from where the last whole
+ *    line ended. A line is only taken once its '\n' is there, so a line that is still being
+ *    written isn't taken half done. It is taken for added lines when the same file is bigger
+ *    and still has its first and last lines where they were.
+ *  - Any other change is found by reading the file and comparing it line by line with what
+ *    the file was before. The lines both versions start and end with are skipped, and what
+ *    is left in between is compared with the Myers diff, so a few edits here and there
+ *    become a few small changes to the list.
+ *
+ * The file as it was is remembered as a 64-bit hash of every line instead of the lines
+ * themselves, 8 bytes a line however long the lines are. Until it is needed it is only a
+ * snapshot of the list that was read, so opening a list doesn't cost anything more. The
+ * snapshot may be read from a mapping of the file, which shows whatever another program
+ * writes over the file in place, so the watch thread hashes it as soon as it starts, and
+ * a file written by this program that is read that way is hashed as soon as it is written.
+ *
+ * The list itself mustn't read its lines from a mapping of the file, or writing over the
+ * file would change it before anything is merged: a MappedLineList of the file has to be
+ * detached (see MappedLineList.detach()) before it is given to merge().
+ *
+ * If the list was edited since it matched the file, its edits are worked out the same way
+ * (by comparing the list with what the file was), and each change of the file goes into
+ * the list around them. A change to the same lines as an edit is a conflict: the edit made
+ * in the list is kept and the conflict is reported. Lines added at the same place in both
+ * are all kept, the ones from the file first.
+ *
+ * Turn it on with -Dfilelist.liveReload=true, or from the menu.
+ */
+public class LiveReload {
+
+    /**
+     * Told when the list file may have changed
+     */
+    public interface Listener {
+        /**
+         * Called on the watch thread, merge() should be called with the list
+         *
+         * @param reload the live reload of the file that changed
+         */
+        void changed(LiveReload reload);
+    }
+
+    /**
+     * What merging a change of the file into the list did
+     */
+    public static class Merge {
+        // False if the file holds the same lines as before, it was only touched or written again
+        boolean fileChanged;
+        int added;
+        int removed;
+        // If the only change to the list was adding items to its end, the index of the first one, otherwise -1
+        int appendedFrom = -1;
+        // True if the list is now the same as the file
+        boolean sameAsFile;
+        final List<String> conflicts = new ArrayList<>();
+
+        /**
+         * @return true if the list was changed
+         */
+        boolean changed() {
+            return added > 0 || removed > 0;
+        }
+    }
+
+    /**
+     * Lines start to end of the file as it was, replaced by lines newStart to newEnd of the other version
+     */
+    private static final class Hunk {
+        final int start;
+        final int end;
+        final int newStart;
+        final int newEnd;
+        // The new lines, for a change of the file
+        List<String> lines;
+        // Where the change goes in the list
+        int at;
+
+        Hunk(int start, int end, int newStart, int newEnd) {
+            this.start = start;
+            this.end = end;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+    }
+
+    // How long to let a burst of writes to the file go on before looking at it
+    private static final long SETTLE_MILLIS = 100;
+    // Longest part of a file, in lines, that is compared with the Myers diff, a bigger one is one change
+    private static final int MAX_DIFF_LINES = 1 << 16;
+    // Most differences the Myers diff looks for before it gives up and makes it one change
+    private static final int MAX_EDITS = 512;
+
+    private final Path file;
+    private final Listener listener;
+    // The thread waiting for changes stops when this is closed, null while not watching
+    private WatchService watcher;
+
+    // The lines of the file as it was last seen, a snapshot that isn't changed, or null once it has been hashed
+    private List<String> baseLines;
+    // Hashes of the lines of the file after baseLines
+    private long[] hashes = new long[16];
+    private int hashed;
+    // True if the snapshot couldn't be read, the list is taken for what the file was instead
+    private boolean baseLost;
+    // The file when it was last looked at, size is -1 if it isn't known
+    private Object fileKey;
+    private long size = -1;
+    private long modified;
+    // Where the last line of the file ended and what it was, end is -1 if the file didn't end with a whole text line
+    private long end = -1;
+    private String lastLine;
+    // True if the list may have been edited since it was the same as the file
+    private boolean edited;
+    // True while the list is being written to the file by this program
+    private boolean saving;
+
+    /**
+     * @param file the list file to watch
+     * @param lines the items that were just read from it, they mustn't be changed after this
+     * @param listener what to tell when the file changed
+     */
+    public LiveReload(Path file, List<String> lines, Listener listener) {
+        this.file = file.toAbsolutePath().normalize();
+        this.listener = listener;
+        this.baseLines = lines;
+        remember(lines.isEmpty() ? null : lines.get(lines.size() - 1));
+    }
+
+    /**
+     * Starts watching the file, the listener is called at once to catch up with changes made while it wasn't
+     */
+    public synchronized void start() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            watcher = null;
+            return;
+        }
+        WatchService service = watcher;
+        Thread thread = new Thread(() -> watch(service), "live-reload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the file, what is known about it is kept for when it is started again
+     */
+    public synchronized void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watcher = null;
+        }
+    }
+
+    /**
+     * Called after every edit of the list
+     */
+    public synchronized void edited() {
+        edited = true;
+    }
+
+    /**
+     * Called before and after this program writes the file without holding the lock on the list,
+     * so the change isn't taken for one made by another program
+     *
+     * @param saving true when the write starts, false if it failed
+     */
+    public synchronized void saving(boolean saving) {
+        this.saving = saving;
+    }
+
+    /**
+     * Called after this program wrote the file
+     *
+     * @param written the items that were written, they mustn't be changed after this
+     * @param edited true if the list may have been edited since it was copied to be written
+     */
+    public synchronized void synced(List<String> written, boolean edited) {
+        baseLines = written;
+        hashed = 0;
+        this.edited = edited;
+        saving = false;
+        remember(written.isEmpty() ? null : written.get(written.size() - 1));
+        if (written instanceof MappedLineList && ((MappedLineList) written).maps(file)) {
+            hashBase(); // read back from the file (the journal does that), so another program may write over it
+        }
+    }
+
+    /**
+     * @return about how many bytes are kept about the file
+     */
+    public synchronized long memorySize() {
+        return 8L * hashes.length + (baseLines != null ? Workspace.memorySize(baseLines) : 0);
+    }
+
+    /**
+     * Merges the changes made to the file since it was last seen into the list
+     * Call it while holding the lock on the list.
+     *
+     * @param list the list to change
+     * @return what was done, or null if the file wasn't changed
+     * @throws IOException if the file couldn't be read
+     */
+    public Merge merge(List<String> list) throws IOException {
+        return merge(list, null);
+    }
+
+    /**
+     * Merges the changes made to the file since it was last seen into the list, and into the
+     * list as it was last saved, for a list whose saved edits aren't in the file yet
+     *
+     * @param list the list to change
+     * @param saved a copy of the list as it was last saved, changed the same way; null if there is none
+     * @return what was done to the list, or null if the file wasn't changed
+     * @throws IOException if the file couldn't be read
+     */
+    public synchronized Merge merge(List<String> list, List<String> saved) throws IOException {
+        if (saving) {
+            return null; // the save will tell what was written
+        }
+        BasicFileAttributes now;
+        try {
+            now = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            size = -1; // deleted or moved away, look at it again when it is back
+            return null;
+        }
+        if (size == now.size() && now.lastModifiedTime().toMillis() == modified
+                && now.fileKey() != null && now.fileKey().equals(fileKey)) {
+            return null;
+        }
+
+        if (baseLost) {
+            hashes = hashes(list);
+            hashed = list.size();
+            baseLost = false;
+        }
+
+        Metrics.Timer timer = Metrics.start(Metrics.Op.RELOAD);
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            Merge merge;
+            long read;
+            boolean text = ListFormat.detect(channel) == ListFormat.TEXT;
+            if (text && onlyGrew(now, channel)) {
+                // Read only the whole lines added after the last one
+                long to = lastLineEnd(channel, end, now.size());
+                Hunk added = new Hunk(baseSize(), baseSize(), 0, 0);
+                added.lines = readLines(end, to);
+                read = to - end;
+                if (added.lines.isEmpty()) {
+                    remember(now, lastLine, end);
+                    timer.stop(read, 0);
+                    return null; // only part of a line so far
+                }
+                merge = merge(list, saved, List.of(added));
+                appendBase(added.lines);
+                remember(now, added.lines.get(added.lines.size() - 1), to);
+            } else {
+                // Read the file and compare it with what it was
+                long[] fileHashes = new long[16];
+                int lines = 0;
+                String last = null;
+                try (LineReader reader = reader(text, now.size())) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        if (lines == fileHashes.length) {
+                            fileHashes = Arrays.copyOf(fileHashes, lines * 2);
+                        }
+                        fileHashes[lines++] = hash(line);
+                        last = line;
+                    }
+                }
+                read = now.size();
+                List<Hunk> changes = diff(baseHashes(), baseSize(), fileHashes, lines);
+                if (!readChangedLines(text, now.size(), changes, fileHashes)) {
+                    size = -1;
+                    timer.stop(read, 0);
+                    return null; // the file changed again while it was read, the next change will be looked at
+                }
+                merge = merge(list, saved, changes);
+                merge.fileChanged = !changes.isEmpty();
+                hashes = fileHashes;
+                hashed = lines;
+                remember(now, last, text ? lineEnd(channel, last, now.size()) : -1);
+            }
+            timer.stop(read, merge.added + merge.removed);
+            return merge;
+        } catch (IOException e) {
+            timer.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the changes of the file into the saved list and then the list
+     *
+     * @param saved the saved list, null if there is none
+     * @return what was done to the list
+     */
+    private Merge merge(List<String> list, List<String> saved, List<Hunk> changes) {
+        if (saved != null) {
+            // Its edits are whatever makes it differ from the file as it was, like for an edited list
+            boolean listEdited = edited;
+            edited = true;
+            mergeInto(saved, changes);
+            edited = listEdited;
+        }
+        return mergeInto(list, changes);
+    }
+
+    /**
+     * Puts the changes of the file into the list, around the edits made to the list
+     *
+     * @param list the list
+     * @param changes what changed in the file, in order
+     * @return what was done
+     */
+    private Merge mergeInto(List<String> list, List<Hunk> changes) {
+        Merge merge = new Merge();
+        merge.fileChanged = true;
+        // Work out the edits that were made to the list, the same way as the changes of the file
+        List<Hunk> edits = List.of();
+        long[] listHashes = null;
+        if (edited) {
+            listHashes = hashes(list);
+            edits = diff(baseHashes(), baseSize(), listHashes, list.size());
+        }
+
+        List<Hunk> apply = new ArrayList<>();
+        int e = 0;
+        // How far the lines of the list have moved from where they were in the file because of the edits
+        int moved = 0;
+        int same = 0;
+        for (Hunk change : changes) {
+            while (e < edits.size() && before(edits.get(e), change)) {
+                moved += grown(edits.get(e));
+                e++;
+            }
+            if (e < edits.size() && sameChange(edits.get(e), change, listHashes)) {
+                // The list was already changed the same way
+                moved += grown(edits.get(e));
+                e++;
+                same++;
+                continue;
+            }
+            if (e < edits.size() && overlaps(edits.get(e), change)) {
+                merge.conflicts.add(conflict(change));
+                continue;
+            }
+            change.at = change.start + moved;
+            apply.add(change);
+        }
+
+        if (apply.size() == 1 && apply.get(0).start == apply.get(0).end && apply.get(0).at == list.size()) {
+            merge.appendedFrom = list.size();
+        }
+        // From the end, so the places of the changes before are still right
+        for (int i = apply.size() - 1; i >= 0; i--) {
+            Hunk change = apply.get(i);
+            list.subList(change.at, change.at + change.end - change.start).clear();
+            list.addAll(change.at, change.lines);
+            merge.removed += change.end - change.start;
+            merge.added += change.lines.size();
+        }
+        merge.sameAsFile = merge.conflicts.isEmpty() && same == edits.size();
+        edited = !merge.sameAsFile;
+        return merge;
+    }
+
+    /**
+     * @return true if an edit of the list comes before a change of the file, lines added by
+     * both at the same place are put in with the file's first
+     */
+    private static boolean before(Hunk edit, Hunk change) {
+        return edit.end < change.start
+                || edit.end == change.start && (edit.start < edit.end || change.start < change.end);
+    }
+
+    /**
+     * @return true if an edit of the list and a change of the file changed some of the same lines,
+     * or one added lines between lines the other changed
+     */
+    private static boolean overlaps(Hunk edit, Hunk change) {
+        return edit.start < change.end && change.start < edit.end;
+    }
+
+    private static boolean sameChange(Hunk edit, Hunk change, long[] listHashes) {
+        if (edit.start != change.start || edit.end != change.end
+                || edit.newEnd - edit.newStart != change.lines.size()) {
+            return false;
+        }
+        for (int i = 0; i < change.lines.size(); i++) {
+            if (hash(change.lines.get(i)) != listHashes[edit.newStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int grown(Hunk hunk) {
+        return (hunk.newEnd - hunk.newStart) - (hunk.end - hunk.start);
+    }
+
+    /**
+     * @return a description of a change of the file that wasn't put into the list
+     */
+    private static String conflict(Hunk change) {
+        String lines = change.lines.isEmpty() ? "" : "\"" + change.lines.get(0) + "\""
+                + (change.lines.size() > 1 ? " and " + (change.lines.size() - 1) + " more line(s)" : "");
+        if (change.start == change.end) {
+            return "the file added " + lines + " after its line " + change.start
+                    + " where the list was edited, kept the list as it is";
+        }
+        return (change.end - change.start == 1 ? "line " + (change.start + 1) + " of the file was"
+                : "lines " + (change.start + 1) + "-" + change.end + " of the file were")
+                + " edited in the list too, kept the list's edits, the file "
+                + (change.lines.isEmpty() ? "deleted them" : "has " + lines);
+    }
+
+    /**
+     * Works out which lines of one version were replaced by which lines of the other
+     * The lines both start and end with are skipped, what is left is compared with the Myers
+     * diff if it isn't too big, otherwise all of it is one change.
+     *
+     * @return the changes in order
+     */
+    private static List<Hunk> diff(long[] a, int n, long[] b, int m) {
+        int start = 0;
+        while (start < n && start < m && a[start] == b[start]) {
+            start++;
+        }
+        int endA = n;
+        int endB = m;
+        while (endA > start && endB > start && a[endA - 1] == b[endB - 1]) {
+            endA--;
+            endB--;
+        }
+        List<Hunk> hunks = new ArrayList<>();
+        if (start == endA && start == endB) {
+            return hunks;
+        }
+        if (endA - start <= MAX_DIFF_LINES && endB - start <= MAX_DIFF_LINES
+                && myers(a, start, endA, b, start, endB, hunks)) {
+            return hunks;
+        }
+        hunks.add(new Hunk(start, endA, start, endB));
+        return hunks;
+    }
+
+    /**
+     * Finds the fewest lines to delete and add to turn a[aFrom, aTo) into b[bFrom, bTo)
+     *
+     * @param hunks where the changes are added
+     * @return false if there are more than MAX_EDITS of them
+     */
+    private static boolean myers(long[] a, int aFrom, int aTo, long[] b, int bFrom, int bTo, List<Hunk> hunks) {
+        int n = aTo - aFrom;
+        int m = bTo - bFrom;
+        int max = Math.min(n + m, MAX_EDITS);
+        int offset = max + 1;
+        // v[offset + k] is how far along a the furthest path on diagonal k got
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+        for (int d = 0; d <= max; d++) {
+            trace.add(v.clone());
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+                        ? v[offset + k + 1] : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aFrom + x] == b[bFrom + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    // Walk the path back to mark the lines that were deleted and added
+                    boolean[] deleted = new boolean[n];
+                    boolean[] added = new boolean[m];
+                    for (int step = d; step > 0; step--) {
+                        int[] before = trace.get(step);
+                        int diagonal = x - y;
+                        int from = diagonal == -step || (diagonal != step
+                                && before[offset + diagonal - 1] < before[offset + diagonal + 1])
+                                ? diagonal + 1 : diagonal - 1;
+                        int fromX = before[offset + from];
+                        int fromY = fromX - from;
+                        while (x > fromX && y > fromY) {
+                            x--;
+                            y--;
+                        }
+                        if (x == fromX) {
+                            added[fromY] = true;
+                        } else {
+                            deleted[fromX] = true;
+                        }
+                        x = fromX;
+                        y = fromY;
+                    }
+                    // Lines that weren't deleted or added match up in order, the runs between them are the changes
+                    int i = 0;
+                    int j = 0;
+                    while (i < n || j < m) {
+                        if ((i < n && deleted[i]) || (j < m && added[j])) {
+                            int startI = i;
+                            int startJ = j;
+                            while (i < n && deleted[i]) {
+                                i++;
+                            }
+                            while (j < m && added[j]) {
+                                j++;
+                            }
+                            hunks.add(new Hunk(aFrom + startI, aFrom + i, bFrom + startJ, bFrom + j));
+                        } else {
+                            i++;
+                            j++;
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the lines of the file that the changes put in, checking they are the lines that were compared
+     *
+     * @return false if the file changed while it was being read
+     */
+    private boolean readChangedLines(boolean text, long fileSize, List<Hunk> changes, long[] fileHashes)
+            throws IOException {
+        if (changes.isEmpty()) {
+            return true;
+        }
+        try (LineReader reader = reader(text, fileSize)) {
+            int index = 0;
+            for (Hunk change : changes) {
+                change.lines = new ArrayList<>(change.newEnd - change.newStart);
+                for (; index < change.newEnd; index++) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    if (index >= change.newStart) {
+                        if (hash(line) != fileHashes[index]) {
+                            return false;
+                        }
+                        change.lines.add(line);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a reader of the lines of the file up to a size, only text files can be read to a size
+     */
+    private LineReader reader(boolean text, long fileSize) throws IOException {
+        return text ? new LineReader(file, 0, fileSize) : new LineReader(file);
+    }
+
+    /**
+     * @return true if the file is the same file as before and only has more lines at its end
+     */
+    private boolean onlyGrew(BasicFileAttributes now, FileChannel channel) throws IOException {
+        if (end < 0 || now.size() <= end || now.fileKey() == null || !now.fileKey().equals(fileKey)) {
+            return false;
+        }
+        if (lastLine == null) {
+            return end == 0 && baseSize() == 0;
+        }
+        // The last line has to still be where it was, with a '\n' (or the start of the file) before it
+        byte[] line = lastLine.getBytes(StandardCharsets.UTF_8);
+        long from = Math.max(0, end - line.length - 3);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - from));
+        ListFormat.readFully(channel, buffer, from);
+        byte[] bytes = buffer.array();
+        int i = bytes.length - 1;
+        if (i < 0 || bytes[i] != '\n') {
+            return false;
+        }
+        if (i > 0 && bytes[i - 1] == '\r') {
+            i--;
+        }
+        int start = i - line.length;
+        if (start < 0 || !Arrays.equals(bytes, start, i, line, 0, line.length)) {
+            return false;
+        }
+        if (start == 0 ? from != 0 : bytes[start - 1] != '\n') {
+            return false;
+        }
+        // The first line too, a file written over in place with more lines can end where the old one did by chance
+        try (LineReader reader = new LineReader(file, 0, end)) {
+            String first = reader.readLine();
+            return first != null && hash(first) == baseHashes()[0];
+        }
+    }
+
+    /**
+     * @return where the last whole line between two places in the file ends, from if there is none
+     */
+    private static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long chunkEnd = to; chunkEnd > from; chunkEnd -= buffer.capacity()) {
+            long chunkStart = Math.max(from, chunkEnd - buffer.capacity());
+            buffer.clear().limit((int) (chunkEnd - chunkStart));
+            ListFormat.readFully(channel, buffer, chunkStart);
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return chunkStart + i + 1;
+                }
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return the size of a text file if it ends with a whole line (or is empty), otherwise -1
+     */
+    private static long lineEnd(FileChannel channel, String lastLine, long fileSize) throws IOException {
+        if (lastLine == null) {
+            return fileSize == 0 ? 0 : -1;
+        }
+        return lastLineEnd(channel, Math.max(0, fileSize - 1), fileSize) == fileSize ? fileSize : -1;
+    }
+
+    private List<String> readLines(long from, long to) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (LineReader reader = new LineReader(file, from, to)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Notes what the file looks like now, to tell the next time whether it changed and how
+     *
+     * @param lastLine the last line of the file, null if it has none
+     */
+    private void remember(String lastLine) {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            BasicFileAttributes now = Files.readAttributes(file, BasicFileAttributes.class);
+            remember(now, lastLine, ListFormat.detect(channel) == ListFormat.TEXT
+                    ? lineEnd(channel, lastLine, now.size()) : -1);
+        } catch (IOException e) {
+            // It will be compared line by line the next time it changes
+            size = -1;
+            end = -1;
+        }
+    }
+
+    private void remember(BasicFileAttributes now, String lastLine, long end) {
+        fileKey = now.fileKey();
+        size = now.size();
+        modified = now.lastModifiedTime().toMillis();
+        this.lastLine = lastLine;
+        this.end = end;
+    }
+
+    private int baseSize() {
+        return (baseLines != null ? baseLines.size() : 0) + hashed;
+    }
+
+    /**
+     * @return the hashes of the lines of the file as it was, worked out from the snapshot the first time
+     */
+    private long[] baseHashes() {
+        if (baseLines != null) {
+            long[] all = new long[Math.max(16, baseLines.size() + hashed)];
+            int i = 0;
+            for (String line : baseLines) {
+                all[i++] = hash(line);
+            }
+            System.arraycopy(hashes, 0, all, i, hashed);
+            hashes = all;
+            hashed += i;
+            baseLines = null;
+        }
+        return hashes;
+    }
+
+    private void appendBase(List<String> lines) {
+        if (hashed + lines.size() > hashes.length) {
+            hashes = Arrays.copyOf(hashes, Math.max(hashes.length * 2, hashed + lines.size()));
+        }
+        for (String line : lines) {
+            hashes[hashed++] = hash(line);
+        }
+    }
+
+    private static long[] hashes(List<String> list) {
+        long[] hashes = new long[list.size()];
+        int i = 0;
+        for (String line : list) {
+            hashes[i++] = hash(line);
+        }
+        return hashes;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a line, two different lines getting the same hash is too unlikely to matter
+     */
+    static long hash(String line) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < line.length(); i++) {
+            hash = (hash ^ line.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void watch(WatchService service) {
+        try {
+            hashBase();
+            changed();
+            while (true) {
+                if (isOurs(service.take())) {
+                    // Let a burst of writes finish, then look at the file once
+                    Thread.sleep(SETTLE_MILLIS);
+                    for (WatchKey key = service.poll(); key != null; key = service.poll()) {
+                        isOurs(key);
+                    }
+                    changed();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stop() was called
+        }
+    }
+
+    /**
+     * Hashes the snapshot of the file now, while a mapping it is read from still shows the file as it was
+     */
+    private synchronized void hashBase() {
+        try {
+            baseHashes();
+        } catch (UncheckedIOException | InternalError e) {
+            // The file was cut short already, the next change is looked for by comparing it with the list
+            baseLines = null;
+            hashed = 0;
+            baseLost = true;
+            size = -1;
+            end = -1;
+        }
+    }
+
+    /**
+     * Tells the listener the file may have changed, a mapped file that was cut short doesn't stop the watching
+     */
+    private void changed() {
+        try {
+            listener.changed(this);
+        } catch (UncheckedIOException | InternalError e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return true if the file (or anything, if events were lost) changed
+     */
+    private boolean isOurs(WatchKey key) {
+        boolean ours = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            ours |= event.kind() == OVERFLOW || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return ours;
+    }
+}
@@ -1,67 +1,225 @@
-import java.util.Scanner;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+import java.util.List;
 
 public class Main {
 
-    // Static ArrayList to store strings
-    static ArrayList<String> myArrList = new ArrayList<>();
+    // Where new lists keep their items, "offheap" keeps them as UTF-8 bytes outside the heap (-Dfilelist.storage=offheap)
+    static boolean offHeap = "offheap".equalsIgnoreCase(System.getProperty("filelist.storage", "heap"));
+    // Static list to store strings, a gap buffer so deleting near the front doesn't move the whole list
+    static List<String> myArrList = newList();
+    // Letters of the menu, compiled once instead of on every trip around the menu
+    static final Pattern MENU_PICKS = Pattern.compile("[AaDdFfRrMmIiEeVvNnPpJjQqOoWwSsCcUuYyTtLl]");
+    // Letters of the orders the list can be sorted in
+    static final Pattern SORT_PICKS = Pattern.compile("[TtIiNn]");
     // Static Scanner to take input from the user
     static Scanner in = new Scanner(System.in);
+    // Name of the current list file without ".txt", empty until the list is opened or saved
+    static String fileName = "";
+    // Journal of the edits made to the current list file, null until the list has a file
+    static ListJournal journal = null;
+    // Number of items shown on one page of the list, can be changed with -Dfilelist.pageSize=50
+    static int pageSize = Math.max(1, Integer.getInteger("filelist.pageSize", 20));
+    // Page of the list that is currently shown, starting at 0
+    static int page = 0;
+    // Reused to build each page before it is printed
+    static StringBuilder pageText = new StringBuilder();
+    // Buffered stdout that isn't synchronized on every println like System.out, a page is written in one go
+    static BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 1 << 16);
+    // Flag showing the list was changed since it was last saved, the autosave thread reads it too
+    static volatile boolean needsToBeSaved = false;
+    // Saves the list in the background after edits, null unless turned on with -Dfilelist.autosaveMillis
+    static AutoSaver autoSaver = AutoSaver.fromProperty(Main::autoSave);
+    // Index used to find items, built (or loaded) the first time something is looked for
+    static SearchIndex searchIndex = null;
+    // Flag showing the list is still the same as its list file, so a saved search index can be used
+    static boolean sameAsFile = false;
+    // The other open lists, switching back to one of them doesn't read its file again
+    static Workspace workspace = Workspace.fromProperty();
+    // Edits to the current list that can be undone and redone
+    static EditHistory history = new EditHistory();
+    // Merges changes other programs make to the current list file into the list, null if it isn't watched
+    static LiveReload live = null;
+    // Counts the changes live reload merged into the list, so an item number typed meanwhile isn't trusted
+    static long reloads = 0;
+    // Whether lists are watched for changes made by other programs, -Dfilelist.liveReload=true or L in the menu
+    static boolean liveMode = Boolean.getBoolean("filelist.liveReload");
 
     public static void main(String[] args) {
+        // "--batch" runs operations from a script or stdin instead of the menu
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        // "--sort" sorts and merges list files, which can be bigger than memory
+        if (args.length > 0 && args[0].equals("--sort")) {
+            System.exit(ListSorter.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        // "--convert" writes a list file in another format, see ListFormat
+        if (args.length > 0 && args[0].equals("--convert")) {
+            System.exit(ListFormat.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        // "--import" and "--export" stream CSV and JSON lines files into and out of list files, see ListPipeline
+        if (args.length > 0 && (args[0].equals("--import") || args[0].equals("--export"))) {
+            System.exit(ListPipeline.run(Arrays.copyOfRange(args, 1, args.length), args[0].equals("--export")));
+        }
+        // "--serve" shares a list with other programs over a local socket, see ListServer
+        if (args.length > 0 && args[0].equals("--serve")) {
+            System.exit(ListServer.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+
         // Flag to control the loop
         boolean quit = false;
-        String fileName = "";
-        boolean needsToBeSaved = false;
 
         // Loop until the user decides to quit
         while (!quit) {
-            // Print the menu and get user input
-            view(false); // Print the list before showing the menu
-            String menuPick = SafeInput.getRegExString(in, """
-                    Menu:
-                     Add new item (A)
-                     Delete item (D)
-                     Clear List (C)
-                     Open a list file (O)
-                     View list (V)
-                     Save List (S)
-                     Quit (Q)
-                    """, "[AaDdVvQqOoSsCc]").toUpperCase();
-
-            // Switch statement to perform actions based on user input
-            switch (menuPick) {
-                case "A":// Add a new item and triggers the needsToBeSaved flag
-                    add();
-                    needsToBeSaved = true;
-                    break;
-                case "D": // Print the list with item numbers before letting the user delete an item and triggers the needsToBeSaved flag
-                    view(true);
-                    delete();
-                    needsToBeSaved = true;
-                    break;
-                case "V":
-                    break; // Do nothing, continue to next iteration of the loop where the list will be printed at the beginning
-                case "Q":
-                    needsToBeSaved = needsToBeSaved(needsToBeSaved, fileName);
-                    quit = quit(); // Quit the program
-                    break;
-                case "O": // Checks if the current file needs saving then opens a new file, where the first line is the file name
-                    needsToBeSaved = needsToBeSaved(needsToBeSaved, fileName);
-                    myArrList = NIOFileEditing.openFile();
-                    fileName = myArrList.get(0).replace(".txt", "");
-                    myArrList.remove(0);
-                    break;
-                case "C": //Clears the list and triggers the needsToBeSaved flag
-                    myArrList = new ArrayList<>();
-                    needsToBeSaved = true;
-                    break;
-                case "S": //Saves and resets the needsToBeSaved flag
-                    needsToBeSaved = save(fileName);
-                    break;
-                default: // Error message for invalid input (should never happen)
-                    System.out.print("Something went wrong");
-                    break;
+            try {
+                // A big list file is mapped, another program writing over it in place changes the lines under the list
+                if (myArrList instanceof MappedLineList && ((MappedLineList) myArrList).isWrittenOver()) {
+                    reopen("Error, " + fileName + ".txt was written over by another program while it was open");
+                }
+                // Print the menu and get user input
+                view(false); // Print the list before showing the menu
+                String menuPick = SafeInput.getRegExString(in, """
+                        Menu:
+                         Add new item (A)
+                         Delete item (D)
+                         Clear List (C)
+                         Undo (U)
+                         Redo (Y)
+                         Find items (F)
+                         Sort list (R)
+                         Merge list files into the list (M)
+                         Import a CSV or JSON lines file (I)
+                         Export the list to a CSV or JSON lines file (E)
+                         Open a list file (O)
+                         Switch to an open list (W)
+                         Live reload on/off (L)
+                         View list (V)
+                         Next page (N)
+                         Previous page (P)
+                         Jump to page (J)
+                         Save List (S)
+                         Show stats (T)
+                         Quit (Q)
+                        """, MENU_PICKS).toUpperCase();
+
+                // Switch statement to perform actions based on user input
+                switch (menuPick) {
+                    case "A":// Add a new item and triggers the needsToBeSaved flag
+                        add();
+                        break;
+                    case "D": // Print the list with item numbers before letting the user delete an item and triggers the needsToBeSaved flag
+                        view(true);
+                        delete();
+                        break;
+                    case "F": // Print the items that contain some text
+                        find();
+                        break;
+                    case "R": // Sort the list and triggers the needsToBeSaved flag
+                        sortList(false);
+                        break;
+                    case "M": // Merge list files into the list, sort it and triggers the needsToBeSaved flag
+                        sortList(true);
+                        break;
+                    case "I": // Add the items of a CSV, JSON lines or text file to the list and triggers the needsToBeSaved flag
+                        importItems();
+                        break;
+                    case "E": // Write the list to a CSV, JSON lines or text file
+                        exportItems();
+                        break;
+                    case "V":
+                        break; // Do nothing, continue to next iteration of the loop where the list will be printed at the beginning
+                    case "N": // Move to the next page, the page is printed at the beginning of the next loop
+                        page++;
+                        break;
+                    case "P": // Move to the previous page
+                        page--;
+                        break;
+                    case "J": // Jump straight to a page
+                        page = SafeInput.getRangedInt(in, "Enter a page number", 1, pageCount()) - 1;
+                        break;
+                    case "Q":
+                        if (autoSaver != null) {
+                            // A save waiting to run would save what the user may be about to answer "n" to
+                            autoSaver.cancel();
+                        }
+                        needsToBeSaved = needsToBeSaved(needsToBeSaved);
+                        quit = quit(); // Quit the program
+                        if (quit) {
+                            if (autoSaver != null) {
+                                System.out.println(autoSaver);
+                            }
+                            synchronized (Main.class) {
+                                closeList();
+                            }
+                            closeWorkspace();
+                            Metrics.dump();
+                        } else if (needsToBeSaved && autoSaver != null) {
+                            autoSaver.edited(); // still here, so the edits are saved on their own again
+                        }
+                        break;
+                    case "O": // Parks the current list in the workspace then opens a file, from the workspace if it is still there
+                        openList(NIOFileEditing.chooseFile(in));
+                        break;
+                    case "W": // Switch to one of the lists in the workspace
+                        switchList();
+                        break;
+                    case "L": // Start or stop merging changes made to the list file by other programs
+                        synchronized (Main.class) {
+                            liveMode = !liveMode;
+                            if (liveMode) {
+                                startLiveReload(null);
+                            } else {
+                                stopLiveReload();
+                            }
+                        }
+                        System.out.println("Live reload is " + (liveMode ? "on" : "off"));
+                        break;
+                    case "C": //Clears the list and triggers the needsToBeSaved flag
+                        synchronized (Main.class) {
+                            // The old list is kept as it is in the history, so the clear can be undone at once
+                            history.replaced(myArrList, searchIndex);
+                            myArrList = newList();
+                            if (journal != null) {
+                                journal.clear();
+                            }
+                            searchIndex = null;
+                            edited();
+                        }
+                        break;
+                    case "U": // Undo the last edit and triggers the needsToBeSaved flag
+                        undo(false);
+                        break;
+                    case "Y": // Redo the last edit that was undone
+                        undo(true);
+                        break;
+                    case "T": // Print how often each operation ran and how long it took
+                        System.out.print(Metrics.report());
+                        break;
+                    case "S": //Saves and resets the needsToBeSaved flag
+                        needsToBeSaved = save();
+                        break;
+                    default: // Error message for invalid input (should never happen)
+                        System.out.print("Something went wrong");
+                        break;
+                }
+            } catch (UncheckedIOException | InternalError e) {
+                // Reading a mapped list fails like this when another program cuts its file short
+                if (!(myArrList instanceof MappedLineList) || !((MappedLineList) myArrList).isCutShort()) {
+                    throw e;
+                }
+                reopenCutShort();
             }
         }
     }
@@ -70,7 +228,21 @@ public class Main {
      * Method to add a new item to the list
      */
     private static void add() {
-        myArrList.add(SafeInput.getNonZeroLenString(in, "Please enter an item "));
+        String item = SafeInput.getNonZeroLenString(in, "Please enter an item ");
+        synchronized (Main.class) {
+            Metrics.Timer timer = Metrics.start(Metrics.Op.ADD);
+            myArrList.add(item);
+            if (journal != null) {
+                journal.add(myArrList.size() - 1, item);
+            }
+            if (searchIndex != null) {
+                searchIndex.added(item);
+            }
+            history.added(myArrList.size() - 1, item);
+            edited();
+            timer.stop(0, 1);
+        }
+        page = pageCount() - 1; // Show the page with the new item on it
     }
 
     /** Method to delete an item from the list
@@ -79,31 +251,393 @@ public class Main {
      */
     private static void delete() {
 
-        if (myArrList.isEmpty()) {
+        int size;
+        long seen;
+        synchronized (Main.class) {
+            size = myArrList.size();
+            seen = reloads;
+        }
+        if (size == 0) {
             System.out.println("Error, cannot delete an empty list");
         } else {
-            myArrList.remove(SafeInput.getRangedInt(in, "Enter an item number to delete", 0, myArrList.size()) - 1);
+            int index = SafeInput.getRangedInt(in, "Enter an item number to delete", 0, size) - 1;
+            synchronized (Main.class) {
+                // Live reload can change the list while the user types, then the number may point at another item
+                if (reloads != seen || index < 0 || index >= myArrList.size()) {
+                    System.out.println("Error, the list was changed by another program, view it and try again");
+                    return;
+                }
+                Metrics.Timer timer = Metrics.start(Metrics.Op.DELETE);
+                String item = myArrList.remove(index);
+                if (journal != null) {
+                    journal.delete(index);
+                }
+                if (searchIndex != null) {
+                    searchIndex.removed(index);
+                }
+                history.deleted(index, item);
+                edited();
+                timer.stop(0, 1);
+            }
         }
     }
 
-    /** Method to print the list
-     * Checks to see if the list should be printed with item numbers
-     * @param numbered Checks to see if the list should be numbered
+    /** Method to undo the last edit, or to do it again after it was undone
+     * Adds and deletes are done the other way around, a clear or a sort swaps the old list back in
+     * @param redo true to redo the last undone edit instead of undoing the last edit
+     */
+    private static void undo(boolean redo) {
+        synchronized (Main.class) {
+            Metrics.Timer timer = Metrics.start(Metrics.Op.UNDO);
+            EditHistory.Step step = redo ? history.redo() : history.undo();
+            if (step == null) {
+                System.out.println(redo ? "Nothing to redo" : "Nothing to undo");
+                timer.stop(0, 0);
+                return;
+            }
+            if (step.kind == EditHistory.Kind.REPLACE) {
+                List<String> other = step.list;
+                SearchIndex otherIndex = step.searchIndex;
+                step.swapped(myArrList, searchIndex);
+                myArrList = other;
+                searchIndex = otherIndex;
+                if (journal != null) {
+                    if (other.isEmpty()) {
+                        journal.clear(); // redoing a clear
+                    } else {
+                        // The journal can't say "put the old list back", the next save writes the whole list
+                        journal.suspend();
+                    }
+                }
+                page = 0;
+            } else if ((step.kind == EditHistory.Kind.ADD) == redo) {
+                // Redo an add or undo a delete
+                myArrList.add(step.index, step.item);
+                if (journal != null) {
+                    journal.add(step.index, step.item);
+                }
+                if (searchIndex != null) {
+                    if (step.index == myArrList.size() - 1) {
+                        searchIndex.added(step.item);
+                    } else {
+                        searchIndex = null; // the index can only add at the end, build it again when it is needed
+                    }
+                }
+                page = step.index / pageSize;
+            } else {
+                // Undo an add or redo a delete
+                myArrList.remove(step.index);
+                if (journal != null) {
+                    journal.delete(step.index);
+                }
+                if (searchIndex != null) {
+                    searchIndex.removed(step.index);
+                }
+                page = step.index / pageSize;
+            }
+            edited();
+            timer.stop(0, 1);
+            System.out.println((redo ? "Redone, " : "Undone, ") + history.undoCount() + " edit(s) to undo and "
+                    + history.redoCount() + " to redo");
+        }
+    }
+
+    /** Method to mark the list as changed
+     * Sets the needsToBeSaved flag and lets the autosaver know, called while holding the lock on Main
+     */
+    private static void edited() {
+        needsToBeSaved = true;
+        sameAsFile = false;
+        if (autoSaver != null) {
+            autoSaver.edited();
+        }
+        if (live != null) {
+            live.edited();
+        }
+    }
+
+    /** Method to find the items that contain some text
+     * Starting the text with ^ only finds items that start with it, case is ignored
+     * Prints the first page of items that match with their item numbers
+     */
+    private static void find() {
+        String text = SafeInput.getNonZeroLenString(in, "Enter the text to find (start it with ^ to find items starting with it)");
+        boolean atStart = text.startsWith("^") && text.length() > 1;
+        if (atStart) {
+            text = text.substring(1);
+        }
+
+        int[] found;
+        long start;
+        long elapsed;
+        synchronized (Main.class) {
+            SearchIndex index = searchIndex();
+            Metrics.Timer timer = Metrics.start(Metrics.Op.FIND);
+            start = System.nanoTime();
+            // Ask for one more than a page to know if there are more
+            found = index.find(text, atStart, pageSize + 1);
+            elapsed = System.nanoTime() - start;
+            timer.stop(0, found.length);
+
+            // The items are read before letting go of the lock, live reload may move them after
+            pageText.setLength(0);
+            int shown = Math.min(found.length, pageSize);
+            pageText.append(found.length > pageSize ? "More than " + pageSize : String.valueOf(found.length))
+                    .append(" item(s) found in ").append(String.format("%.3f", elapsed / 1e6)).append(" ms:\n");
+            for (int i = 0; i < shown; i++) {
+                pageText.append(' ').append(found[i] + 1).append(". ").append(myArrList.get(found[i])).append('\n');
+            }
+        }
+        if (found.length > pageSize) {
+            pageText.append(" Only the first ").append(pageSize).append(" are shown, try a longer search\n");
+        }
+        try {
+            out.append(pageText);
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Method to sort the list, optionally removing duplicates and merging list files into it first
+     * Big lists and files are sorted through temp files, so they don't have to fit in memory
+     * @param merge true to ask for list files to merge into the list
+     */
+    private static void sortList(boolean merge) {
+        List<Path> files = new ArrayList<>();
+        if (merge) {
+            String names = SafeInput.getNonZeroLenString(in, "Enter the list files to merge, separated by commas");
+            for (String name : names.split(",")) {
+                Path file = Paths.get(name.trim());
+                if (!Files.isRegularFile(file)) {
+                    System.out.println("Error, there is no list file " + file);
+                    return;
+                }
+                files.add(file);
+            }
+        }
+        String pick = SafeInput.getRegExString(in, "Sort by text (T), text ignoring case (I) or number (N)", SORT_PICKS).toUpperCase();
+        ListSorter.Order order = pick.equals("I") ? ListSorter.Order.IGNORE_CASE
+                : pick.equals("N") ? ListSorter.Order.NUMBER : ListSorter.Order.TEXT;
+        boolean unique = SafeInput.getYNConfirm(in, "Remove duplicate items? (y/n)");
+
+        synchronized (Main.class) {
+            Metrics.Timer timer = Metrics.start(Metrics.Op.SORT);
+            try {
+                long start = System.nanoTime();
+                for (Path file : files) {
+                    foldJournal(file); // so the edits saved to its journal are merged too
+                }
+                List<String> sorted = ListSorter.merge(myArrList, files, order, unique);
+                timer.stop(0, sorted.size());
+                // The journal only knows adds and deletes, so close it and let the next save write the whole list
+                closeJournal();
+                System.out.printf("%d items sorted in %.1f ms%n", sorted.size(), (System.nanoTime() - start) / 1e6);
+                history.replaced(myArrList, searchIndex);
+                myArrList = sorted;
+                searchIndex = null;
+                page = 0;
+                edited();
+            } catch (IOException e) {
+                timer.failed();
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Method to add the items of a CSV, JSON lines or text file to the end of the list
+     * The file is streamed through a ListPipeline, only the items that are kept are held in memory
+     */
+    private static void importItems() {
+        Path file = Paths.get(SafeInput.getNonZeroLenString(in, "Enter the file to import (.csv, .tsv, .jsonl, or one item per line)"));
+        if (!Files.isRegularFile(file)) {
+            System.out.println("Error, there is no file " + file);
+            return;
+        }
+        ListPipeline pipeline = pipeline("Enter the import options, like --field name --trim --unique (or nothing)");
+        if (pipeline == null) {
+            return;
+        }
+
+        synchronized (Main.class) {
+            // The items go into a copy, so a failed import leaves the list as it was
+            // and the list before the import goes into the history to undo it at once
+            List<String> imported = snapshot(myArrList);
+            try {
+                long start = System.nanoTime();
+                foldJournal(file); // a list file is imported with the edits saved to its journal
+                pipeline.importInto(file, imported);
+                System.out.printf("%s in %.1f ms%n", pipeline, (System.nanoTime() - start) / 1e6);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Error, " + file + " couldn't be imported: " + e.getMessage());
+                return;
+            }
+            if (imported.size() == myArrList.size()) {
+                return;
+            }
+            page = myArrList.size() / pageSize; // Show the first page with new items on it
+            history.replaced(myArrList, searchIndex);
+            myArrList = imported;
+            searchIndex = null;
+            if (journal != null) {
+                // A journal record for every item would cost more than writing the whole list on the next save
+                journal.suspend();
+            }
+            edited();
+        }
+    }
+
+    /** Method to write the list to a CSV, JSON lines or text file
+     * The file is written next to the old one and swapped in when it is complete
      */
-    private static void view(Boolean numbered) {
-        if (numbered) {
-            System.out.println("List:");
-            // Iterate over the list and print each item with its number
-            for (int i = 0; i < myArrList.size(); i++) {
-                System.out.println(" " + (1 + i) + ". " + myArrList.get(i));
+    private static void exportItems() {
+        Path file = Paths.get(SafeInput.getNonZeroLenString(in, "Enter the file to export to (.csv, .tsv, .jsonl, or one item per line)"));
+        ListPipeline pipeline = pipeline("Enter the export options, like --field name --header --unique (or nothing)");
+        if (pipeline == null) {
+            return;
+        }
+        List<String> list;
+        synchronized (Main.class) {
+            if (isOpen(file)) {
+                // Its journal and the list read from it would no longer fit it
+                System.out.println("Error, " + file + " is an open list, save it with S or export to another file");
+                return;
             }
+            list = snapshot(myArrList); // the user can't edit while it is exported, but autosave and live reload can
+        }
+        try {
+            long start = System.nanoTime();
+            pipeline.export(list, file);
+            System.out.printf("%s to %s in %.1f ms%n", pipeline, file, (System.nanoTime() - start) / 1e6);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error, the list couldn't be exported to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Method to fold the edits saved to the journal of a list file into it, so reading the file gets them
+     * The journals of the lists open here (the current one and the parked ones) are locked by this program,
+     * so they are folded through the journal object, any other journal the way the --sort mode does it
+     * @param file the list file about to be read
+     * @throws IOException if the saved edits couldn't be folded in, or the list is open in another program
+     */
+    private static void foldJournal(Path file) throws IOException {
+        ListJournal held = heldJournal(file);
+        if (held != null) {
+            held.fold();
         } else {
-            // Print the list without item numbers
-            System.out.println("List:");
-            for (String s : myArrList) {
-                System.out.println(" " + s);
+            ListJournal.foldInto(file);
+        }
+    }
+
+    /** Method to find the journal of a list open here
+     * @param file the list file
+     * @return the journal of the current list or of a parked list with this file, or null if neither has one
+     */
+    private static ListJournal heldJournal(Path file) {
+        if (isCurrent(file)) {
+            return journal;
+        }
+        Workspace.OpenList parked = workspace.get(file);
+        return parked != null ? parked.journal : null;
+    }
+
+    /** Method to check if a file is the file of the current list or of a parked list
+     * @param file the file
+     * @return true if a list open here reads from it
+     */
+    private static boolean isOpen(Path file) {
+        return isCurrent(file) || workspace.get(file) != null;
+    }
+
+    private static boolean isCurrent(Path file) {
+        return !fileName.isEmpty()
+                && file.toAbsolutePath().normalize().equals(Paths.get(fileName + ".txt").toAbsolutePath().normalize());
+    }
+
+    /** Method to ask for the options of an import or an export
+     * @param prompt the prompt
+     * @return the pipeline the options describe, null if they are wrong
+     */
+    private static ListPipeline pipeline(String prompt) {
+        try {
+            return ListPipeline.parse(SafeInput.getRegExString(in, prompt, ".*"));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error, " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Method to get the search index of the list
+     * The first time it is loaded from next to the list file if the list hasn't been changed, or built from the list
+     * @return the search index of the current list
+     */
+    private static SearchIndex searchIndex() {
+        if (searchIndex == null) {
+            Path file = Paths.get(fileName + ".txt");
+            if (sameAsFile && !fileName.isEmpty() && Files.exists(file)) {
+                searchIndex = SearchIndex.load(file, myArrList);
+            }
+            if (searchIndex == null) {
+                System.out.println("Building the search index of " + myArrList.size() + " items...");
+                searchIndex = new SearchIndex(myArrList);
             }
         }
+        return searchIndex;
+    }
+
+    /** Method to create an empty list
+     * Uses the storage picked with -Dfilelist.storage, opened files are always kept outside the heap
+     * @return a new empty list
+     */
+    private static List<String> newList() {
+        return offHeap ? new MappedLineList() : new GapBufferList<>();
+    }
+
+    /** Method to print the current page of the list
+     * Checks to see if the list should be printed with item numbers
+     * Only one page is printed, so this costs the same no matter how long the list is
+     * @param numbered Checks to see if the list should be numbered
+     */
+    static void view(Boolean numbered) {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.VIEW);
+        int first;
+        int last;
+        // Live reload changes the list on its own thread, so the page is read under the lock
+        synchronized (Main.class) {
+            // Keep the page inside the list, it can be past the end after a delete or a clear
+            page = Math.max(0, Math.min(page, pageCount() - 1));
+            first = page * pageSize;
+            last = Math.min(first + pageSize, myArrList.size());
+
+            pageText.setLength(0);
+            pageText.append("List (page ").append(page + 1).append(" of ").append(pageCount())
+                    .append(", ").append(myArrList.size()).append(" items):\n");
+            for (int i = first; i < last; i++) {
+                if (numbered) {
+                    // Print the item with its number in the whole list
+                    pageText.append(' ').append(i + 1).append(". ").append(myArrList.get(i)).append('\n');
+                } else {
+                    // Print the item without item numbers
+                    pageText.append(' ').append(myArrList.get(i)).append('\n');
+                }
+            }
+        }
+
+        try {
+            out.append(pageText);
+            out.flush();
+            timer.stop(pageText.length(), last - first);
+        } catch (IOException e) {
+            timer.failed();
+            e.printStackTrace();
+        }
+    }
+
+    /** Method to count the pages of the list
+     * @return number of pages, an empty list still has one (empty) page
+     */
+    private static int pageCount() {
+        return Math.max(1, (myArrList.size() + pageSize - 1) / pageSize);
     }
 
     /** Method to confirm if the user wants to quit
@@ -116,30 +650,555 @@ public class Main {
 
     /** Method to save the list to a file
      * If no file name provided, prompts user for it
-     * Writes the list to the file using NIOFileEditing
-     * @param fileName Name of the file to save the list
-     * @return false after saving
+     * The first save writes the whole list using NIOFileEditing, later saves only commit the journal
+     * @return false after saving, true if the list couldn't be saved
      */
-    private static boolean save(String fileName) {
-        if (fileName.isEmpty()) {
-            fileName = SafeInput.getNonZeroLenString(in, "Please enter a file name");
+    private static boolean save() {
+        String name = fileName;
+        if (name.isEmpty()) {
+            name = SafeInput.getNonZeroLenString(in, "Please enter a file name");
+        }
+        synchronized (Main.class) {
+            fileName = name;
+            if (journal == null || journal.hasFailed()) {
+                // Write the whole list and start a fresh journal for the edits after this
+                Path file = Paths.get(fileName + ".txt");
+                if (journal != null) {
+                    journal.waitForCompaction(); // so it doesn't write the file over this save
+                }
+                try {
+                    NIOFileEditing.writeFile(myArrList, file);
+                } catch (IOException e) {
+                    // The old file and journal are left as they were, so nothing that was saved before is lost
+                    System.out.println("Error, " + file + " couldn't be saved: " + e.getMessage());
+                    return true;
+                }
+                if (Files.exists(file)) {
+                    if (journal != null) {
+                        journal.discard(); // the file holds everything it did
+                    }
+                    journal = ListJournal.open(file);
+                    if (journal != null) {
+                        journal.reset();
+                    }
+                    if (live != null) {
+                        live.synced(snapshot(myArrList), false);
+                        followJournal();
+                    } else if (liveMode) {
+                        startLiveReload(snapshot(myArrList)); // the list has a file to watch now
+                    }
+                }
+            } else {
+                journal.commit();
+            }
+            needsToBeSaved = false;
+            history.saved();
         }
-        NIOFileEditing.writeFile(myArrList, fileName);
         return false;
     }
 
+    /** Method used by the autosaver to save the list on its own thread
+     * Only holds the lock on Main to add the commit record to the journal or to copy the list,
+     * the journal is forced to disk and a list without a journal is written out after the lock is let go
+     * @return the number of bytes written, or -1 if there was nothing to save
+     * @throws IOException if the list file couldn't be written
+     */
+    static long autoSave() throws IOException {
+        List<String> copy;
+        Path file;
+        LiveReload reload;
+        ListJournal committing;
+        long saved = 0;
+        synchronized (Main.class) {
+            if (!needsToBeSaved || fileName.isEmpty()) {
+                return -1; // a list without a name is only saved when the user picks one
+            }
+            needsToBeSaved = false;
+            history.saved();
+            if (journal != null && !journal.hasFailed()) {
+                committing = journal;
+                saved = committing.markCommitted();
+                copy = null;
+                file = null;
+                reload = null;
+            } else {
+                committing = null;
+                copy = snapshot(myArrList);
+                file = Paths.get(fileName + ".txt");
+                reload = live;
+                if (reload != null) {
+                    reload.saving(true);
+                }
+            }
+        }
+        if (committing != null) {
+            // The fsync is the slow part, edits can go on while it runs
+            committing.force(saved);
+            if (committing.hasFailed()) {
+                synchronized (Main.class) {
+                    needsToBeSaved = true; // the next save writes the whole list
+                    history.unsaved();
+                }
+            }
+            return saved;
+        }
+        try {
+            NIOFileEditing.writeFile(copy, file);
+        } catch (IOException e) {
+            synchronized (Main.class) {
+                needsToBeSaved = true;
+                history.unsaved();
+            }
+            if (reload != null) {
+                reload.saving(false);
+            }
+            throw e;
+        }
+        if (reload != null) {
+            synchronized (Main.class) {
+                reload.synced(copy, needsToBeSaved);
+            }
+        }
+        return Files.size(file);
+    }
+
+    /** Method to copy the list so it can be written out while the user keeps editing
+     * The list storages only copy their index, not the items
+     * @param list the list to copy
+     * @return a copy that later edits don't change
+     */
+    static List<String> snapshot(List<String> list) {
+        if (list instanceof GapBufferList) {
+            return ((GapBufferList<String>) list).snapshot();
+        } else if (list instanceof MappedLineList) {
+            return ((MappedLineList) list).snapshot();
+        }
+        return new ArrayList<>(list);
+    }
+
+    /** Method to open the journal of a list that was just opened
+     * Applies the saved edits that haven't been folded into the file yet
+     * @return true if unsaved edits from a crash were recovered and the list needs to be saved
+     */
+    private static boolean openJournal() {
+        Path file = Paths.get(fileName + ".txt");
+        if (!Files.exists(file)) {
+            return false; // The first save will write the file and start the journal
+        }
+        journal = ListJournal.open(file);
+        if (journal == null) {
+            return false;
+        }
+        followJournal();
+        int recovered = journal.replay(myArrList);
+        if (recovered > 0) {
+            System.out.println("Recovered " + recovered + " unsaved edit(s) to " + fileName);
+        }
+        return recovered > 0;
+    }
+
+    /** Method to close the current list file
+     * Closes its journal, then saves the search index next to the list file if it was built and the list was saved
+     */
+    private static void closeList() {
+        park().close();
+        journal = null;
+        live = null;
+    }
+
+    /** Method to open a list file, parking the current list in the workspace first
+     * A list that is still in the workspace is used as it is instead of reading its file again
+     * @param file the list file to open, null if none was picked
+     */
+    private static void openList(Path file) {
+        if (file == null) {
+            System.out.println("No file selected");
+            return;
+        }
+        file = file.toAbsolutePath().normalize();
+        if (!fileName.isEmpty() && file.equals(park().file())) {
+            return; // it is already the current list
+        }
+        if (autoSaver != null) {
+            // Save now what the autosaver was waiting to save, it only saves the current list
+            autoSaver.cancel();
+            try {
+                autoSave();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (fileName.isEmpty()) {
+            // A list that was never saved has no file to be parked under, so it is closed like before
+            needsToBeSaved = needsToBeSaved(needsToBeSaved);
+        }
+
+        synchronized (Main.class) {
+            if (fileName.isEmpty()) {
+                closeList();
+            } else {
+                if (live != null) {
+                    live.stop();
+                }
+                workspace.put(park());
+            }
+            Workspace.OpenList parked = workspace.take(file);
+            if (parked != null) {
+                restore(parked);
+                if (liveMode) {
+                    startLiveReload(null); // merges what changed while it was parked
+                } else {
+                    stopLiveReload();
+                    if (!parked.isCurrent()) {
+                        System.out.println(file + " was changed on disk, keeping the unsaved edits to it");
+                    }
+                }
+                return;
+            }
+
+            String name = file.toString();
+            fileName = name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name;
+            page = 0;
+            searchIndex = null;
+            history = new EditHistory();
+            live = null;
+            List<String> read = null;
+            try {
+                // Map the file into memory instead of reading every line into the heap
+                myArrList = NIOFileEditing.readLines(file);
+                // What the file holds, before the journal puts back the edits that weren't folded into it
+                read = liveMode && detachList(file) ? snapshot(myArrList) : null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                myArrList = newList();
+                fileName = "";
+            }
+            needsToBeSaved = openJournal();
+            sameAsFile = journal == null || journal.isEmpty();
+            if (needsToBeSaved) {
+                history.unsaved(); // the edits put back from a crash were never saved
+            }
+            if (read != null) {
+                startLiveReload(read);
+            }
+        }
+    }
+
+    /** Method to read the list file again after another program cut it short while it was open
+     * The lines that were cut off can't be read any more. The journal is closed without being folded in or emptied,
+     * so the edits in it are kept next to the list file when it is opened again (see ListJournal)
+     */
+    private static void reopenCutShort() {
+        reopen("Error, " + fileName + ".txt was cut short by another program while it was open");
+    }
+
+    /** Method to read the list file again when the list can't be read from the file it mapped any more
+     * The journal is closed without being folded in or emptied, so if the list had edits they are kept
+     * next to the list file when it is opened again (see ListJournal)
+     * @param why what happened to the file
+     */
+    private static void reopen(String why) {
+        synchronized (Main.class) {
+            Path file = Paths.get(fileName + ".txt");
+            System.out.println("\n" + why + ", reading it again");
+            if ((needsToBeSaved || !sameAsFile) && (journal == null || journal.hasFailed())) {
+                System.out.println(" The edits made since the list was last saved in full are lost");
+            }
+            if (autoSaver != null) {
+                autoSaver.cancel();
+            }
+            if (live != null) {
+                live.stop();
+                live = null;
+            }
+            if (journal != null) {
+                journal.abandon();
+                journal = null;
+            }
+            page = 0;
+            searchIndex = null;
+            history = new EditHistory();
+            reloads++;
+            try {
+                myArrList = NIOFileEditing.readLines(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                myArrList = newList();
+                fileName = "";
+            }
+            needsToBeSaved = openJournal();
+            sameAsFile = journal == null || journal.isEmpty();
+            if (needsToBeSaved) {
+                history.unsaved(); // the edits put back from a crash were never saved
+            }
+            if (liveMode) {
+                startLiveReload(null);
+            }
+        }
+    }
+
+    /** Method to switch to one of the lists in the workspace
+     * Prints the open lists with numbers and lets the user pick one
+     */
+    private static void switchList() {
+        List<Workspace.OpenList> open = workspace.lists();
+        if (open.isEmpty()) {
+            System.out.println("No other lists are open");
+            return;
+        }
+        System.out.println("Open lists:");
+        for (int i = 0; i < open.size(); i++) {
+            Workspace.OpenList list = open.get(i);
+            System.out.println(" " + (i + 1) + ". " + list.file() + " (" + list.list.size() + " items"
+                    + (list.needsToBeSaved ? ", unsaved)" : ")"));
+        }
+        int pick = SafeInput.getRangedInt(in, "Enter a list number", 1, open.size());
+        openList(open.get(pick - 1).file());
+    }
+
+    /** Method to close every list in the workspace when the program quits
+     * Each list with unsaved edits is switched to so the user can decide whether to save it
+     */
+    private static void closeWorkspace() {
+        for (Workspace.OpenList list : workspace.takeAll()) {
+            synchronized (Main.class) {
+                restore(list);
+            }
+            if (needsToBeSaved) {
+                System.out.println(fileName + ".txt has unsaved edits");
+            }
+            needsToBeSaved = needsToBeSaved(needsToBeSaved);
+            synchronized (Main.class) {
+                closeList();
+            }
+        }
+    }
+
+    /** Method to gather the current list and everything that belongs to it
+     * @return the current list, so it can be parked or closed
+     */
+    private static Workspace.OpenList park() {
+        return new Workspace.OpenList(myArrList, fileName, journal, searchIndex, needsToBeSaved, sameAsFile, page,
+                history, live);
+    }
+
+    /** Method to make a list from the workspace the current list
+     * @param list the list to edit
+     */
+    private static void restore(Workspace.OpenList list) {
+        myArrList = list.list;
+        fileName = list.fileName;
+        journal = list.journal;
+        searchIndex = list.searchIndex;
+        needsToBeSaved = list.needsToBeSaved;
+        sameAsFile = list.sameAsFile;
+        page = list.page;
+        history = list.history;
+        live = list.live;
+    }
+
+    /** Method to start merging changes other programs make to the current list file into the list
+     * A list that was parked with its live reload goes on from where it was, otherwise the file is what the list is compared with
+     * @param lines the items that are in the file, or null to read them from it
+     */
+    private static void startLiveReload(List<String> lines) {
+        Path file = Paths.get(fileName + ".txt");
+        if (live == null) {
+            if (fileName.isEmpty() || !Files.exists(file)) {
+                return; // it starts when the list is saved
+            }
+            if (!detachList(file)) {
+                return;
+            }
+            if (lines == null) {
+                try {
+                    lines = NIOFileEditing.readLines(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            live = new LiveReload(file, lines, Main::liveReload);
+            if (!sameAsFile) {
+                live.edited();
+            }
+        }
+        followJournal();
+        live.start();
+    }
+
+    /** Method to make the current list read its items from a copy of its file, if it reads them from a mapping of it
+     * Live reload merges what other programs write into the list, which can't be done if writing over the file changes the list too
+     * @param file the list file
+     * @return false if the copy couldn't be made, live reload can't start then
+     */
+    private static boolean detachList(Path file) {
+        if (myArrList instanceof MappedLineList && ((MappedLineList) myArrList).maps(file)) {
+            try {
+                myArrList = ((MappedLineList) myArrList).detach();
+            } catch (IOException e) {
+                System.out.println("Error, live reload couldn't start: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Method to stop merging changes made to the current list file
+     */
+    private static void stopLiveReload() {
+        if (live != null) {
+            live.stop();
+            live = null;
+            followJournal();
+        }
+    }
+
+    /** Method to let live reload know when the journal writes the list file, so that isn't taken for another program's change
+     */
+    private static void followJournal() {
+        if (journal != null) {
+            LiveReload reload = live;
+            journal.setCompactionListener(reload == null ? null : written -> reload.synced(written, true));
+        }
+    }
+
+    /** Method called on the live reload thread when the list file may have been changed by another program
+     * Merges the change into the list, where the list was edited too its edits are kept and the conflict is printed
+     * @param reload the live reload of the list whose file changed
+     */
+    static void liveReload(LiveReload reload) {
+        synchronized (Main.class) {
+            if (reload != live) {
+                return; // the list was closed or parked meanwhile
+            }
+            if (journal != null) {
+                journal.waitForCompaction(); // the journal may be writing the file itself
+            }
+            // Saved edits in the journal are for the file as it was, so the change goes into the saved list too
+            // and it is written back; without unsaved edits that is the list itself
+            boolean unsaved = needsToBeSaved;
+            List<String> saved = unsaved && journal != null && journal.hasSavedEdits()
+                    ? history.savedList(myArrList, Main::snapshot) : null;
+            LiveReload.Merge merge;
+            try {
+                merge = reload.merge(myArrList, saved);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } catch (UncheckedIOException | InternalError e) {
+                // Reading a mapped list fails like this when another program cuts its file short
+                if (!(myArrList instanceof MappedLineList) || !((MappedLineList) myArrList).isCutShort()) {
+                    e.printStackTrace();
+                    return;
+                }
+                reopenCutShort();
+                return;
+            }
+            if (merge == null) {
+                return;
+            }
+            if (!merge.fileChanged) {
+                // Written again with the same items, the journal still fits it
+                if (journal != null) {
+                    journal.rebase();
+                }
+                return;
+            }
+            if (merge.changed()) {
+                reloads++;
+                history = new EditHistory(); // the steps no longer point at the right items
+                if (searchIndex != null && merge.appendedFrom >= 0) {
+                    for (int i = merge.appendedFrom; i < myArrList.size(); i++) {
+                        searchIndex.added(myArrList.get(i));
+                    }
+                } else {
+                    searchIndex = null;
+                }
+            }
+            // Saved edits that the file doesn't have go back into it, a list the same as the file has them all
+            boolean savedEdits = journal != null && journal.hasSavedEdits() && !(merge.sameAsFile && !unsaved);
+            boolean wroteBack = savedEdits && (!unsaved || saved != null)
+                    && writeBack(unsaved ? saved : snapshot(myArrList));
+            if (wroteBack ? !unsaved : merge.sameAsFile && !savedEdits) {
+                if (!wroteBack && journal != null && !journal.hasFailed()) {
+                    journal.reset();
+                }
+                needsToBeSaved = false;
+                sameAsFile = true;
+                history.saved();
+            } else {
+                // The journal's records are for the file as it was, the next save has to write the whole list
+                if (journal != null) {
+                    journal.suspend();
+                }
+                needsToBeSaved = true;
+                sameAsFile = false;
+                history.unsaved(); // the saved list is the file, the steps don't lead to it
+                if (autoSaver != null) {
+                    autoSaver.edited();
+                }
+            }
+            System.out.println("\n" + fileName + ".txt was changed by another program: " + merge.added
+                    + " item(s) added and " + merge.removed + " removed");
+            for (String conflict : merge.conflicts) {
+                System.out.println(" Conflict: " + conflict);
+            }
+            if (wroteBack) {
+                System.out.println(" The saved edits of the list were written back to the file");
+            } else if (savedEdits) {
+                System.out.println(" The saved edits of the list couldn't be written back to the file");
+            }
+            if (needsToBeSaved) {
+                System.out.println(" The list has edits that aren't in the file, save it to keep them");
+            }
+        }
+    }
+
+    /** Method to write the saved list back to the list file after another program changed the file
+     * The saved edits in the journal don't fit the new file, so the saved list, with the change merged into it,
+     * is written in full instead and the journal starts again empty
+     * @param saved the saved list, it mustn't be changed after this
+     * @return true if it was written
+     */
+    private static boolean writeBack(List<String> saved) {
+        Path file = Paths.get(fileName + ".txt");
+        try {
+            NIOFileEditing.writeFile(saved, file);
+        } catch (IOException e) {
+            System.out.println("Error, " + file + " couldn't be saved: " + e.getMessage());
+            return false;
+        }
+        journal.discard(); // the file holds everything it did
+        journal = ListJournal.open(file);
+        if (journal != null) {
+            journal.reset();
+        }
+        live.synced(saved, needsToBeSaved);
+        followJournal();
+        return true;
+    }
+
+    /** Method to close the journal of the current list
+     * Unsaved edits are dropped and saved edits are folded into the list file
+     */
+    private static void closeJournal() {
+        if (journal != null) {
+            journal.close(needsToBeSaved ? history.savedList(myArrList, Main::snapshot) : myArrList);
+            journal = null;
+        }
+    }
+
     /** Method to check if the current list needs to be saved
      * If yes, prompts user to save
      * @param needsToBeSaved Boolean indicating if list needs to be saved
-     * @param fileName Name of the file where list is saved
      * @return boolean indicating whether list needs to be saved
      */
-    private static boolean needsToBeSaved(boolean needsToBeSaved, String fileName) {
+    private static boolean needsToBeSaved(boolean needsToBeSaved) {
         if (needsToBeSaved){
             // Prompt if user wants to save current list
             if (SafeInput.getYNConfirm(in, "Would you like to save the file?")) {
-                save(fileName);
-                needsToBeSaved = false;
+                needsToBeSaved = save();
             }
         }
         return  needsToBeSaved;
@@ -0,0 +1,633 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A list of the lines of a file that is memory-mapped instead of read into the heap.
+ *
+ * Opening only scans the mapped bytes for line breaks and remembers where each line starts.
+ * A line is only turned into a String when it is asked for with get(), so a file with
+ * millions of lines opens at once and only costs a few bytes of heap per line.
+ * Files bigger than 2 GB are mapped in several chunks because one MappedByteBuffer can't
+ * be larger than Integer.MAX_VALUE bytes. A binary list file (see ListFormat) is mapped the
+ * same way, but where its items start is read from its table instead of scanned for.
+ *
+ * A file of up to COPY_BYTES (64 MB, or -Dfilelist.copyBytes=<bytes>) is copied into a direct
+ * ByteBuffer instead of mapped. The copy is still outside the heap, but it is the list's own:
+ * another program writing over the file in place can't change the lines under it, and the
+ * file isn't held open by a mapping, which on Windows would stop it from being replaced.
+ *
+ * The list can still be edited like any other list. Lines that came from the file are
+ * stored as their line number. New items are stored as UTF-8 bytes in one direct
+ * ByteBuffer outside the heap (the arena) and are stored by their offset in it, so a
+ * list made this way is also only turned into Strings when it is shown. The line numbers
+ * and offsets are kept in a ring with a gap (a GapRing, like GapBufferList), so edits next to the
+ * last edit (or at the front and end in turn) don't have to move the rest of the list.
+ *
+ * The arena only ever grows, the space of deleted items is given back when the list is
+ * cleared or thrown away. Because bytes in the arena are never changed once written, a
+ * snapshot of the list can share the mapped file and the arena and only copy the slots.
+ * A snapshot that is added to copies the arena first.
+ *
+ * If another program cuts the file short while it is mapped, reading a line past the new
+ * end makes the JVM throw an InternalError. get() turns that into an UncheckedIOException
+ * and isCutShort() is true from then on, so the program can read the file again instead of
+ * stopping; the lines that were cut off are gone either way. A mapped file that is written
+ * over in place without getting shorter doesn't fail at all, the lines just read as the new
+ * bytes, so isWrittenOver() checks the size and modified time of the file against the ones
+ * it had when it was opened, and NIOFileEditing won't save a list that is written over.
+ * Where that is expected, like while live reload merges other programs' changes into the
+ * list, detach() moves the list onto a private copy of the file first.
+ */
+public class MappedLineList extends AbstractList<String> implements RandomAccess {
+
+    // Size of each mapped chunk of the file (1 GB), must stay below Integer.MAX_VALUE
+    static final long CHUNK_SIZE = 1L << 30;
+    // Files up to this size are copied instead of mapped, at most one chunk
+    static final long COPY_BYTES = Math.min(CHUNK_SIZE, Long.getLong("filelist.copyBytes", 64L << 20));
+
+    // Byte patterns used to look for '\n' in 8 bytes at a time
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // Arena of a list that hasn't added any items yet
+    private static final ByteBuffer EMPTY_ARENA = ByteBuffer.allocateDirect(0);
+
+    // The mapped (or copied) chunks of the file, chunk k starts at byte k * CHUNK_SIZE
+    private final ByteBuffer[] chunks;
+    // starts[i] is the byte offset where line i starts, starts[lineCount] is one past the end
+    private final long[] starts;
+    // Number of lines found in the file
+    private final int lineCount;
+    // Bytes between one line and the next: the '\n' of a text file, or the length of the next item of a binary one
+    private final int separator;
+    // The mapped file and what the file system knows it by, null for a list that doesn't read from a file
+    private final Path file;
+    private final Object fileKey;
+    // Size and last modified time (in milliseconds) of the mapped file when it was opened
+    private final long fileSize;
+    private final long modified;
+    // Set once reading the mapped file failed because another program cut it short
+    private volatile boolean cutShort;
+
+    // Items of the list in order, a slot >= 0 is a line of the file and a slot < 0 is -(offset + 1) in the arena
+    // The slots are an int[] kept in a ring with a gap of free slots in it
+    private GapRing ring;
+    // Items that were added or changed after the file was opened, each one is its length followed by its bytes
+    private ByteBuffer arena = EMPTY_ARENA;
+    // Number of bytes used in the arena
+    private int arenaUsed;
+    // Set on a snapshot, whose arena the list it was made from keeps adding to, so it adds to a copy instead
+    private boolean arenaShared;
+
+    /**
+     * Creates an empty list that isn't backed by any file
+     */
+    public MappedLineList() {
+        chunks = new ByteBuffer[0];
+        starts = new long[]{0};
+        lineCount = 0;
+        separator = 1;
+        file = null;
+        fileKey = null;
+        fileSize = 0;
+        modified = 0;
+        ring = new GapRing(new int[10], 0);
+    }
+
+    private MappedLineList(ByteBuffer[] chunks, long[] starts, int lineCount, int separator, Path file,
+                           Object fileKey, long fileSize, long modified) {
+        this.chunks = chunks;
+        this.starts = starts;
+        this.lineCount = lineCount;
+        this.separator = separator;
+        this.file = file;
+        this.fileKey = fileKey;
+        this.fileSize = fileSize;
+        this.modified = modified;
+        int[] slots = new int[Math.max(10, lineCount)];
+        for (int i = 0; i < lineCount; i++) {
+            slots[i] = i;
+        }
+        this.ring = new GapRing(slots, lineCount);
+    }
+
+    /**
+     * Maps a file into memory (or copies it, if it is small) and finds where all of its lines start
+     *
+     * @param file the file to open
+     * @return a list with one item per line of the file
+     * @throws IOException if the file can't be read or has more lines than a list can hold
+     */
+    public static MappedLineList open(Path file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * @param file the file to open
+     * @param copySmall true to copy the file if it is at most COPY_BYTES, false to always map it
+     * @return a list with one item per line of the file
+     * @throws IOException if the file can't be read or has more lines than a list can hold
+     */
+    private static MappedLineList open(Path file, boolean copySmall) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long fileSize = channel.size();
+            boolean copy = copySmall && fileSize <= COPY_BYTES;
+            ByteBuffer[] chunks = copy ? copy(channel, fileSize) : map(channel, fileSize);
+            int chunkCount = chunks.length;
+            if (copy) {
+                fileSize = chunkCount > 0 ? chunks[0].limit() : 0; // the file may have been cut short while it was read
+            }
+
+            // The first line starts at 0 and every other line starts right after a '\n'
+            long[] starts = new long[1024];
+            int count = 0;
+            if (fileSize > 0) {
+                starts[count++] = 0;
+            }
+            try {
+                for (int k = 0; k < chunkCount; k++) {
+                    ByteBuffer chunk = chunks[k];
+                    long base = k * CHUNK_SIZE;
+                    int limit = chunk.limit();
+                    int i = 0;
+                    // Check 8 bytes at a time, only looking at single bytes when one of them may be a '\n'
+                    for (; i + 8 <= limit; i += 8) {
+                        long word = chunk.getLong(i) ^ NEWLINES;
+                        long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+                        while (found != 0) {
+                            int at = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                            if (chunk.get(at) == '\n') {
+                                if (count == starts.length) {
+                                    starts = grow(starts, count);
+                                }
+                                starts[count++] = base + at + 1;
+                            }
+                            found &= found - 1;
+                        }
+                    }
+                    // Check the last few bytes of the chunk one by one
+                    for (; i < limit; i++) {
+                        if (chunk.get(i) == '\n') {
+                            if (count == starts.length) {
+                                starts = grow(starts, count);
+                            }
+                            starts[count++] = base + i + 1;
+                        }
+                    }
+                }
+            } catch (InternalError e) {
+                throw new IOException(file + " was cut short by another program while it was being opened", e);
+            }
+
+            // A '\n' at the very end of the file doesn't start another line
+            int lines;
+            if (count > 0 && starts[count - 1] == fileSize) {
+                lines = count - 1;
+            } else {
+                lines = count;
+                if (count == starts.length) {
+                    starts = grow(starts, count);
+                }
+                // Pretend there is a '\n' after the last line so every line ends one byte before the next start
+                starts[count] = fileSize + 1;
+            }
+            // Give back the room that was left over from growing the array
+            if (starts.length > lines + 1 + 1024) {
+                starts = Arrays.copyOf(starts, lines + 1);
+            }
+            if (copy) {
+                return new MappedLineList(chunks, starts, lines, 1, null, null, 0, 0);
+            }
+            return new MappedLineList(chunks, starts, lines, 1, file, attributes.fileKey(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    /**
+     * Maps a temp file into memory and deletes it
+     * The mapping keeps the file's data until the list is garbage collected, so the temp file
+     * doesn't stay on disk for the rest of the program. Nothing else writes to a temp file,
+     * so it is mapped whatever its size. Where a mapped file can't be deleted (Windows) it is
+     * deleted when the program ends instead.
+     *
+     * @param file the temp file to open, it is deleted even if it can't be opened
+     * @return a list with one item per line of the file
+     * @throws IOException if the file can't be read or has more lines than a list can hold
+     */
+    static MappedLineList openTemp(Path file) throws IOException {
+        try {
+            return open(file, false);
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Maps a binary list file (see ListFormat) into memory, or copies it if it is small
+     * The file ends with a table of where every item starts, so nothing has to be scanned:
+     * the table is read into the array of starts and only the items are mapped.
+     *
+     * @param file the file to open
+     * @return a list with the items of the file
+     * @throws IOException if the file can't be read or isn't a binary list file
+     */
+    public static MappedLineList openBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            if (ListFormat.detect(channel) != ListFormat.BINARY) {
+                throw new IOException(file + " is not a binary list file");
+            }
+            ByteBuffer trailer = ListFormat.trailer(channel);
+            long tableOffset = trailer.getLong(0);
+            int count = trailer.getInt(8);
+            if (count < 0 || count >= Integer.MAX_VALUE - 16
+                    || tableOffset + 8L * count + ListFormat.TRAILER_SIZE != channel.size()) {
+                throw new IOException(file + " has a damaged table");
+            }
+
+            // The table holds where each length is, the item itself starts 4 bytes later
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long[] starts = new long[count + 1];
+            ByteBuffer table = ByteBuffer.allocate((int) Math.min(8L * count, 1 << 20));
+            int read = 0;
+            while (read < count) {
+                table.clear().limit((int) Math.min(table.capacity(), 8L * (count - read)));
+                while (table.hasRemaining()) {
+                    if (channel.read(table, tableOffset + 8L * read + table.position()) < 0) {
+                        throw new IOException(file + " was cut short by another program while it was being opened");
+                    }
+                }
+                table.flip();
+                int n = table.remaining() / 8;
+                table.asLongBuffer().get(starts, read, n);
+                read += n;
+            }
+            for (int i = 0; i < count; i++) {
+                starts[i] += 4;
+            }
+            // The table comes right after the last item, as if it were the length of another one
+            starts[count] = tableOffset + 4;
+            if (tableOffset <= COPY_BYTES) {
+                ByteBuffer[] chunks = copy(channel, tableOffset);
+                if (tableOffset > 0 && chunks[0].limit() < tableOffset) {
+                    throw new IOException(file + " was cut short by another program while it was being opened");
+                }
+                return new MappedLineList(chunks, starts, count, 4, null, null, 0, 0);
+            }
+            return new MappedLineList(map(channel, tableOffset), starts, count, 4, file, attributes.fileKey(),
+                    attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    /**
+     * Maps the start of a file in chunks of at most CHUNK_SIZE bytes
+     *
+     * @param channel the open file
+     * @param size number of bytes to map
+     * @return the chunks
+     */
+    private static ByteBuffer[] map(FileChannel channel, long size) throws IOException {
+        int chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+        for (int k = 0; k < chunkCount; k++) {
+            long position = k * CHUNK_SIZE;
+            chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            chunks[k].order(ByteOrder.LITTLE_ENDIAN); // so the lowest byte of getLong() is the first byte in the file
+        }
+        return chunks;
+    }
+
+    /**
+     * Copies the start of a file into one direct ByteBuffer
+     * It is read with the channel, so nothing is left mapped once the channel is closed.
+     *
+     * @param channel the open file
+     * @param size number of bytes to copy, at most COPY_BYTES
+     * @return the copy as the only chunk, shorter than size if the file was cut short meanwhile; no chunk if size is 0
+     */
+    private static ByteBuffer[] copy(FileChannel channel, long size) throws IOException {
+        if (size == 0) {
+            return new ByteBuffer[0];
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect((int) size);
+        while (copy.hasRemaining() && channel.read(copy, copy.position()) >= 0) {
+            // read until the buffer is full or the file ends
+        }
+        copy.flip();
+        copy.order(ByteOrder.LITTLE_ENDIAN); // so the lowest byte of getLong() is the first byte in the file
+        return new ByteBuffer[]{copy};
+    }
+
+    /**
+     * Makes the array of line starts bigger
+     *
+     * @param starts the full array
+     * @param count number of starts stored in the array
+     * @return a copy of the array with more room
+     * @throws IOException if the file has more lines than a list can hold
+     */
+    private static long[] grow(long[] starts, int count) throws IOException {
+        if (count >= Integer.MAX_VALUE - 16) {
+            throw new IOException("File has too many lines to open");
+        }
+        return Arrays.copyOf(starts, (int) Math.min(Integer.MAX_VALUE - 8, count * 2L));
+    }
+
+    /**
+     * Turns one line of the mapped file into a String
+     *
+     * @param line number of the line in the file
+     * @return the text of the line without the line break
+     */
+    private String decodeLine(int line) {
+        long start = starts[line];
+        int length = (int) (starts[line + 1] - separator - start);
+        byte[] bytes = new byte[length];
+        // A line can cross over from one chunk into the next one
+        int copied = 0;
+        while (copied < length) {
+            long position = start + copied;
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)];
+            int offset = (int) (position % CHUNK_SIZE);
+            int n = Math.min(length - copied, chunk.limit() - offset);
+            chunk.get(offset, bytes, copied, n);
+            copied += n;
+        }
+        // Lines saved on Windows end with "\r\n"
+        if (separator == 1 && length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes a copy of the list that later edits don't change
+     * Only the slots are copied, the mapped file and the arena are shared
+     *
+     * @return the copy
+     */
+    public MappedLineList snapshot() {
+        MappedLineList copy = new MappedLineList(chunks, starts, 0, separator, file, fileKey, fileSize, modified);
+        copy.ring = ring.copy();
+        copy.arena = arena;
+        copy.arenaUsed = arenaUsed;
+        copy.arenaShared = true;
+        return copy;
+    }
+
+    /**
+     * @return about how many bytes the list keeps in memory, counting a copied file but not a mapped one
+     */
+    public long memorySize() {
+        return 8L * starts.length + 4L * slots().length + arena.capacity() + (file == null ? mappedSize() : 0);
+    }
+
+    /**
+     * @return number of bytes of the file that are mapped or copied
+     */
+    private long mappedSize() {
+        long size = 0;
+        for (ByteBuffer chunk : chunks) {
+            size += chunk.limit();
+        }
+        return size;
+    }
+
+    /**
+     * Works out if another program cut the mapped file short, so lines of it can't be read any more
+     * A file that was replaced by a new one doesn't count, the old one stays mapped as it was.
+     *
+     * @return true if reading the file failed, or if it is the same file and it is now shorter than what was mapped
+     */
+    public boolean isCutShort() {
+        if (cutShort) {
+            return true;
+        }
+        if (file == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return isMapped(attributes) && attributes.size() < mappedSize();
+        } catch (IOException e) {
+            return false; // deleted, the mapping still holds the old file
+        }
+    }
+
+    /**
+     * Works out if another program wrote over the mapped file in place, so its lines may not read as they did
+     * A file that was replaced by a new one doesn't count, the old one stays mapped as it was,
+     * and neither does a copied file. Bytes added at the end can't be told apart from a file
+     * written over, so they count too.
+     *
+     * @return true if the file was cut short, or if it is the same file and its size or modified time changed
+     */
+    public boolean isWrittenOver() {
+        if (cutShort) {
+            return true;
+        }
+        if (file == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return isMapped(attributes)
+                    && (attributes.size() != fileSize || attributes.lastModifiedTime().toMillis() != modified);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return true if the lines of the list are read from that file, so writing over it in place changes them
+     */
+    public boolean maps(Path file) {
+        if (this.file == null) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return fileKey != null ? isMapped(attributes)
+                    : this.file.toAbsolutePath().normalize().equals(file.toAbsolutePath().normalize());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param attributes what the file system says about a file
+     * @return true if it is the mapped file; where files have no key (Windows) a mapped file can't be
+     * replaced, so a file found where it was is the mapped one
+     */
+    private boolean isMapped(BasicFileAttributes attributes) {
+        return fileKey == null || fileKey.equals(attributes.fileKey());
+    }
+
+    /**
+     * Copies the mapped file to a temp file and makes a list that reads its lines from the copy
+     * Used before another program may write over the file in place, see LiveReload. The temp file
+     * is deleted at once like the one of openTemp(), the copy lasts as long as the list does.
+     * The new list takes the place of this one, which mustn't be edited after this.
+     *
+     * @return a list with the same items that doesn't read from the file
+     * @throws IOException if the copy couldn't be written, or the file was written over before it was done
+     */
+    public MappedLineList detach() throws IOException {
+        if (isWrittenOver()) {
+            throw new IOException(file + " was written over by another program while it was open");
+        }
+        Path temp = Files.createTempFile("detached", ".txt");
+        try {
+            ByteBuffer[] copies;
+            BasicFileAttributes attributes;
+            try (FileChannel channel = FileChannel.open(temp, READ, WRITE)) {
+                long size = 0;
+                for (ByteBuffer chunk : chunks) {
+                    ByteBuffer bytes = chunk.duplicate().clear();
+                    while (bytes.hasRemaining()) {
+                        size += channel.write(bytes, size);
+                    }
+                }
+                copies = map(channel, size);
+                attributes = Files.readAttributes(temp, BasicFileAttributes.class);
+            }
+            // What was copied may already be another program's bytes
+            if (isWrittenOver()) {
+                throw new IOException(file + " was written over by another program while it was being copied");
+            }
+            MappedLineList copy = new MappedLineList(copies, starts, 0, separator, temp, attributes.fileKey(),
+                    attributes.size(), attributes.lastModifiedTime().toMillis());
+            copy.ring = ring.copy();
+            copy.arena = arena;
+            copy.arenaUsed = arenaUsed;
+            copy.arenaShared = true;
+            return copy;
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                temp.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    public String get(int index) {
+        GapRing.checkIndex(index, size());
+        int slot = slots()[ring.physical(index)];
+        if (slot < 0) {
+            return decodeAdded(-(slot + 1));
+        }
+        try {
+            return decodeLine(slot);
+        } catch (InternalError e) {
+            // The JVM's answer to a page of the mapping that isn't backed by the file any more
+            cutShort = true;
+            throw new UncheckedIOException(new IOException(file + " was cut short by another program while it was open", e));
+        }
+    }
+
+    @Override
+    public int size() {
+        return ring.size();
+    }
+
+    @Override
+    public String set(int index, String element) {
+        String old = get(index);
+        slots()[ring.physical(index)] = store(element);
+        return old;
+    }
+
+    @Override
+    public void add(int index, String element) {
+        GapRing.checkIndex(index, size() + 1);
+        int slot = store(element);
+        int at = ring.insert(index);
+        slots()[at] = slot;
+        modCount++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String old = get(index);
+        ring.remove(index);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        ring = new GapRing(new int[10], 0);
+        // Start a new arena, a snapshot may still be reading the old one
+        arena = EMPTY_ARENA;
+        arenaUsed = 0;
+        arenaShared = false;
+        modCount++;
+    }
+
+    /**
+     * Copies a new item into the arena
+     *
+     * @param element the new item
+     * @return the slot that points to the item
+     */
+    private int store(String element) {
+        byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+        int needed = 4 + bytes.length;
+        if (arena.capacity() - arenaUsed < needed || arenaShared) {
+            long capacity = Math.max(arena.capacity() * 2L, Math.max(4096L, (long) arenaUsed + needed));
+            if ((long) arenaUsed + needed >= Integer.MAX_VALUE) {
+                throw new IllegalStateException("List has more than 2 GB of added items");
+            }
+            ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+            bigger.put(0, arena, 0, arenaUsed);
+            arena = bigger;
+            arenaShared = false;
+        }
+        int offset = arenaUsed;
+        arena.putInt(offset, bytes.length);
+        arena.put(offset + 4, bytes);
+        arenaUsed += needed;
+        return -(offset + 1);
+    }
+
+    /**
+     * Turns one item in the arena back into a String
+     *
+     * @param offset where the item starts in the arena
+     * @return the item
+     */
+    private String decodeAdded(int offset) {
+        byte[] bytes = new byte[arena.getInt(offset)];
+        arena.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the array of the ring, read again after an add since the ring may have grown
+     */
+    private int[] slots() {
+        return (int[]) ring.array;
+    }
+}
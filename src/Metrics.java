@@ -0,0 +1,416 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counters and latency histograms for the file and list operations
+ *
+ * Every operation is counted, and a timer measures how long it took and how many bytes
+ * the thread allocated while doing it. The latencies go into a histogram with 16 buckets
+ * for every power of two, so percentiles are within about 6% of the real value whatever
+ * the range, the way HdrHistogram does it. Timed operations are also JFR events
+ * ("filelist.Operation"), so they show up in a flight recording:
+ *   java -XX:StartFlightRecording=filename=filelist.jfr Main
+ * The event is only made while a recording is on (started with the program or later with
+ * jcmd), just loading an event class starts up JFR, which took longer than the rest of
+ * the program's start up.
+ *
+ * Reading the clock and the allocation counter twice costs about TIMER_NANOS, which is a
+ * lot next to checking one line of input. So an operation is only timed every so often
+ * when it is fast: each kind of operation times one call in 1, 2, 4, ... (up to 1024),
+ * picked from the recent calls so the timer costs about 0.25% of the time the operation
+ * takes. A call that isn't timed only bumps a plain counter, the calls since the last
+ * timed one are added to the shared count when the next one is timed. Measured around
+ * a stand-in operation on one core, that is about 1 ns a call: about 0.5% of a 700 ns
+ * page view, and well under 1% of an input check once reading the line is counted
+ * (the pattern match alone, about 30 ns, pays a few percent). The counts are exact on
+ * one thread and can miss a few calls when threads race, the latencies are a sample of
+ * the calls and the bytes and items of the calls that weren't timed are worked out from
+ * the ones that were.
+ *
+ * The S(t)ats menu pick prints the numbers, and with -Dfilelist.metricsFile=<file> they are
+ * also written to that file as JSON when the program quits. Nothing is written unless the
+ * file is given. Everything is turned off with -Dfilelist.metrics=off.
+ */
+public class Metrics {
+
+    // Whether anything is measured at all
+    static final boolean ENABLED = !"off".equalsIgnoreCase(System.getProperty("filelist.metrics", "on"));
+    // About what one timed call costs, two clock reads and two allocation counter reads
+    static final long TIMER_NANOS = 150;
+    // Most calls between two timed ones
+    private static final int MAX_SAMPLE_EVERY = 1024;
+    // Time about one call in this many TIMER_NANOS of the operation, so the timer costs about 0.25%
+    private static final long SAMPLE_BUDGET = 400;
+    // Buckets for each power of two in the histograms
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // Counts the bytes each thread allocates, null until it is set up or if this JVM can't.
+    // Getting it starts up the management beans, which is a fifth of the program's start up,
+    // so that is done on a thread of its own while the user reads the first prompt.
+    private static volatile com.sun.management.ThreadMXBean threads;
+    private static final long STARTED = System.nanoTime();
+
+    static {
+        if (ENABLED) {
+            Thread setup = new Thread(() -> threads = allocationCounter(), "metrics-setup");
+            setup.setDaemon(true);
+            setup.start();
+        }
+    }
+
+    /**
+     * The operations that are measured
+     */
+    public enum Op {
+        OPEN("lines"),
+        SAVE("lines"),
+        COMMIT("records"),
+        ADD("items"),
+        DELETE("items"),
+        VIEW("lines"),
+        INPUT("inputs"),
+        FIND("items found"),
+        SORT("items"),
+        UNDO("steps"),
+        RELOAD("lines"),
+        IMPORT("items"),
+        EXPORT("items");
+
+        // What the items of this operation are, for the rate in the report
+        final String itemName;
+        // The calls up to the last timed one, count() adds the ones after it
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        // Only the timed calls
+        final LongAdder timed = new LongAdder();
+        final LongAdder timedNanos = new LongAdder();
+        final LongAdder timedBytes = new LongAdder();
+        final LongAdder timedItems = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        // Timer for the calls that aren't timed, it can only count a failure
+        final Timer untimed = new Timer(this);
+        // Time one call in (mask + 1), a power of two. The mask, the calls and the recent time
+        // are kept without locking or volatile reads, none of them has to be exact.
+        private int mask;
+        private int calls;
+        // The calls already added to count
+        private int counted;
+        private long recentNanos;
+
+        Op(String itemName) {
+            this.itemName = itemName;
+        }
+
+        /**
+         * @return how many times the operation was called
+         */
+        long count() {
+            return count.sum() + Math.max(0, calls - counted);
+        }
+
+        /**
+         * @return the time below which a fraction of the timed calls took, in nanoseconds
+         */
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            long target = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(highestInBucket(i), maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        long meanNanos() {
+            long n = timed.sum();
+            return n == 0 ? 0 : timedNanos.sum() / n;
+        }
+
+        /**
+         * @return a total of the timed calls, scaled up to all calls if only some were timed
+         */
+        long scaled(LongAdder timedTotal) {
+            long n = timed.sum();
+            return n == 0 ? 0 : (long) (timedTotal.sum() * ((double) count() / n));
+        }
+    }
+
+    /**
+     * Measures one call of an operation, from Metrics.start() until stop()
+     */
+    public static final class Timer {
+        private final Op op;
+        private final boolean timed;
+        private final long start;
+        private final long allocatedAtStart;
+        // The allocation counter if it was set up when the call started
+        private final com.sun.management.ThreadMXBean counter;
+        // Only made while a flight recording is on, loading the event class costs JFR's start up
+        private final OperationEvent event;
+
+        private Timer(Op op) {
+            this.op = op;
+            this.timed = false;
+            this.start = 0;
+            this.allocatedAtStart = 0;
+            this.counter = null;
+            this.event = null;
+        }
+
+        private Timer(Op op, long start) {
+            this.op = op;
+            this.timed = true;
+            this.event = FlightRecorder.isInitialized() ? new OperationEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            // Read last, so the timer itself isn't counted as allocated by the operation
+            this.counter = threads;
+            this.allocatedAtStart = counter != null ? counter.getCurrentThreadAllocatedBytes() : 0;
+            this.start = start;
+        }
+
+        /**
+         * Ends the call that worked
+         *
+         * @param bytes bytes read or written, 0 if none
+         * @param items lines, items or records handled
+         */
+        public void stop(long bytes, long items) {
+            if (!timed) {
+                return;
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = counter != null ? counter.getCurrentThreadAllocatedBytes() - allocatedAtStart : 0;
+            op.timed.increment();
+            op.timedNanos.add(elapsed);
+            op.timedBytes.add(bytes);
+            op.timedItems.add(items);
+            op.allocated.add(allocated);
+            op.maxNanos.accumulate(elapsed);
+            op.histogram.incrementAndGet(bucket(elapsed));
+            // Time fewer calls of an operation that is quick next to the timer, more of one that is slow.
+            // Going by the last few calls, so the slow first calls before the JIT kicks in are soon forgotten.
+            long recent = op.recentNanos == 0 ? elapsed : op.recentNanos + ((elapsed - op.recentNanos) >> 3);
+            op.recentNanos = recent;
+            long every = Long.highestOneBit(SAMPLE_BUDGET * TIMER_NANOS / Math.max(1, recent)) << 1;
+            op.mask = (int) Math.max(1, Math.min(MAX_SAMPLE_EVERY, every)) - 1;
+            if (event != null && event.shouldCommit()) {
+                event.operation = op.name().toLowerCase(Locale.ROOT);
+                event.bytes = bytes;
+                event.items = items;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+
+        /**
+         * Ends the call, which failed
+         */
+        public void failed() {
+            if (op != null) {
+                op.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * The JFR event written for each timed operation
+     */
+    @Name("filelist.Operation")
+    @Label("List Operation")
+    @Category("File List Maker")
+    @Description("An operation on a list or a list file")
+    static class OperationEvent extends jdk.jfr.Event {
+        @Label("Operation")
+        String operation;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Items")
+        long items;
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    // Returned when metrics are off
+    private static final Timer OFF = new Timer(null);
+
+    /**
+     * Starts measuring one call of an operation
+     *
+     * @param op the operation
+     * @return the timer, stop() it when the operation is done
+     */
+    public static Timer start(Op op) {
+        if (!ENABLED) {
+            return OFF;
+        }
+        int call = op.calls++;
+        if ((call & op.mask) != 0) {
+            return op.untimed;
+        }
+        // Only the timed calls touch the shared counter
+        op.count.add(call + 1 - op.counted);
+        op.counted = call + 1;
+        return new Timer(op, System.nanoTime());
+    }
+
+    /**
+     * @return the numbers of every operation that happened, as a table to print
+     */
+    public static String report() {
+        if (!ENABLED) {
+            return "Metrics are off (-Dfilelist.metrics=off)\n";
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-7s %10s %7s %10s %10s %10s %10s %12s %16s %10s%n", "", "count", "errors",
+                "mean ms", "p50 ms", "p99 ms", "max ms", "bytes", "rate", "alloc/op"));
+        for (Op op : Op.values()) {
+            long count = op.count();
+            if (count == 0) {
+                continue;
+            }
+            long timed = op.timed.sum();
+            report.append(String.format("%-7s %,10d %,7d %10.3f %10.3f %10.3f %10.3f %12s %16s %10s%n",
+                    op.name().toLowerCase(Locale.ROOT), count, op.errors.sum(), op.meanNanos() / 1e6,
+                    op.percentile(0.5) / 1e6, op.percentile(0.99) / 1e6, op.maxNanos.get() / 1e6,
+                    bytes(op.scaled(op.timedBytes)), String.format("%,.0f %s/s", rate(op), op.itemName),
+                    timed == 0 ? "-" : bytes(op.allocated.sum() / timed)));
+        }
+        report.append(String.format("Fast operations are timed one call in up to %d, up for %.0f s%n",
+                MAX_SAMPLE_EVERY, (System.nanoTime() - STARTED) / 1e9));
+        return report.toString();
+    }
+
+    /**
+     * @return the numbers of every operation as JSON
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"uptimeMillis\": ").append((System.nanoTime() - STARTED) / 1_000_000);
+        json.append(",\n  \"operations\": {");
+        String separator = "\n";
+        for (Op op : Op.values()) {
+            long timed = op.timed.sum();
+            json.append(separator).append("    \"").append(op.name().toLowerCase(Locale.ROOT)).append("\": {");
+            json.append("\"count\": ").append(op.count());
+            json.append(", \"errors\": ").append(op.errors.sum());
+            json.append(", \"timed\": ").append(timed);
+            json.append(", \"meanNanos\": ").append(op.meanNanos());
+            json.append(", \"p50Nanos\": ").append(op.percentile(0.5));
+            json.append(", \"p90Nanos\": ").append(op.percentile(0.9));
+            json.append(", \"p99Nanos\": ").append(op.percentile(0.99));
+            json.append(", \"p999Nanos\": ").append(op.percentile(0.999));
+            json.append(", \"maxNanos\": ").append(op.maxNanos.get());
+            json.append(", \"bytes\": ").append(op.scaled(op.timedBytes));
+            json.append(", \"items\": ").append(op.scaled(op.timedItems));
+            json.append(", \"itemsPerSecond\": ").append((long) rate(op));
+            json.append(", \"allocatedBytesPerOp\": ").append(timed == 0 ? 0 : op.allocated.sum() / timed);
+            json.append('}');
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes the numbers as JSON to -Dfilelist.metricsFile if it was given, used when the program quits
+     */
+    public static void dump() {
+        String name = System.getProperty("filelist.metricsFile");
+        if (!ENABLED || name == null || name.isEmpty()) {
+            return;
+        }
+        try {
+            Files.writeString(Paths.get(name), toJson());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Works out the histogram bucket of a latency
+     * Values below 16 have a bucket each, after that every power of two is split into 16 buckets
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int power = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (power - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest latency that goes into a bucket
+     */
+    static long highestInBucket(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int power = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (power - SUB_BUCKET_BITS);
+        return lowest + (1L << (power - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return items handled per second of the timed calls
+     */
+    private static double rate(Op op) {
+        long nanos = op.timedNanos.sum();
+        return nanos == 0 ? 0 : op.timedItems.sum() * 1e9 / nanos;
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /**
+     * @return the bean that counts the bytes each thread allocated, or null if this JVM can't
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+}
@@ -1,11 +1,28 @@
-import javax.swing.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
-import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 
 /**
@@ -17,52 +34,33 @@ import static java.nio.file.StandardOpenOption.CREATE;
 
 public class NIOFileEditing {
 
+    // Size of the buffer used to save a list
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    // Reused direct buffers, so saving a list doesn't copy the data through the heap
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE));
+    // Always save as UTF-8 because that is how lists are read
+    private static final ThreadLocal<CharsetEncoder> ENCODER =
+            ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
 
-    public static ArrayList<String> openFile() {
+    public static List<String> openFile() {
 
-        ArrayList<String> list = new ArrayList<>();
+        List<String> list = new ArrayList<>();
 
-        JFileChooser chooser = new JFileChooser();
-        File selectedFile;
-        
        try {
            // uses a fixed known path:
            //  Path file = Paths.get("c:\\My Documents\\data.txt");
 
-           // use the toolkit to get the current working directory of the IDE
-           // Not sure if the toolkit is thread safe...
-           File workingDirectory = new File(System.getProperty("user.dir"));
-
-           // Typically, we want the user to pick the file, so we use a file chooser
-           // kind of ugly code to make the chooser work with NIO.
-           // Because the chooser is part of Swing it should be thread safe.
-           chooser.setCurrentDirectory(workingDirectory);
-           // Using the chooser adds some complexity to the code.
-           // we have to code the complete program within the conditional return of
-           // the filechooser because the user can close it without picking a file
-
-           if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-               selectedFile = chooser.getSelectedFile();
-
-               Path file = selectedFile.toPath();
+           Path file = chooseFile();
+           if (file != null) {
                String fileName = String.valueOf(file.getFileName());
-               list.add(fileName);
-               // Typical java pattern of inherited classes
-               // we wrap a BufferedWriter around a lower level BufferedOutputStream
-               InputStream in =
-                       new BufferedInputStream(Files.newInputStream(file, CREATE));
-               BufferedReader reader =
-                       new BufferedReader(new InputStreamReader(in));
-
-               // Finally we can read the file LOL!
-
-               while (reader.ready()) {
-                   list.add(reader.readLine());
-
-               }
-               reader.close(); // must close the file to seal it and flush buffer
-
-
+               // Map the file into memory instead of reading every line into the heap,
+               // the lines are only turned into Strings when they are looked at
+               list = readLines(file);
+               list.add(0, fileName);
 
            } else  // User closed the chooser without selecting a file
            {
@@ -81,7 +79,81 @@ public class NIOFileEditing {
        return list;
     }
 
-    public static void writeFile(ArrayList<String> list, String fileName) {
+    /**
+     * Lets the user pick a list file without opening it, in the Swing file chooser
+     * @return the file that was picked, or null if the chooser was closed without picking one
+     */
+    public static Path chooseFile() {
+        return FileChooser.choose();
+    }
+
+    /**
+     * Lets the user pick a list file without opening it
+     * The file chooser is only shown if there is a screen to show it on, otherwise (or with
+     * -Dfilelist.chooser=text) the path of the file is typed in, which doesn't load Swing or AWT.
+     * @param in where the typed path is read from
+     * @return the file that was picked, or null if none was
+     */
+    public static Path chooseFile(Scanner in) {
+        if (canShowWindow()) {
+            return chooseFile();
+        }
+        // Ask again until the path is of a file, or nothing is typed
+        while (true) {
+            String path = SafeInput.getRegExString(in, "Enter the path of the list file (nothing to cancel)", ".*");
+            if (path.isEmpty()) {
+                return null;
+            }
+            Path file = Paths.get(path);
+            if (Files.isRegularFile(file)) {
+                return file;
+            }
+            System.out.println("Error, there is no file " + file);
+        }
+    }
+
+    /**
+     * Works out if the file chooser can be shown without asking AWT, that would load it
+     * @return false if -Dfilelist.chooser=text, or if there is no screen
+     */
+    static boolean canShowWindow() {
+        String chooser = System.getProperty("filelist.chooser", "auto").toLowerCase(Locale.ROOT);
+        if (!chooser.equals("auto")) {
+            return chooser.equals("window");
+        }
+        // A native image is built for start up time, and without Swing's native parts
+        if (Boolean.getBoolean("java.awt.headless") || System.getProperty("org.graalvm.nativeimage.imagecode") != null) {
+            return false;
+        }
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        if (os.startsWith("windows") || os.startsWith("mac")) {
+            return true;
+        }
+        // Anything else needs an X or Wayland display
+        return System.getenv("DISPLAY") != null || System.getenv("WAYLAND_DISPLAY") != null;
+    }
+
+    /**
+     * Opens a list file without reading it into the heap
+     * The file is memory-mapped in chunks, so files larger than 2 GB work too.
+     * Binary and compressed list files are opened too, see ListFormat.
+     * @param file the file to open
+     * @return the lines of the file, decoded as UTF-8 only when they are used
+     * @throws IOException if the file can't be read
+     */
+    public static List<String> readLines(Path file) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.OPEN);
+        try {
+            List<String> list = ListFormat.read(file);
+            timer.stop(Files.size(file), list.size());
+            return list;
+        } catch (IOException e) {
+            timer.failed();
+            throw e;
+        }
+    }
+
+    public static void writeFile(List<String> list, String fileName) {
 
 
         // Not entirely sure why this works but don't fix what's not broke I guess
@@ -89,30 +161,206 @@ public class NIOFileEditing {
 
         try
         {
-            // Typical java pattern of inherited classes
-            // we wrap a BufferedWriter around a lower level BufferedOutputStream
-            OutputStream out =
-                    new BufferedOutputStream(Files.newOutputStream(file, CREATE));
-            BufferedWriter writer =
-                    new BufferedWriter(new OutputStreamWriter(out));
+            writeFile(list, file);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+    }
 
-            // Finally can write the file LOL!
+    /**
+     * Writes a list to a file, one item per line
+     * The list is written to a temp file that is forced to disk and then moved over the old file
+     * in one step, so a crash leaves either the old list or the new one but never half of one.
+     * The file keeps the ListFormat it already has, a new file gets the one from -Dfilelist.format.
+     * @param list the items to write, anything that can be looped over so items can be streamed in
+     * @param file the file to write them to
+     * @throws IOException if the file can't be written, the old file is left as it was
+     */
+    public static void writeFile(Iterable<String> list, Path file) throws IOException {
 
-            for(String rec : list)
+        ListFormat format = ListFormat.fromProperty();
+        if (Files.exists(file))
+        {
+            try
             {
-                writer.write(rec, 0, rec.length());  // stupid syntax for write rec
-                // 0 is where to start (1st char) the write
-                // rec. length() is how many chars to write (all)
-                writer.newLine();  // adds the new line
+                format = ListFormat.detect(file);
+            }
+            catch (IOException e)
+            {
+                // the old file is damaged, it is about to be replaced anyway
+            }
+        }
+        writeFile(list, file, format);
+    }
+
+    /**
+     * Writes a list to a file in the given format, the same way as writeFile(list, file)
+     * @param list the items to write
+     * @param file the file to write them to
+     * @param format the format to write them in
+     * @throws IOException if the file can't be written, the old file is left as it was
+     */
+    public static void writeFile(Iterable<String> list, Path file, ListFormat format) throws IOException {
 
+        // The list may still be reading lines out of the mapped file, so write a new file next to it
+        // and swap it in at the end instead of overwriting the old one while it is being read
+        Metrics.Timer timer = Metrics.start(Metrics.Op.SAVE);
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = createTemp(directory, file);
+
+        try
+        {
+            // The new file takes the place of the old one, so it gets the same permissions
+            if (Files.exists(file))
+            {
+                try
+                {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+                }
+                catch (UnsupportedOperationException e)
+                {
+                    // not a POSIX file system, the file keeps the permissions any new file gets
+                }
             }
-            writer.close(); // must close the file to seal it and flush buffer
+            try (FileChannel channel = FileChannel.open(temp, WRITE, TRUNCATE_EXISTING))
+            {
+                format.write(list, channel);
+                channel.force(true); // the data has to be on disk before the file is swapped in
+            }
+            // A mapped file written over in place by another program reads as its new bytes, which
+            // would be saved as if they were the list, so checked once the list has been read
+            if (list instanceof MappedLineList && ((MappedLineList) list).isWrittenOver())
+            {
+                throw new IOException("The file of the list was written over by another program while it was open,"
+                        + " the list can't be read from it any more");
+            }
+
+            replace(temp, file);
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            timer.failed();
+            throw e;
+        }
+        catch (UncheckedIOException e)
+        {
+            // the list couldn't be read, like a mapped list whose file was cut short (see MappedLineList)
+            timer.failed();
+            throw e.getCause();
+        }
+        finally
+        {
+            Files.deleteIfExists(temp); // only still there if something went wrong
+        }
+
+        // Make the rename itself stick, not every platform lets a directory be opened like this
+        try (FileChannel dir = FileChannel.open(directory, READ))
+        {
+            dir.force(true);
+        }
+        catch (IOException e)
+        {
+            // the new file is written, it just might not survive a power cut
+        }
+        timer.stop(Files.size(file), list instanceof Collection ? ((Collection<String>) list).size() : 0);
+    }
+
+    /**
+     * Moves a new file over the file it replaces, in one step where the file system can do that
+     * Windows doesn't let a file be replaced while it is mapped into memory, and a list file bigger
+     * than MappedLineList.COPY_BYTES stays mapped while its list is open (or parked), so there it
+     * can't be saved over until the list is closed. Its saved edits stay in the journal until then.
+     * @param temp the new file
+     * @param file the file to replace
+     * @throws IOException if the file couldn't be replaced, it is left as it was
+     */
+    static void replace(Path temp, Path file) throws IOException {
+        try
+        {
+            try
+            {
+                Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, file, REPLACE_EXISTING);
+            }
         }
+        catch (FileSystemException e)
+        {
+            if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows"))
+            {
+                throw e;
+            }
+            throw new IOException(file + " couldn't be replaced, Windows doesn't allow it while the file is mapped into"
+                    + " memory by an open list (lists over " + (MappedLineList.COPY_BYTES >> 20) + " MB are mapped),"
+                    + " close the list or save it to another file", e);
+        }
+    }
 
+    /**
+     * Creates an empty file with a name no other file has next to the file it is going to replace
+     * Files.createTempFile() isn't used because it makes a file only its owner can read, this one
+     * gets the permissions any new file gets, like the list files did before they were written this way.
+     * @param directory where to create it
+     * @param file the file it is going to replace
+     * @return the new file
+     * @throws IOException if it can't be created
+     */
+    private static Path createTemp(Path directory, Path file) throws IOException {
+        while (true) {
+            Path temp = directory.resolve(file.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+    }
+
+    /**
+     * Writes items to a channel, one item per line, without forcing them to disk
+     * @param list the items to write
+     * @param channel where to write them
+     * @throws IOException if the channel can't be written
+     */
+    static void writeLines(Iterable<String> list, FileChannel channel) throws IOException {
+        // Each thread keeps its own buffer, the journal can be saving in the background
+        ByteBuffer buffer = WRITE_BUFFER.get().clear();
+        CharsetEncoder encoder = ENCODER.get();
+
+        // Encode the items straight into the buffer and only write it out when it is full
+        for(String rec : list)
+        {
+            CharBuffer chars = CharBuffer.wrap(rec);
+            encoder.reset();
+            while (encoder.encode(chars, buffer, true).isOverflow()) {
+                writeBuffer(channel, buffer);
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                writeBuffer(channel, buffer);
+            }
+            if (buffer.remaining() < LINE_SEPARATOR.length) {
+                writeBuffer(channel, buffer);
+            }
+            buffer.put(LINE_SEPARATOR);  // adds the new line
+        }
+        writeBuffer(channel, buffer);
+    }
+
+    /**
+     * Writes everything in the buffer to the channel and empties it
+     */
+    private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
     }
     
 }
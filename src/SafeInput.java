@@ -1,8 +1,17 @@
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 public class SafeInput {
 
+    // Regular expressions that were already compiled, so a prompt in a loop only compiles its pattern once
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
+    // The usual decimal forms Double.parseDouble accepts, checked first so bad input doesn't have to throw an exception
+    private static final Pattern DOUBLE = Pattern.compile("[+-]?(NaN|Infinity|((\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?)[fFdD]?)");
+    // Returned by parseInt() when the input isn't an integer
+    private static final long NOT_AN_INT = Long.MIN_VALUE;
+
     /**
      * Prompts the user to input a string until a non-zero length string is provided.
      *
@@ -27,21 +36,18 @@ public class SafeInput {
      * @return        an integer input by the user
      */
     public static int getInt(Scanner pipe, String prompt) {
-        int intValue = 0; // Initialize the variable to store the user input
-        boolean isValidInput = false; // Flag to track input validity
+        long intValue; // Variable to store the user input
 
         // Keep asking for input until a valid integer is entered
         do {
             System.out.print("\n" + prompt + ": "); // Display the prompt
-            try {
-                intValue = Integer.parseInt(pipe.nextLine()); // Read the user input as an integer
-                isValidInput = true; // Valid input, exit loop
-            } catch (NumberFormatException e) {
+            intValue = parseInt(pipe.nextLine()); // Read the user input as an integer
+            if (intValue == NOT_AN_INT) {
                 System.out.println("Invalid input. Please enter an integer."); // Error message for invalid input (not an integer)
             }
-        } while (!isValidInput);
+        } while (intValue == NOT_AN_INT);
 
-        return intValue; // Return the valid input value
+        return (int) intValue; // Return the valid input value
     }
 
     /**
@@ -58,10 +64,11 @@ public class SafeInput {
         // Keep asking for input until a valid double is entered
         do {
             System.out.print("\n" + prompt + ": "); // Display the prompt
-            try {
-                doubleValue = Double.parseDouble(pipe.nextLine()); // Read the user input as a double
+            Double input = parseDouble(pipe.nextLine()); // Read the user input as a double
+            if (input != null) {
+                doubleValue = input;
                 isValidInput = true; // Valid input, exit loop
-            } catch (NumberFormatException e) {
+            } else {
                 System.out.println("Invalid input. Please enter a double."); // Error message for invalid input (not a double)
             }
         } while (!isValidInput);
@@ -79,25 +86,23 @@ public class SafeInput {
      * @return        an integer input by the user within the specified range
      */
     public static int getRangedInt(Scanner pipe, String prompt, int low, int high) {
-        int rangedIntValue = 0; // Initialize the variable to store the user input
+        long rangedIntValue; // Variable to store the user input
         boolean isValidInput = false; // Flag to track input validity
 
         // Keep asking for input until a valid integer within the specified range is entered
         do {
             System.out.print("\n" + prompt + ": "); // Display the prompt
-            try {
-                rangedIntValue = Integer.parseInt(pipe.nextLine()); // Read the user input as an integer
-                if (rangedIntValue >= low && rangedIntValue <= high) { // Check if the input is within the specified range
-                    isValidInput = true; // Valid input, exit loop
-                } else {
-                    System.out.println("Invalid input. Please enter an integer within the range " + low + "-" + high + "."); // Error message for input outside the range
-                }
-            } catch (NumberFormatException e) {
+            rangedIntValue = parseInt(pipe.nextLine()); // Read the user input as an integer
+            if (rangedIntValue == NOT_AN_INT) {
                 System.out.println("Invalid input. Please enter an integer."); // Error message for invalid input (not an integer)
+            } else if (rangedIntValue >= low && rangedIntValue <= high) { // Check if the input is within the specified range
+                isValidInput = true; // Valid input, exit loop
+            } else {
+                System.out.println("Invalid input. Please enter an integer within the range " + low + "-" + high + "."); // Error message for input outside the range
             }
         } while (!isValidInput);
 
-        return rangedIntValue; // Return the valid input value
+        return (int) rangedIntValue; // Return the valid input value
     }
 
     /**
@@ -116,15 +121,16 @@ public class SafeInput {
         // Keep asking for input until a valid double within the specified range is entered
         do {
             System.out.print("\n" + prompt + ": "); // Display the prompt
-            try {
-                rangedDoubleValue = Double.parseDouble(pipe.nextLine()); // Read the user input as a double
+            Double input = parseDouble(pipe.nextLine()); // Read the user input as a double
+            if (input == null) {
+                System.out.println("Invalid input. Please enter a double."); // Error message for invalid input (not a double)
+            } else {
+                rangedDoubleValue = input;
                 if (rangedDoubleValue >= low && rangedDoubleValue <= high) { // Check if the input is within the specified range
                     isValidInput = true; // Valid input, exit loop
                 } else {
                     System.out.println("Invalid input. Please enter a double within the range (" + low + ", " + high + ")."); // Error message for input outside the range
                 }
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid input. Please enter a double."); // Error message for invalid input (not a double)
             }
         } while (!isValidInput);
 
@@ -171,6 +177,19 @@ public class SafeInput {
      * @return        a string input by the user matching the specified pattern
      */
     public static String getRegExString(Scanner pipe, String prompt, String regEx) {
+        // Compile the pattern the first time it is used and reuse it after that
+        return getRegExString(pipe, prompt, PATTERNS.computeIfAbsent(regEx, Pattern::compile));
+    }
+
+    /**
+     * Prompts the user to input a string matching an already compiled pattern and ensures the input is valid.
+     *
+     * @param pipe    a Scanner object created to read from System.in
+     * @param prompt  the message to display as the prompt for the input
+     * @param regEx   the compiled pattern to match against
+     * @return        a string input by the user matching the specified pattern
+     */
+    public static String getRegExString(Scanner pipe, String prompt, Pattern regEx) {
         String input = ""; // Initialize input string
         boolean isValidInput = false; // Flag to track input validity
 
@@ -179,7 +198,7 @@ public class SafeInput {
             System.out.print("\n" + prompt + ": "); // Display the prompt
             if (pipe.hasNextLine()) { // Check if there's input available
                 input = pipe.nextLine().trim(); // Read the input and remove leading/trailing whitespace
-                if (Pattern.matches(regEx, input)) { // Check if the input matches the regular expression
+                if (matches(regEx, input)) { // Check if the input matches the regular expression
                     isValidInput = true; // Set flag to true to exit the loop
                 } else {
                     System.out.println("Invalid input. Please enter a string matching the pattern: " + regEx); // Error message for invalid input
@@ -194,6 +213,106 @@ public class SafeInput {
 
     }
 
+    /**
+     * Checks input against a pattern, counting it in the INPUT metrics (bad input counts as an error)
+     *
+     * @param pattern the pattern the input has to match
+     * @param input   the input to check
+     * @return        true if the whole input matches
+     */
+    private static boolean matches(Pattern pattern, String input) {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.INPUT);
+        boolean matches = pattern.matcher(input).matches();
+        if (!matches) {
+            timer.failed();
+        }
+        timer.stop(0, 1);
+        return matches;
+    }
+
+    /**
+     * Reads a double the way Double.parseDouble does, checking the common decimal forms with a pattern first
+     * so bad input usually doesn't have to throw an exception. Anything else parseDouble takes (hex, 0x1p3)
+     * is still handed to it.
+     *
+     * @param text    the text to read
+     * @return        the double, or null if the text isn't one
+     */
+    private static Double parseDouble(String text) {
+        text = text.trim();
+        if (matches(DOUBLE, text)) {
+            return Double.parseDouble(text);
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads an integer the way Integer.parseInt does, but returns NOT_AN_INT instead of throwing an exception
+     * Counted in the INPUT metrics, bad input counts as an error
+     *
+     * @param text    the text to read
+     * @return        the integer, or NOT_AN_INT if the text isn't one
+     */
+    private static long parseInt(String text) {
+        Metrics.Timer timer = Metrics.start(Metrics.Op.INPUT);
+        long value = readInt(text);
+        if (value == NOT_AN_INT) {
+            timer.failed();
+        }
+        timer.stop(0, 1);
+        return value;
+    }
+
+    /**
+     * Reads an item number or a count, only digits, without throwing an exception for bad input
+     * Used by the modes that don't prompt (BatchRunner, ListServer), so it isn't counted in the metrics
+     *
+     * @param text    the number, spaces around it are ignored
+     * @return        the number, or -1 if it isn't one
+     */
+    static int parseNumber(String text) {
+        text = text.trim();
+        if (text.isEmpty() || text.charAt(0) < '0' || text.charAt(0) > '9') {
+            return -1; // no sign
+        }
+        long value = readInt(text);
+        return value == NOT_AN_INT ? -1 : (int) value;
+    }
+
+    private static long readInt(String text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i = 1;
+        }
+        if (i == length) {
+            return NOT_AN_INT; // Needs at least one digit
+        }
+        // Leading zeros don't count, after them no more digits than an int can hold
+        while (i < length - 1 && text.charAt(i) == '0') {
+            i++;
+        }
+        if (length - i > 10) {
+            return NOT_AN_INT;
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_AN_INT;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? NOT_AN_INT : value;
+    }
+
 
     /**
      * Prompts the user to input a string and converts that string to a fancy header and returns a string
@@ -0,0 +1,592 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A trigram index for finding the items of a list that contain some text
+ *
+ * Every item is split into the runs of 3 characters it contains (its trigrams), and for
+ * every trigram the index keeps the ids of the items it is in. To find some text only the
+ * items that have all of its trigrams are looked at, instead of every item in the list.
+ * The first 1, 2 and 3 characters of each item are also kept as "start" grams, so finding
+ * items that start with some text works the same way. Searches ignore case.
+ *
+ * Items get ids in list order and the index is kept up to date as the list is edited:
+ * items added to the end of the list get the next id, deleted items are only marked as
+ * gone. The position of an item in the list is the number of items before its id that are
+ * still there, which is counted with a Fenwick tree over 64-item words of the "still there"
+ * bits, so it takes O(log n). Once more than half the ids are gone the index is rebuilt.
+ *
+ * The index of a list file can be saved next to it (as "list.txt.index") so it doesn't
+ * have to be built again the next time the file is opened. Like the journal, the index
+ * file starts with the size and modified time of the list file, and is ignored if they
+ * don't match.
+ */
+public class SearchIndex {
+
+    // "FLI1" at the start of every index file
+    private static final int MAGIC = 0x464C4931;
+    // Magic number, list file size, list file modified time, number of items, number of grams
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+    // Start grams are kept apart from the other grams by a flag above the 3 characters
+    private static final long START = 1L << 48;
+    // Every key has this bit set, so 0 can mark an empty slot in the gram table
+    private static final long USED = 1L << 52;
+    // Size of the buffer used to read and write index files
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    // The list being indexed
+    private final List<String> list;
+
+    // Gram table, open addressing: the key of each gram and the ids of the items it is in
+    private long[] keys;
+    private int[][] postings;
+    private int[] postingSizes;
+    private int grams;
+
+    // One bit per id, set while the item is still in the list
+    private long[] present;
+    // Fenwick tree over the number of bits set in each word of present
+    private int[] counts;
+    // The id the next added item gets
+    private int nextId;
+    // Number of ids whose item was deleted
+    private int deleted;
+    // Set while the index is the same as the one in its index file
+    private boolean saved;
+
+    /**
+     * Builds the index of a list
+     *
+     * @param list the list to index, it has to be edited through added() and removed() from now on
+     */
+    public SearchIndex(List<String> list) {
+        this.list = list;
+        rebuild();
+    }
+
+    private SearchIndex(List<String> list, int gramCapacity) {
+        this.list = list;
+        clearGrams(gramCapacity);
+    }
+
+    /**
+     * Records that an item was added to the end of the list
+     *
+     * @param item the new item
+     */
+    public void added(String item) {
+        int id = nextId++;
+        if ((id >> 6) >= present.length) {
+            present = Arrays.copyOf(present, present.length * 2);
+            buildCounts();
+        }
+        present[id >> 6] |= 1L << id;
+        addCount(id >> 6, 1);
+        indexItem(item, id);
+        saved = false;
+    }
+
+    /**
+     * Records that an item was deleted from the list
+     *
+     * @param position position the item had in the list
+     */
+    public void removed(int position) {
+        int id = select(position);
+        present[id >> 6] &= ~(1L << id);
+        addCount(id >> 6, -1);
+        deleted++;
+        saved = false;
+    }
+
+    /**
+     * Finds the items that contain some text, or start with it
+     *
+     * @param text the text to look for, case is ignored
+     * @param atStart true to only find items that start with the text
+     * @param limit the most positions to return
+     * @return the positions in the list of the first items that match, in list order
+     */
+    public int[] find(String text, boolean atStart, int limit) {
+        if (deleted > Math.max(nextId - deleted, 1 << 16)) {
+            rebuild(); // most of the ids point at deleted items, start again without them
+        }
+        if (text.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        int[] found = new int[Math.min(limit, 16)];
+        int count = 0;
+
+        // Look up the posting list of every gram in the text
+        int gramCount = (atStart ? 1 : 0) + Math.max(0, text.length() - 2);
+        int[] lists = new int[gramCount];
+        int n = 0;
+        if (atStart) {
+            lists[n++] = slot(startKey(text, Math.min(3, text.length())));
+        }
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            lists[n++] = slot(key(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2)));
+        }
+
+        if (n == 0) {
+            // A single character or two can't be looked up, check the items one by one
+            for (int position = 0; position < list.size() && count < limit; position++) {
+                if (matches(list.get(position), text, false)) {
+                    found = append(found, count++, position);
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (keys[lists[i]] == 0) {
+                return new int[0]; // a gram that is in no item, so nothing matches
+            }
+        }
+        // Go through the shortest posting list and check the others for each of its ids
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = lists[i];
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(postingSizes[a], postingSizes[b]));
+        int[] cursors = new int[n];
+        int[] shortest = postings[order[0]];
+        int shortestSize = postingSizes[order[0]];
+        candidates:
+        for (int i = 0; i < shortestSize && count < limit; i++) {
+            int id = shortest[i];
+            if ((present[id >> 6] & (1L << id)) == 0) {
+                continue;
+            }
+            for (int j = 1; j < n; j++) {
+                int other = order[j];
+                cursors[j] = seek(postings[other], postingSizes[other], cursors[j], id);
+                if (cursors[j] == postingSizes[other]) {
+                    break candidates; // the other list has no more ids, so no more item can match
+                }
+                if (postings[other][cursors[j]] != id) {
+                    continue candidates;
+                }
+            }
+            // Having every gram doesn't mean they are in the right order, so check the item itself
+            int position = rank(id);
+            if (matches(list.get(position), text, atStart)) {
+                found = append(found, count++, position);
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * @return about how many bytes the index uses
+     */
+    public long memorySize() {
+        long bytes = 8L * keys.length + 4L * postingSizes.length + 8L * present.length + 4L * counts.length;
+        for (int[] ids : postings) {
+            bytes += ids == null ? 8 : 8 + 16 + 4L * ids.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Checks if an item contains some text, ignoring case
+     *
+     * @param item the item
+     * @param text the text to look for
+     * @param atStart true if the item has to start with the text
+     * @return true if it does
+     */
+    public static boolean matches(String item, String text, boolean atStart) {
+        if (atStart) {
+            return item.regionMatches(true, 0, text, 0, text.length());
+        }
+        for (int i = 0; i + text.length() <= item.length(); i++) {
+            if (item.regionMatches(true, i, text, 0, text.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves the index next to its list file
+     * Only call this when the list is the same as the list file
+     * Does nothing if the index was loaded from the index file and hasn't changed since
+     *
+     * @param listFile the list file
+     * @throws IOException if the index file can't be written
+     */
+    public void save(Path listFile) throws IOException {
+        if (saved) {
+            return;
+        }
+        // Number the items from 0 again, leaving out the deleted ones
+        int[] newIds = new int[nextId];
+        int items = 0;
+        for (int id = 0; id < nextId; id++) {
+            newIds[id] = (present[id >> 6] & (1L << id)) != 0 ? items++ : -1;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(listFile, BasicFileAttributes.class);
+        Path temp = indexFile(listFile).resolveSibling(indexFile(listFile).getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+            buf.putInt(MAGIC).putLong(attributes.size()).putLong(attributes.lastModifiedTime().toMillis())
+                    .putInt(items).putInt(grams);
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] == 0) {
+                    continue;
+                }
+                int[] ids = postings[slot];
+                int live = 0;
+                for (int i = 0; i < postingSizes[slot]; i++) {
+                    if (newIds[ids[i]] >= 0) {
+                        live++;
+                    }
+                }
+                if (buf.remaining() < 12) {
+                    write(out, buf);
+                }
+                buf.putLong(keys[slot]).putInt(live);
+                for (int i = 0; i < postingSizes[slot]; i++) {
+                    if (newIds[ids[i]] >= 0) {
+                        if (buf.remaining() < 4) {
+                            write(out, buf);
+                        }
+                        buf.putInt(newIds[ids[i]]);
+                    }
+                }
+            }
+            write(out, buf);
+            out.force(true);
+        }
+        Files.move(temp, indexFile(listFile), REPLACE_EXISTING);
+        saved = true;
+    }
+
+    /**
+     * Loads the index saved next to a list file
+     *
+     * @param listFile the list file
+     * @param list the list that was just loaded from the list file, with no edits made to it
+     * @return the index, or null if there is no index that belongs to the list file
+     */
+    public static SearchIndex load(Path listFile, List<String> list) {
+        Path file = indexFile(listFile);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(file, READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER_SIZE).limit(0);
+            fill(in, buf, HEADER_SIZE);
+            BasicFileAttributes attributes = Files.readAttributes(listFile, BasicFileAttributes.class);
+            if (buf.getInt() != MAGIC
+                    || buf.getLong() != attributes.size()
+                    || buf.getLong() != attributes.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            int items = buf.getInt();
+            int gramCount = buf.getInt();
+            if (items != list.size() || gramCount < 0) {
+                return null;
+            }
+
+            SearchIndex index = new SearchIndex(list, tableSize(gramCount));
+            index.present = new long[Math.max(1, (items + 63) >> 6)];
+            for (int id = 0; id < items; id++) {
+                index.present[id >> 6] |= 1L << id;
+            }
+            index.nextId = items;
+            index.buildCounts();
+            for (int g = 0; g < gramCount; g++) {
+                fill(in, buf, 12);
+                long key = buf.getLong();
+                int length = buf.getInt();
+                if (length < 0 || length > items) {
+                    return null;
+                }
+                int[] ids = new int[Math.max(1, length)];
+                for (int i = 0; i < length; ) {
+                    fill(in, buf, 4);
+                    int run = Math.min(length - i, buf.remaining() / 4);
+                    buf.asIntBuffer().get(ids, i, run);
+                    buf.position(buf.position() + run * 4);
+                    i += run;
+                }
+                int slot = index.slot(key);
+                index.keys[slot] = key;
+                index.postings[slot] = ids;
+                index.postingSizes[slot] = length;
+                index.grams++;
+            }
+            index.saved = true;
+            return index;
+        } catch (IOException | RuntimeException e) {
+            // A broken index file is only a slower first search, not worth stopping for
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the index saved next to a list file, used when it can't be kept up to date
+     *
+     * @param listFile the list file
+     */
+    public static void delete(Path listFile) {
+        try {
+            Files.deleteIfExists(indexFile(listFile));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Path indexFile(Path listFile) {
+        return listFile.resolveSibling(listFile.getFileName() + ".index");
+    }
+
+    /**
+     * Indexes every item in the list from scratch
+     */
+    private void rebuild() {
+        int size = list.size();
+        clearGrams(1 << 12);
+        present = new long[Math.max(1, (size + 63) >> 6)];
+        for (int id = 0; id < size; id++) {
+            present[id >> 6] |= 1L << id;
+        }
+        nextId = size;
+        deleted = 0;
+        saved = false;
+        buildCounts();
+        for (int id = 0; id < size; id++) {
+            indexItem(list.get(id), id);
+        }
+        // Drop the room left at the end of each posting list for more ids, a lot of it is never used
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0 && postings[slot].length > postingSizes[slot] + 1) {
+                postings[slot] = Arrays.copyOf(postings[slot], postingSizes[slot] + 1);
+            }
+        }
+    }
+
+    private void clearGrams(int capacity) {
+        keys = new long[capacity];
+        postings = new int[capacity][];
+        postingSizes = new int[capacity];
+        grams = 0;
+    }
+
+    /**
+     * Adds the grams of an item to the index
+     */
+    private void indexItem(String item, int id) {
+        for (int length = 1; length <= Math.min(3, item.length()); length++) {
+            addPosting(startKey(item, length), id);
+        }
+        for (int i = 0; i + 3 <= item.length(); i++) {
+            addPosting(key(item.charAt(i), item.charAt(i + 1), item.charAt(i + 2)), id);
+        }
+    }
+
+    private void addPosting(long key, int id) {
+        int slot = slot(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            postings[slot] = new int[2];
+            if (++grams * 2 > keys.length) {
+                growGrams();
+                slot = slot(key);
+            }
+        }
+        int size = postingSizes[slot];
+        int[] ids = postings[slot];
+        if (size > 0 && ids[size - 1] == id) {
+            return; // the gram is in this item more than once
+        }
+        if (size == ids.length) {
+            ids = postings[slot] = Arrays.copyOf(ids, size + (size >> 1) + 1);
+        }
+        ids[size] = id;
+        postingSizes[slot] = size + 1;
+    }
+
+    /**
+     * Finds the slot of a gram in the gram table, or the empty slot where it would go
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growGrams() {
+        long[] oldKeys = keys;
+        int[][] oldPostings = postings;
+        int[] oldSizes = postingSizes;
+        keys = new long[oldKeys.length * 2];
+        postings = new int[keys.length][];
+        postingSizes = new int[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                postings[slot] = oldPostings[i];
+                postingSizes[slot] = oldSizes[i];
+            }
+        }
+    }
+
+    private static int tableSize(int gramCount) {
+        int size = 1 << 12;
+        while (size < gramCount * 2L + 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Turns 3 characters into a gram key, folding case the same way String.regionMatches does
+     */
+    private static long key(char a, char b, char c) {
+        return USED | (long) fold(a) << 32 | (long) fold(b) << 16 | fold(c);
+    }
+
+    /**
+     * The key of the first 1 to 3 characters of some text, missing characters are left as 0
+     */
+    private static long startKey(String text, int length) {
+        long key = USED | START | (long) length << 49;
+        for (int i = 0; i < length; i++) {
+            key |= (long) fold(text.charAt(i)) << (32 - 16 * i);
+        }
+        return key;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Moves a cursor forward through a sorted posting list to the first id that isn't below an id
+     * Gallops ahead first, so skipping over a long run of ids doesn't look at each one
+     */
+    private static int seek(int[] ids, int size, int from, int id) {
+        int step = 1;
+        int low = from;
+        int high = from;
+        while (high < size && ids[high] < id) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, size);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids[middle] < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the position in the list of the item with an id
+     */
+    private int rank(int id) {
+        int word = id >> 6;
+        int before = 0;
+        for (int i = word; i > 0; i -= i & -i) {
+            before += counts[i];
+        }
+        return before + Long.bitCount(present[word] & ((1L << id) - 1));
+    }
+
+    /**
+     * @return the id of the item at a position in the list
+     */
+    private int select(int position) {
+        // Walk down the Fenwick tree to the word holding the item
+        int word = 0;
+        int remaining = position;
+        for (int step = Integer.highestOneBit(counts.length - 1); step > 0; step >>= 1) {
+            int next = word + step;
+            if (next < counts.length && counts[next] <= remaining) {
+                word = next;
+                remaining -= counts[next];
+            }
+        }
+        // The tree is 1-based, word now counts the words before the one holding the item
+        long bits = present[word];
+        for (int i = 0; i < remaining; i++) {
+            bits &= bits - 1;
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private void buildCounts() {
+        counts = new int[present.length + 1];
+        for (int word = 0; word < present.length; word++) {
+            counts[word + 1] += Long.bitCount(present[word]);
+            int parent = (word + 1) + ((word + 1) & -(word + 1));
+            if (parent < counts.length) {
+                counts[parent] += counts[word + 1];
+            }
+        }
+    }
+
+    private void addCount(int word, int delta) {
+        for (int i = word + 1; i < counts.length; i += i & -i) {
+            counts[i] += delta;
+        }
+    }
+
+    private static int[] append(int[] found, int count, int position) {
+        if (count == found.length) {
+            found = Arrays.copyOf(found, Math.max(1, count * 2));
+        }
+        found[count] = position;
+        return found;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Makes sure at least some bytes are left in the buffer, reading more from the file if needed
+     */
+    private static void fill(FileChannel in, ByteBuffer buf, int needed) throws IOException {
+        if (buf.remaining() >= needed) {
+            return;
+        }
+        buf.compact();
+        while (buf.position() < needed) {
+            if (in.read(buf) < 0) {
+                throw new IOException("Index file ends too soon");
+            }
+        }
+        buf.flip();
+    }
+}
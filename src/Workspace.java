@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lists that are open besides the one being edited
+ *
+ * Opening another list file parks the current list here instead of closing it, with its
+ * journal, search index and unsaved edits, so switching back to it doesn't read the file
+ * again. The lists are kept in least recently used order and the workspace is bounded by
+ * the memory the lists use, not by how many there are: when it is over its budget the
+ * least recently used lists are closed. Lists with unsaved edits are never closed that
+ * way, they stay until they are saved or the program quits.
+ *
+ * A parked list is only used again if its file wasn't changed by anything else in the
+ * meantime. The journal of the list knows the size and modified time of the file it was
+ * started for, so that is what the file is checked against.
+ *
+ * The budget is a quarter of the heap, or -Dfilelist.workspaceMemory=<bytes>.
+ */
+public class Workspace {
+
+    /**
+     * Everything that belongs to one open list
+     */
+    public static class OpenList {
+        final List<String> list;
+        final String fileName;
+        final ListJournal journal;
+        final SearchIndex searchIndex;
+        final boolean needsToBeSaved;
+        final boolean sameAsFile;
+        final int page;
+        final EditHistory history;
+        // Keeps the list up to date with its file while it is being edited, null if live reload is off
+        final LiveReload live;
+        // Worked out when the list is parked
+        private long memorySize;
+
+        public OpenList(List<String> list, String fileName, ListJournal journal, SearchIndex searchIndex,
+                        boolean needsToBeSaved, boolean sameAsFile, int page, EditHistory history,
+                        LiveReload live) {
+            this.list = list;
+            this.fileName = fileName;
+            this.journal = journal;
+            this.searchIndex = searchIndex;
+            this.needsToBeSaved = needsToBeSaved;
+            this.sameAsFile = sameAsFile;
+            this.page = page;
+            this.history = history;
+            this.live = live;
+        }
+
+        /**
+         * @return the list file, as a full path
+         */
+        public Path file() {
+            return Paths.get(fileName + ".txt").toAbsolutePath().normalize();
+        }
+
+        /**
+         * @return true if nothing but this list has changed its file since the list was opened
+         */
+        public boolean isCurrent() {
+            return journal != null && !journal.hasFailed() && journal.isBaseUnchanged();
+        }
+
+        /**
+         * Closes the list: unsaved edits are dropped, saved ones are folded into the list file
+         * and the search index is saved next to it if the list was saved
+         */
+        public void close() {
+            if (live != null) {
+                live.stop();
+            }
+            if (journal != null) {
+                List<String> saved = list;
+                if (needsToBeSaved) {
+                    saved = history != null ? history.savedList(list, Main::snapshot) : null;
+                }
+                journal.close(saved);
+            }
+            Path file = file();
+            if (searchIndex != null && !needsToBeSaved && !fileName.isEmpty() && Files.exists(file)) {
+                try {
+                    searchIndex.save(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * @return about how many bytes the list, its index, its undo history and what live reload keeps use
+         */
+        public long memorySize() {
+            return Workspace.memorySize(list) + (searchIndex != null ? searchIndex.memorySize() : 0)
+                    + (history != null ? history.memorySize() : 0) + (live != null ? live.memorySize() : 0);
+        }
+    }
+
+    // Parked lists by file, in least recently used order
+    private final LinkedHashMap<Path, OpenList> lists = new LinkedHashMap<>(16, 0.75f, true);
+    // Most bytes the parked lists are allowed to use
+    private final long budget;
+    // Bytes the parked lists use
+    private long used;
+
+    /**
+     * @param budget the most bytes the parked lists are allowed to use
+     */
+    public Workspace(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a workspace with the budget given with -Dfilelist.workspaceMemory
+     *
+     * @return the workspace
+     */
+    public static Workspace fromProperty() {
+        return new Workspace(Long.getLong("filelist.workspaceMemory", Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Works out about how many bytes a list uses
+     *
+     * @param list the list
+     * @return the bytes it keeps in memory, not counting a mapped file
+     */
+    static long memorySize(List<String> list) {
+        if (list instanceof MappedLineList) {
+            return ((MappedLineList) list).memorySize();
+        }
+        // Each item is a reference to a String object holding its characters
+        long bytes = 0;
+        for (String item : list) {
+            bytes += 8 + 56 + 2L * item.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Parks a list, closing the least recently used lists if the workspace is over its budget
+     *
+     * @param list the list to park
+     */
+    public void put(OpenList list) {
+        list.memorySize = list.memorySize();
+        OpenList old = lists.put(list.file(), list);
+        if (old != null) {
+            used -= old.memorySize; // shouldn't happen, a list is taken out while it is being edited
+        }
+        used += list.memorySize;
+
+        Iterator<OpenList> oldestFirst = lists.values().iterator();
+        while (used > budget && oldestFirst.hasNext()) {
+            OpenList oldest = oldestFirst.next();
+            if (!oldest.needsToBeSaved) {
+                oldestFirst.remove();
+                used -= oldest.memorySize;
+                oldest.close();
+            }
+        }
+    }
+
+    /**
+     * Takes a list out of the workspace to edit it
+     * A list whose file was changed by something else is closed instead, unless it has unsaved
+     * edits: those are kept, and saving them wins over the change on disk (with live reload
+     * on, the change is merged into them when the list is taken out).
+     *
+     * @param file the list file
+     * @return the list, or null if it isn't parked here and has to be read from its file
+     */
+    public OpenList take(Path file) {
+        OpenList list = lists.remove(file.toAbsolutePath().normalize());
+        if (list == null) {
+            return null;
+        }
+        used -= list.memorySize;
+        if (list.isCurrent() || list.needsToBeSaved) {
+            return list;
+        }
+        list.close();
+        return null;
+    }
+
+    /**
+     * Looks a parked list up without taking it out or counting it as used
+     *
+     * @param file the list file
+     * @return the list, or null if it isn't parked here
+     */
+    public OpenList get(Path file) {
+        file = file.toAbsolutePath().normalize();
+        for (Map.Entry<Path, OpenList> parked : lists.entrySet()) {
+            if (parked.getKey().equals(file)) {
+                return parked.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the parked lists, the least recently used first
+     */
+    public List<OpenList> lists() {
+        return new ArrayList<>(lists.values());
+    }
+
+    /**
+     * Takes every list out of the workspace, used when the program quits
+     *
+     * @return the lists that were parked, the least recently used first
+     */
+    public List<OpenList> takeAll() {
+        List<OpenList> all = lists();
+        lists.clear();
+        used = 0;
+        return all;
+    }
+
+    /**
+     * @return about how many bytes the parked lists use
+     */
+    public long memoryUsed() {
+        return used;
+    }
+}